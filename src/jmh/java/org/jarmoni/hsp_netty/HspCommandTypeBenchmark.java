@@ -0,0 +1,58 @@
+package org.jarmoni.hsp_netty;
+
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup of {@link HspCommandType} by its byte-value: the former {@link HashMap} based lookup (boxing the byte and
+ * wrapping the result in a new {@link Optional}) vs {@link HspCommandType#byByteValue(byte)} vs
+ * {@link HspCommandType#fromByteValue(byte)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HspCommandTypeBenchmark {
+
+	private static final Map<Byte, HspCommandType> ELEM_MAP = new HashMap<>();
+	static {
+		for (final HspCommandType current : HspCommandType.values()) {
+			ELEM_MAP.put(current.byteValue(), current);
+		}
+	}
+
+	// all commands and one unknown value
+	private final byte[] commands = { 0, 1, 2, 3, 4, 5, 6, 42 };
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void hashMap(final Blackhole bh) {
+		for (final byte command : commands) {
+			bh.consume(ELEM_MAP.get(command) != null ? Optional.of(ELEM_MAP.get(command)) : Optional.empty());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void byByteValue(final Blackhole bh) {
+		for (final byte command : commands) {
+			bh.consume(HspCommandType.byByteValue(command));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(8)
+	public void fromByteValue(final Blackhole bh) {
+		for (final byte command : commands) {
+			bh.consume(HspCommandType.fromByteValue(command));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.jarmoni.hsp_netty.Compression.Algorithm;
+import org.jarmoni.hsp_netty.Compression.Codec;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU per payload of the {@link Compression}-algorithms vs bytes saved, for repetitive (JSON-like) payloads. The
+ * auxiliary counters <code>compressedBytes</code> and <code>payloadBytes</code> of {@link #compress(Sizes)} are the
+ * totals of an iteration, their ratio is the compression-ratio.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HspCompressionBenchmark {
+
+	@Param
+	public Algorithm algorithm;
+
+	@Param({ "1024", "8192", "65536" })
+	public int payloadBytes;
+
+	private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+	private Codec codec;
+	private ByteBuf payload;
+	private ByteBuf compressed;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Sizes {
+		public long compressedBytes;
+		public long payloadBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			compressedBytes = 0;
+			payloadBytes = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		codec = algorithm.newCodec();
+		payload = alloc.heapBuffer(payloadBytes);
+		for (int i = 0; payload.readableBytes() < payloadBytes; i++) {
+			payload.writeCharSequence("{\"id\":" + i + ",\"name\":\"item-" + (i % 7) + "\",\"tags\":[\"a\",\"b\"]},", StandardCharsets.UTF_8);
+		}
+		payload.writerIndex(payloadBytes);
+		compressed = alloc.heapBuffer(payloadBytes);
+		codec.compress(payload, compressed);
+	}
+
+	@TearDown
+	public void tearDown() {
+		codec.end();
+		payload.release();
+		compressed.release();
+	}
+
+	@Benchmark
+	public int compress(final Sizes sizes) {
+		final ByteBuf out = alloc.heapBuffer(payloadBytes);
+		codec.compress(payload, out);
+		final int written = out.readableBytes();
+		out.release();
+		sizes.compressedBytes += written;
+		sizes.payloadBytes += payloadBytes;
+		return written;
+	}
+
+	@Benchmark
+	public int decompress() {
+		final ByteBuf out = alloc.heapBuffer(payloadBytes, payloadBytes);
+		codec.decompress(compressed.duplicate(), out, payloadBytes);
+		final int read = out.readableBytes();
+		out.release();
+		return read;
+	}
+}
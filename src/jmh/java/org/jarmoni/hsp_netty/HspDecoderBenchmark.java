@@ -0,0 +1,160 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode throughput and latency per {@link HspCommandType}, for whole frames and for frames which arrive in several
+ * fragments. <code>CALLBACK</code> is the {@link HspFrameDecoder} in callback-mode (no messages, see
+ * {@link HspFrameListener}).
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HspDecoderBenchmark {
+
+	public enum DecoderType {
+		REPLAYING, FRAME, CALLBACK
+	}
+
+	@Param
+	public HspCommandType commandType;
+
+	@Param({ "1", "3" })
+	public int fragments;
+
+	@Param({ "64" })
+	public int payloadBytes;
+
+	@Param
+	public DecoderType decoderType;
+
+	private EmbeddedChannel channel;
+	private ConsumingHandler consumer;
+	private ByteBuf frame;
+	private ByteBuf[] input;
+
+	@Setup
+	public void setUp() {
+		consumer = new ConsumingHandler();
+		channel = new EmbeddedChannel(decoder(), consumer);
+		final ByteBuf payload = Unpooled.directBuffer(payloadBytes).writeZero(payloadBytes);
+		frame = Unpooled.directBuffer();
+		message(payload).toBytes(frame);
+		payload.release();
+
+		final int count = Math.min(fragments, frame.readableBytes());
+		input = new ByteBuf[count];
+		final int fragmentBytes = frame.readableBytes() / count;
+		for (int i = 0; i < count; i++) {
+			final int index = i * fragmentBytes;
+			input[i] = frame.slice(index, i == count - 1 ? frame.readableBytes() - index : fragmentBytes);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		frame.release();
+	}
+
+	@Benchmark
+	public long decode() {
+		for (final ByteBuf fragment : input) {
+			channel.writeInbound(fragment.retainedDuplicate());
+		}
+		return consumer.count;
+	}
+
+	private ChannelHandler decoder() {
+		switch (decoderType) {
+		case REPLAYING:
+			return new HspDecoder();
+		case FRAME:
+			return new HspFrameDecoder();
+		case CALLBACK:
+			return new HspFrameDecoder(8192, consumer);
+		default:
+			throw new IllegalArgumentException("Unhandled decoderType=" + decoderType);
+		}
+	}
+
+	private HspMessage message(final ByteBuf payload) {
+		switch (commandType) {
+		case DataCommand:
+			return new DataMessage((short) 1, payload);
+		case DataAckCommand:
+			return new DataAckMessage(1, (short) 1, payload);
+		case AckCommand:
+			return new AckMessage(1);
+		case PingCommand:
+			return new PingMessage();
+		case PongCommand:
+			return new PongMessage();
+		case ErrorCommand:
+			return new ErrorMessage(1, (short) 1, payload);
+		case ErrorUndefCommand:
+			return new ErrorUndefMessage(1);
+		default:
+			throw new IllegalArgumentException("Unhandled command=" + commandType);
+		}
+	}
+
+	@ChannelHandler.Sharable
+	static class ConsumingHandler extends ChannelInboundHandlerAdapter implements HspFrameListener {
+		long count;
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+			count++;
+			((HspMessage) msg).release();
+		}
+
+		@Override
+		public void onData(final ChannelHandlerContext ctx, final short payloadType, final ByteBuf payload) {
+			count++;
+		}
+
+		@Override
+		public void onDataAck(final ChannelHandlerContext ctx, final int messageId, final short payloadType, final ByteBuf payload) {
+			count++;
+		}
+
+		@Override
+		public void onAck(final ChannelHandlerContext ctx, final int messageId) {
+			count++;
+		}
+
+		@Override
+		public void onError(final ChannelHandlerContext ctx, final int messageId, final short errorType, final ByteBuf payload) {
+			count++;
+		}
+
+		@Override
+		public void onErrorUndef(final ChannelHandlerContext ctx, final int messageId) {
+			count++;
+		}
+
+		@Override
+		public void onPing(final ChannelHandlerContext ctx) {
+			count++;
+		}
+
+		@Override
+		public void onPong(final ChannelHandlerContext ctx) {
+			count++;
+		}
+	}
+}
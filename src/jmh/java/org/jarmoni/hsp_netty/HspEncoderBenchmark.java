@@ -0,0 +1,97 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.jarmoni.hsp_netty.Messages.DataMessage;
+import org.jarmoni.hsp_netty.Messages.HspMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode cost of {@link DataMessage#toBytes(ByteBuf)}/{@link DataAckMessage#toBytes(ByteBuf)} and of the
+ * {@link HspEncoder} (copying and zero-copy) across payload-sizes up to the default max-payload-bytes of the decoder,
+ * for heap vs direct and pooled vs unpooled buffers.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HspEncoderBenchmark {
+
+	public enum MessageType {
+		DATA, DATA_ACK
+	}
+
+	@Param
+	public MessageType messageType;
+
+	@Param({ "0", "64", "1024", "4096", "8192" })
+	public int payloadBytes;
+
+	@Param({ "true", "false" })
+	public boolean pooled;
+
+	@Param({ "true", "false" })
+	public boolean direct;
+
+	private ByteBufAllocator alloc;
+	private ByteBuf payload;
+	private HspMessage message;
+	private EmbeddedChannel channel;
+	private EmbeddedChannel zeroCopyChannel;
+
+	@Setup
+	public void setUp() {
+		alloc = pooled ? new PooledByteBufAllocator(direct) : new UnpooledByteBufAllocator(direct);
+		final byte[] bytes = new byte[payloadBytes];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		payload = alloc.buffer(payloadBytes).writeBytes(bytes);
+		message = messageType == MessageType.DATA ? new DataMessage((short) 1, payload) : new DataAckMessage(1, (short) 1, payload);
+		channel = new EmbeddedChannel(HspEncoder.instance());
+		channel.config().setAllocator(alloc);
+		zeroCopyChannel = new EmbeddedChannel(new HspEncoder(0));
+		zeroCopyChannel.config().setAllocator(alloc);
+	}
+
+	@TearDown
+	public void tearDown() {
+		channel.finishAndReleaseAll();
+		zeroCopyChannel.finishAndReleaseAll();
+		payload.release();
+	}
+
+	@Benchmark
+	public int toBytes() {
+		final ByteBuf out = alloc.buffer(payloadBytes + 16);
+		message.toBytes(out);
+		final int written = out.readableBytes();
+		out.release();
+		return written;
+	}
+
+	@Benchmark
+	public int encoder() {
+		channel.writeOutbound(message);
+		final ByteBuf out = channel.readOutbound();
+		final int written = out.readableBytes();
+		out.release();
+		return written;
+	}
+
+	@Benchmark
+	public int zeroCopyEncoder() {
+		zeroCopyChannel.writeOutbound(message);
+		final ByteBuf out = zeroCopyChannel.readOutbound();
+		final int written = out.readableBytes();
+		out.release();
+		return written;
+	}
+}
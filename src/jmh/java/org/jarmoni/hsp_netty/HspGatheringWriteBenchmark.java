@@ -0,0 +1,103 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.jarmoni.hsp_netty.Messages.DataMessage;
+import org.jarmoni.hsp_netty.Messages.HspMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback-throughput of mixed traffic (<code>smallFrames</code> small frames and one large frame per burst, flushed
+ * once) written by the {@link HspEncoder} (a {@link io.netty.handler.codec.MessageToByteEncoder}, i.e. one copied
+ * buffer per frame) vs the {@link HspBatchingEncoder} with zero-copy (small frames and headers in one batch, large
+ * payloads as they are, all passed to one gathering write). An operation is completed when the burst has been written
+ * to the socket.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HspGatheringWriteBenchmark {
+
+	public enum EncoderType {
+		COPY, GATHERING
+	}
+
+	@Param
+	public EncoderType encoderType;
+
+	@Param({ "16" })
+	public int smallFrames;
+
+	@Param({ "4096", "65536" })
+	public int largePayloadBytes;
+
+	private HspServer server;
+	private HspConnector connector;
+	private Channel channel;
+	private ByteBuf smallPayload;
+	private ByteBuf largePayload;
+	private HspMessage[] burst;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = HspServer.builder().localAddress(new InetSocketAddress("127.0.0.1", 0)).eventLoopThreads(1).maxPayloadBytes(largePayloadBytes)
+				.pipelineInitializer(p -> p.addLast(new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+						((HspMessage) msg).release();
+					}
+				})).start();
+		final HspConnector.Builder builder = HspConnector.builder().eventLoopThreads(1).encoder(new HspEncoder());
+		if (encoderType == EncoderType.GATHERING) {
+			builder.pipelineInitializer(p -> p.addLast(new HspBatchingEncoder(8192, 0, TimeUnit.NANOSECONDS, 1024, HspMetrics.NOOP)));
+		}
+		connector = builder.build();
+		channel = connector.connect(server.localAddress()).sync().channel();
+
+		smallPayload = PooledByteBufAllocator.DEFAULT.directBuffer(64).writeBytes(randomBytes(64));
+		largePayload = PooledByteBufAllocator.DEFAULT.directBuffer(largePayloadBytes).writeBytes(randomBytes(largePayloadBytes));
+		burst = new HspMessage[smallFrames + 1];
+		for (int i = 0; i < burst.length; i++) {
+			// the large frame in the middle of the small ones
+			burst[i] = i == smallFrames / 2 ? new DataMessage((short) 2, largePayload) : new DataMessage((short) 1, smallPayload);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		channel.close().sync();
+		connector.close();
+		server.close();
+		smallPayload.release();
+		largePayload.release();
+	}
+
+	@Benchmark
+	public void burst() throws Exception {
+		// written on the event-loop, so the burst is not split into one task per write
+		final ChannelFuture lastWrite = channel.eventLoop().submit(() -> {
+			for (int i = 0; i < burst.length - 1; i++) {
+				channel.write(burst[i], channel.voidPromise());
+			}
+			return channel.writeAndFlush(burst[burst.length - 1]);
+		}).get();
+		lastWrite.sync();
+	}
+
+	private static byte[] randomBytes(final int length) {
+		final byte[] bytes = new byte[length];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,475 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.jarmoni.hsp_netty.Messages.*;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback load-generator/soak-test: starts an {@link HspServer} answering every frame (a {@link DataMessage} is
+ * echoed, a {@link DataAckMessage} acked, a {@link PingMessage} ponged) and <code>--clients</code> connections
+ * sending a configurable mix of frames. Prints throughput and latency-percentiles per frame-type and writes them as
+ * JSON.
+ * <p>
+ * With <code>--rate &gt; 0</code> the clients send open-loop at a fixed rate (spread evenly over the clients), whether
+ * answers arrive or not. The latency is measured from the time a frame was due to be sent, so stalls of the client
+ * or of the server are fully accounted for (no coordinated omission). The latency from the actual send is reported
+ * as <code>uncorrected</code>. With <code>--rate 0</code> every client keeps <code>--inflight</code> frames
+ * outstanding (closed-loop, maximum throughput); the latencies are corrected with
+ * {@link Histogram#recordWithExpectedInterval(long, long)} if <code>--expectedIntervalMicros</code> is given.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec@load -Dload.args="--clients 4 --rate 200000 --duration 30 --mix data:4,dataAck:5,ping:1"
+ * </pre>
+ */
+public final class HspLoadGenerator {
+
+	private static final short PAYLOAD_TYPE = 1;
+	// message-ids of outstanding DataAckMessages per client, must be a power of two
+	private static final int MAX_OUTSTANDING_ACKS = 1 << 16;
+	// frames due between two ticks are sent late (and counted so), so the tick follows the interval within these bounds
+	private static final long MIN_TICK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long MAX_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private enum Kind {
+		DATA, DATA_ACK, PING
+	}
+
+	private final Config config;
+	private final Histogram[] latencies = new Histogram[Kind.values().length];
+	private final Histogram[] uncorrectedLatencies = new Histogram[Kind.values().length];
+	private final Kind[] pattern;
+
+	private HspLoadGenerator(final Config config) {
+		this.config = config;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = Histogram.striped();
+			uncorrectedLatencies[i] = Histogram.striped();
+		}
+		this.pattern = config.pattern();
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Config config;
+		try {
+			config = Config.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(Config.USAGE);
+			System.exit(1);
+			return;
+		}
+		final String json = new HspLoadGenerator(config).run();
+		if (config.out.getParent() != null) {
+			Files.createDirectories(config.out.getParent());
+		}
+		Files.write(config.out, json.getBytes(StandardCharsets.UTF_8));
+		System.out.println("Results written to " + config.out.toAbsolutePath());
+	}
+
+	private String run() throws Exception {
+		final HspServer server = HspServer.builder().localAddress(new InetSocketAddress("127.0.0.1", 0)).eventLoopThreads(config.serverThreads)
+				.maxPayloadBytes(config.payloadBytes).pipelineInitializer(p -> p.addLast(new EchoHandler())).start();
+		final List<LoadHandler> handlers = Collections.synchronizedList(new ArrayList<>());
+		final HspConnector connector = HspConnector.builder().eventLoopThreads(config.clientThreads).maxPayloadBytes(config.payloadBytes)
+				.pipelineInitializer(p -> {
+					final LoadHandler handler = new LoadHandler();
+					handlers.add(handler);
+					p.addLast(handler);
+				}).build();
+		try {
+			final List<Channel> channels = new ArrayList<>();
+			for (int i = 0; i < config.clients; i++) {
+				channels.add(connector.connect(server.localAddress()).sync().channel());
+			}
+			System.out.println("Running " + config + " (native=" + connector.isNative() + ")");
+			final long startNanos = System.nanoTime();
+			for (final LoadHandler handler : handlers) {
+				handler.start(startNanos);
+			}
+			TimeUnit.SECONDS.sleep(config.warmupSeconds);
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i].reset();
+				uncorrectedLatencies[i].reset();
+			}
+			final long measureNanos = System.nanoTime();
+			TimeUnit.SECONDS.sleep(config.durationSeconds);
+			final long elapsedNanos = System.nanoTime() - measureNanos;
+			final long[] completed = new long[latencies.length];
+			for (int i = 0; i < latencies.length; i++) {
+				completed[i] = uncorrectedLatencies[i].getCount();
+			}
+			for (final LoadHandler handler : handlers) {
+				handler.stop();
+			}
+			for (final Channel channel : channels) {
+				channel.close().sync();
+			}
+			return report(elapsedNanos, completed);
+		} finally {
+			connector.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * @param completed answers per kind received until the end of the measurement (the corrected histograms of the
+	 *        closed-loop mode contain synthesized values, so they are not counted)
+	 */
+	private String report(final long elapsedNanos, final long[] completed) {
+		final double seconds = elapsedNanos / 1e9;
+		long total = 0;
+		for (final long c : completed) {
+			total += c;
+		}
+		final StringBuilder json = new StringBuilder(1024);
+		json.append("{\n");
+		json.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+		json.append("  \"config\": ").append(config.toJson()).append(",\n");
+		json.append("  \"durationSeconds\": ").append(format(seconds)).append(",\n");
+		json.append("  \"throughputPerSecond\": ").append(format(total / seconds)).append(",\n");
+		json.append("  \"latencyUnit\": \"microseconds\",\n");
+		json.append("  \"types\": {");
+		System.out.printf(Locale.ROOT, "%nThroughput: %.0f answers/s over %.1fs%n", total / seconds, seconds);
+		System.out.printf(Locale.ROOT, "%-9s %12s %10s %10s %10s %10s   (uncorrected p99)%n", "type", "answers", "p50[us]", "p99[us]", "p99.9[us]", "max[us]");
+		String separator = "\n";
+		for (final Kind kind : Kind.values()) {
+			final Histogram corrected = latencies[kind.ordinal()];
+			final Histogram uncorrected = uncorrectedLatencies[kind.ordinal()];
+			if (uncorrected.getCount() == 0) {
+				continue;
+			}
+			System.out.printf(Locale.ROOT, "%-9s %12d %10.1f %10.1f %10.1f %10.1f   (%.1f)%n", kind, completed[kind.ordinal()], micros(corrected.getValueAtPercentile(50)),
+					micros(corrected.getValueAtPercentile(99)), micros(corrected.getValueAtPercentile(99.9)), micros(corrected.getMax()),
+					micros(uncorrected.getValueAtPercentile(99)));
+			json.append(separator).append("    \"").append(kind.name()).append("\": {\n");
+			json.append("      \"answers\": ").append(completed[kind.ordinal()]).append(",\n");
+			json.append("      \"latency\": ").append(toJson(corrected)).append(",\n");
+			json.append("      \"uncorrectedLatency\": ").append(toJson(uncorrected)).append("\n");
+			json.append("    }");
+			separator = ",\n";
+		}
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	private static String toJson(final Histogram histogram) {
+		return "{ \"count\": " + histogram.getCount() + ", \"mean\": " + format(histogram.getMean() / 1000) + ", \"p50\": " + format(micros(histogram.getValueAtPercentile(50)))
+				+ ", \"p99\": " + format(micros(histogram.getValueAtPercentile(99))) + ", \"p99.9\": " + format(micros(histogram.getValueAtPercentile(99.9))) + ", \"max\": "
+				+ format(micros(histogram.getMax())) + " }";
+	}
+
+	private static double micros(final long nanos) {
+		return nanos / 1000.0;
+	}
+
+	private static String format(final double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Server-side: answers every frame. The answers are flushed once per read-loop.
+	 */
+	private static final class EchoHandler extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+			if (msg instanceof DataMessage) {
+				// the HspEncoder copies the payload while writing (on the event-loop), so it can be released afterwards
+				ctx.write(msg, ctx.voidPromise());
+			} else if (msg instanceof DataAckMessage) {
+				ctx.write(new AckMessage(((DataAckMessage) msg).getMessageId()), ctx.voidPromise());
+			} else if (msg instanceof PingMessage) {
+				ctx.write(PongMessage.instance(), ctx.voidPromise());
+			}
+			((HspMessage) msg).release();
+		}
+
+		@Override
+		public void channelReadComplete(final ChannelHandlerContext ctx) {
+			ctx.flush();
+		}
+	}
+
+	/**
+	 * Client-side: sends frames and records the latency of their answers. Everything happens on the event-loop of the
+	 * channel, so the state is not shared.
+	 */
+	private final class LoadHandler extends ChannelInboundHandlerAdapter {
+		// send-times of the outstanding DataAckMessages by message-id
+		private final long[] ackDue = new long[MAX_OUTSTANDING_ACKS];
+		private final long[] ackSent = new long[MAX_OUTSTANDING_ACKS];
+		// send-times of the outstanding PingMessages, pongs arrive in order
+		private final long[] pingDue = new long[MAX_OUTSTANDING_ACKS];
+		private final long[] pingSent = new long[MAX_OUTSTANDING_ACKS];
+		private int pingHead;
+		private int pingTail;
+		private ByteBuf payload;
+		private ChannelHandlerContext ctx;
+		private ScheduledFuture<?> ticker;
+		private int messageId;
+		private long sequence;
+		private long nextDueNanos;
+		private long intervalNanos;
+		private volatile boolean stopped;
+
+		@Override
+		public void handlerAdded(final ChannelHandlerContext ctx) {
+			this.ctx = ctx;
+			// re-used for all frames: the HspEncoder has copied it when the write returns
+			payload = Unpooled.directBuffer(config.payloadBytes).writeZero(config.payloadBytes);
+		}
+
+		@Override
+		public void handlerRemoved(final ChannelHandlerContext ctx) {
+			payload.release();
+		}
+
+		void start(final long startNanos) {
+			ctx.executor().execute(() -> {
+				if (config.rate > 0) {
+					intervalNanos = (long) (1e9 * config.clients / config.rate);
+					nextDueNanos = startNanos;
+					final long tickNanos = Math.min(Math.max(intervalNanos, MIN_TICK_NANOS), MAX_TICK_NANOS);
+					ticker = ctx.executor().scheduleAtFixedRate(this::sendDue, 0, tickNanos, TimeUnit.NANOSECONDS);
+				} else {
+					final long now = System.nanoTime();
+					for (int i = 0; i < config.inflight; i++) {
+						send(now);
+					}
+					ctx.flush();
+				}
+			});
+		}
+
+		void stop() throws InterruptedException {
+			stopped = true;
+			ctx.executor().submit(() -> {
+				if (ticker != null) {
+					ticker.cancel(false);
+				}
+			}).sync();
+		}
+
+		private void sendDue() {
+			// frames which became due while the event-loop was busy are sent now, their latency includes the delay
+			final long now = System.nanoTime();
+			while (nextDueNanos <= now && !stopped) {
+				send(nextDueNanos);
+				nextDueNanos += intervalNanos;
+			}
+			ctx.flush();
+		}
+
+		private void send(final long dueNanos) {
+			final long now = System.nanoTime();
+			switch (pattern[(int) (sequence++ % pattern.length)]) {
+			case DATA:
+				payload.setLong(0, dueNanos);
+				payload.setLong(Long.BYTES, now);
+				ctx.write(new DataMessage(PAYLOAD_TYPE, payload), ctx.voidPromise());
+				break;
+			case DATA_ACK:
+				final int id = messageId++;
+				ackDue[id & (MAX_OUTSTANDING_ACKS - 1)] = dueNanos;
+				ackSent[id & (MAX_OUTSTANDING_ACKS - 1)] = now;
+				ctx.write(new DataAckMessage(id, PAYLOAD_TYPE, payload), ctx.voidPromise());
+				break;
+			case PING:
+				pingDue[pingTail & (MAX_OUTSTANDING_ACKS - 1)] = dueNanos;
+				pingSent[pingTail & (MAX_OUTSTANDING_ACKS - 1)] = now;
+				pingTail++;
+				ctx.write(PingMessage.instance(), ctx.voidPromise());
+				break;
+			}
+		}
+
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+			final long now = System.nanoTime();
+			if (msg instanceof DataMessage) {
+				final ByteBuf echoed = ((DataMessage) msg).getPayload();
+				record(Kind.DATA, now, echoed.getLong(echoed.readerIndex()), echoed.getLong(echoed.readerIndex() + Long.BYTES));
+			} else if (msg instanceof AckMessage) {
+				final int index = ((AckMessage) msg).getMessageId() & (MAX_OUTSTANDING_ACKS - 1);
+				record(Kind.DATA_ACK, now, ackDue[index], ackSent[index]);
+			} else if (msg instanceof PongMessage) {
+				final int index = pingHead++ & (MAX_OUTSTANDING_ACKS - 1);
+				record(Kind.PING, now, pingDue[index], pingSent[index]);
+			}
+			((HspMessage) msg).release();
+			if (config.rate == 0 && !stopped) {
+				send(now);
+			}
+		}
+
+		@Override
+		public void channelReadComplete(final ChannelHandlerContext ctx) {
+			if (config.rate == 0) {
+				ctx.flush();
+			}
+		}
+
+		private void record(final Kind kind, final long now, final long dueNanos, final long sentNanos) {
+			if (config.rate > 0) {
+				latencies[kind.ordinal()].record(now - dueNanos);
+			} else {
+				latencies[kind.ordinal()].recordWithExpectedInterval(now - sentNanos, config.expectedIntervalNanos);
+			}
+			uncorrectedLatencies[kind.ordinal()].record(now - sentNanos);
+		}
+	}
+
+	private static final class Config {
+
+		static final String USAGE = "Options: --clients <n> (4) --rate <frames/s, 0 = closed-loop> (0) --inflight <frames per client in closed-loop> (16) "
+				+ "--expectedIntervalMicros <closed-loop correction, 0 = none> (0) --duration <s> (10) --warmup <s> (2) --payload <bytes, >= 16> (64) "
+				+ "--mix <data:w,dataAck:w,ping:w> (data:1,dataAck:1,ping:0) --serverThreads <n> (1) --clientThreads <n> (1) --out <file> (target/hsp-load.json)";
+
+		int clients = 4;
+		long rate;
+		int inflight = 16;
+		long expectedIntervalNanos;
+		int durationSeconds = 10;
+		int warmupSeconds = 2;
+		int payloadBytes = 64;
+		final int[] weights = { 1, 1, 0 };
+		int serverThreads = 1;
+		int clientThreads = 1;
+		Path out = Paths.get("target", "hsp-load.json");
+
+		static Config parse(final String[] args) {
+			final Config config = new Config();
+			if (args.length % 2 != 0) {
+				throw new IllegalArgumentException("Options must be given as '--name value'. Was: " + String.join(" ", args));
+			}
+			for (int i = 0; i < args.length; i += 2) {
+				final String value = args[i + 1];
+				switch (args[i]) {
+				case "--clients":
+					config.clients = positive(args[i], value);
+					break;
+				case "--rate":
+					config.rate = Long.parseLong(value);
+					break;
+				case "--inflight":
+					config.inflight = positive(args[i], value);
+					break;
+				case "--expectedIntervalMicros":
+					config.expectedIntervalNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(value));
+					break;
+				case "--duration":
+					config.durationSeconds = positive(args[i], value);
+					break;
+				case "--warmup":
+					config.warmupSeconds = Integer.parseInt(value);
+					break;
+				case "--payload":
+					config.payloadBytes = Integer.parseInt(value);
+					break;
+				case "--mix":
+					config.parseMix(value);
+					break;
+				case "--serverThreads":
+					config.serverThreads = positive(args[i], value);
+					break;
+				case "--clientThreads":
+					config.clientThreads = positive(args[i], value);
+					break;
+				case "--out":
+					config.out = Paths.get(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: " + args[i]);
+				}
+			}
+			if (config.payloadBytes < 2 * Long.BYTES) {
+				throw new IllegalArgumentException("payload must be >= 16 (it carries the send-times). Was: " + config.payloadBytes);
+			}
+			if (config.rate < 0) {
+				throw new IllegalArgumentException("rate must be >= 0. Was: " + config.rate);
+			}
+			return config;
+		}
+
+		private void parseMix(final String mix) {
+			weights[0] = weights[1] = weights[2] = 0;
+			for (final String entry : mix.split(",")) {
+				final String[] parts = entry.split(":");
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("mix must be given as 'type:weight,...'. Was: " + mix);
+				}
+				final int weight = Integer.parseInt(parts[1].trim());
+				switch (parts[0].trim()) {
+				case "data":
+					weights[Kind.DATA.ordinal()] = weight;
+					break;
+				case "dataAck":
+					weights[Kind.DATA_ACK.ordinal()] = weight;
+					break;
+				case "ping":
+					weights[Kind.PING.ordinal()] = weight;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown type in mix: " + parts[0]);
+				}
+			}
+			if (weights[0] + weights[1] + weights[2] <= 0) {
+				throw new IllegalArgumentException("mix must contain a weight > 0. Was: " + mix);
+			}
+		}
+
+		/**
+		 * @return the kinds in the ratio of their weights, shuffled (with a fixed seed) so the kinds are interleaved
+		 */
+		Kind[] pattern() {
+			final List<Kind> kinds = new ArrayList<>();
+			for (final Kind kind : Kind.values()) {
+				for (int i = 0; i < weights[kind.ordinal()]; i++) {
+					kinds.add(kind);
+				}
+			}
+			Collections.shuffle(kinds, new Random(42));
+			return kinds.toArray(new Kind[0]);
+		}
+
+		private static int positive(final String name, final String value) {
+			final int i = Integer.parseInt(value);
+			if (i <= 0) {
+				throw new IllegalArgumentException(name.substring(2) + " must be > 0. Was: " + value);
+			}
+			return i;
+		}
+
+		String toJson() {
+			return "{ \"clients\": " + clients + ", \"rate\": " + rate + ", \"inflight\": " + inflight + ", \"expectedIntervalNanos\": " + expectedIntervalNanos
+					+ ", \"durationSeconds\": " + durationSeconds + ", \"warmupSeconds\": " + warmupSeconds + ", \"payloadBytes\": " + payloadBytes + ", \"mix\": { \"data\": "
+					+ weights[0] + ", \"dataAck\": " + weights[1] + ", \"ping\": " + weights[2] + " }, \"serverThreads\": " + serverThreads + ", \"clientThreads\": "
+					+ clientThreads + " }";
+		}
+
+		@Override
+		public String toString() {
+			return "clients=" + clients + ", rate=" + (rate > 0 ? rate + "/s" : "closed-loop(inflight=" + inflight + ")") + ", duration=" + durationSeconds + "s, warmup="
+					+ warmupSeconds + "s, payload=" + payloadBytes + ", mix=data:" + weights[0] + ",dataAck:" + weights[1] + ",ping:" + weights[2];
+		}
+	}
+}
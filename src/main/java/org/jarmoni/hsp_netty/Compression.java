@@ -0,0 +1,152 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.compression.Snappy;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload-compression used by {@link HspCompressor} and {@link HspDecompressor}.
+ * <p>
+ * A compressed payload is marked by the highest bit of the payload-type ({@link #COMPRESSED_FLAG}), so only
+ * payload-types up to <code>0x7fff</code> can be used together with compression. The compressed payload starts with
+ * the algorithm (1 byte) and the uncompressed length (4 bytes), followed by the compressed bytes.
+ */
+public class Compression {
+
+	public static final short COMPRESSED_FLAG = (short) 0x8000;
+
+	// algorithm and uncompressed length
+	static final int PREFIX_LENGTH = 5;
+
+	public static boolean isCompressed(final short payloadType) {
+		return (payloadType & COMPRESSED_FLAG) != 0;
+	}
+
+	/**
+	 * Algorithms of netty-codec and the JDK which do not require native code or further dependencies.
+	 */
+	public enum Algorithm {
+		SNAPPY((byte) 1), DEFLATE((byte) 2);
+
+		private final byte byteValue;
+
+		Algorithm(final byte byteValue) {
+			this.byteValue = byteValue;
+		}
+
+		public byte byteValue() {
+			return byteValue;
+		}
+
+		/**
+		 * @return the algorithm or <code>null</code>
+		 */
+		public static Algorithm fromByteValue(final byte byteValue) {
+			for (final Algorithm algorithm : values()) {
+				if (algorithm.byteValue == byteValue) {
+					return algorithm;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return a new (stateful, not thread-safe) codec
+		 */
+		Codec newCodec() {
+			return this == SNAPPY ? new SnappyCodec() : new DeflateCodec();
+		}
+	}
+
+	interface Codec {
+
+		/**
+		 * Compresses the readable bytes of <code>in</code> without modifying its reader-index.
+		 */
+		void compress(ByteBuf in, ByteBuf out);
+
+		/**
+		 * Decompresses the readable bytes of <code>in</code> into <code>out</code>, which must have a max-capacity of
+		 * <code>length</code>.
+		 */
+		void decompress(ByteBuf in, ByteBuf out, int length);
+
+		default void end() {}
+	}
+
+	static final class SnappyCodec implements Codec {
+		private final Snappy snappy = new Snappy();
+
+		@Override
+		public void compress(final ByteBuf in, final ByteBuf out) {
+			snappy.reset();
+			snappy.encode(in.duplicate(), out, in.readableBytes());
+		}
+
+		@Override
+		public void decompress(final ByteBuf in, final ByteBuf out, final int length) {
+			snappy.reset();
+			snappy.decode(in, out);
+			if (out.readableBytes() != length) {
+				throw new IllegalStateException("Uncompressed length=" + out.readableBytes() + " does not match expected length=" + length);
+			}
+		}
+	}
+
+	static final class DeflateCodec implements Codec {
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final Inflater inflater = new Inflater(true);
+
+		@Override
+		public void compress(final ByteBuf in, final ByteBuf out) {
+			deflater.reset();
+			if (in.hasArray()) {
+				deflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+			} else {
+				deflater.setInput(ByteBufUtil.getBytes(in));
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				out.ensureWritable(Math.max(64, in.readableBytes() >>> 2));
+				final int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+				out.writerIndex(out.writerIndex() + written);
+			}
+		}
+
+		@Override
+		public void decompress(final ByteBuf in, final ByteBuf out, final int length) {
+			inflater.reset();
+			if (in.hasArray()) {
+				inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+			} else {
+				inflater.setInput(ByteBufUtil.getBytes(in));
+			}
+			try {
+				out.ensureWritable(length);
+				while (!inflater.finished() && out.writerIndex() < length) {
+					final int written = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), length - out.writerIndex());
+					if (written == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					out.writerIndex(out.writerIndex() + written);
+				}
+			} catch (final DataFormatException e) {
+				throw new IllegalStateException("Invalid deflate-data: " + e.getMessage(), e);
+			}
+			if (!inflater.finished() || out.readableBytes() != length) {
+				throw new IllegalStateException("Uncompressed length does not match expected length=" + length);
+			}
+			in.skipBytes(in.readableBytes());
+		}
+
+		@Override
+		public void end() {
+			deflater.end();
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.util.internal.MathUtil;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead histogram of non-negative long values (e.g. nanoseconds or bytes).
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is divided into 16 sub-buckets, so a recorded value
+ * is reported with a relative error of at most 1/16. Recording is lock-free, allocation-free and may happen
+ * concurrently from several threads; reading while recording yields a (slightly) inconsistent but usable snapshot.
+ * <p>
+ * Count, sum and max are {@link LongAdder}/{@link LongAccumulator}s. An instance recorded to by one thread (e.g.
+ * per connection) has one set of buckets (7.5 KiB). An instance shared by several event-loops should be created with
+ * {@link #striped()}: its buckets are striped (every thread counts in the stripe selected by its id, so threads rarely
+ * update the same cache-line) at the cost of one set of buckets per stripe. Reading sums up the stripes.
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values < SUB_BUCKETS are counted exactly, every further power of two has SUB_BUCKETS buckets
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// a power of two, at most 16 (a stripe has 960 buckets, i.e. 7.5 KiB)
+	private static final int MAX_STRIPES = Math.min(MathUtil.findNextPositivePowerOfTwo(Runtime.getRuntime().availableProcessors()), 16);
+
+	private final int stripes;
+	// stripe after stripe
+	private final AtomicLongArray counts;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public Histogram() {
+		this(1);
+	}
+
+	private Histogram(final int stripes) {
+		this.stripes = stripes;
+		this.counts = new AtomicLongArray(stripes * BUCKETS);
+	}
+
+	/**
+	 * @return a histogram with one stripe per processor (at most 16), for recording from several threads
+	 */
+	public static Histogram striped() {
+		return new Histogram(MAX_STRIPES);
+	}
+
+	/**
+	 * Records a value, negative values are recorded as <code>0</code>.
+	 */
+	public void record(final long value) {
+		final long v = Math.max(value, 0);
+		counts.incrementAndGet(stripeOffset() + bucketIndex(v));
+		count.increment();
+		sum.add(v);
+		max.accumulate(v);
+	}
+
+	/**
+	 * Records a value measured by a caller that issues a new measurement every <code>expectedInterval</code> and waits
+	 * for each to complete (coordinated omission): if the value exceeds the interval, the measurements which would have
+	 * been issued while waiting are recorded too, with linearly decreasing values
+	 * (<code>value - expectedInterval</code>, <code>value - 2 * expectedInterval</code>, ...).
+	 *
+	 * @param expectedInterval interval between measurements in the unit of the value, <code>&lt;= 0</code> disables
+	 *        the correction
+	 */
+	public void recordWithExpectedInterval(final long value, final long expectedInterval) {
+		record(value);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+			record(missing);
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		final long c = count.sum();
+		return c == 0 ? 0 : (double) sum.sum() / c;
+	}
+
+	/**
+	 * @param percentile e.g. <code>99.9</code>
+	 * @return the (highest value of the bucket of the) value below which the given percentage of values fall,
+	 *         <code>0</code> if nothing was recorded
+	 */
+	public long getValueAtPercentile(final double percentile) {
+		final long total = count.sum();
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += bucketCount(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram[count=" + getCount() + ", mean=" + getMean() + ", p50=" + getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99) + ", p99.9="
+				+ getValueAtPercentile(99.9) + ", max=" + getMax() + "]";
+	}
+
+	private long bucketCount(final int bucketIndex) {
+		long bucketCount = 0;
+		for (int stripe = 0; stripe < stripes; stripe++) {
+			bucketCount += counts.get(stripe * BUCKETS + bucketIndex);
+		}
+		return bucketCount;
+	}
+
+	private int stripeOffset() {
+		if (stripes == 1) {
+			return 0;
+		}
+		// event-loops are long-living threads, so their (mixed) ids spread them over the stripes
+		final long id = Thread.currentThread().getId();
+		return (int) ((id ^ (id >>> 4)) & (stripes - 1)) * BUCKETS;
+	}
+
+	static int bucketIndex(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		// the SUB_BUCKET_BITS bits following the highest bit select the sub-bucket
+		final int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (shift * SUB_BUCKETS) + subBucket;
+	}
+
+	static long highestValue(final int bucketIndex) {
+		if (bucketIndex < SUB_BUCKETS) {
+			return bucketIndex;
+		}
+		final int shift = (bucketIndex - SUB_BUCKETS) / SUB_BUCKETS;
+		final long subBucket = (bucketIndex - SUB_BUCKETS) % SUB_BUCKETS;
+		final long lowest = (SUB_BUCKETS + subBucket) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
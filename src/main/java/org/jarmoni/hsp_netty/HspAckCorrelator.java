@@ -0,0 +1,288 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Recycler;
+import io.netty.util.collection.IntObjectHashMap;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.function.IntPredicate;
+
+/**
+ * Correlates outgoing {@link DataAckMessage}s with the {@link AckMessage}, {@link ErrorMessage} or
+ * {@link ErrorUndefMessage} answering them.
+ * <p>
+ * The handler assigns the message-id of every outgoing {@link DataAckMessage} (ids wrap around and ids still in
+ * flight are skipped) and keeps the message in an int-keyed open-addressing table until it is answered. Answers are
+ * passed to the {@link AckListener} and are not propagated further; answers with an unknown message-id are passed on.
+ * At most <code>maxInFlight</code> messages may be unanswered, further writes are failed with
+ * {@link InFlightWindowExceededException}. A message whose write fails further down the pipeline (e.g. in
+ * {@link HspFlowControlHandler} or {@link HspJournalHandler}) is removed again and passed to
+ * {@link AckListener#aborted(DataAckMessage, Throwable)}. If no free message-id is found within
+ * {@value #MAX_MESSAGE_ID_PROBES} probes, the write is failed with {@link MessageIdsExhaustedException}.
+ * <p>
+ * Apart from the exceptional cases (and a promise if the write is given a void one) no objects are allocated. All
+ * methods must be called from the event-loop of the channel.
+ */
+public class HspAckCorrelator extends ChannelDuplexHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspAckCorrelator.class);
+
+	// bounds the search for a free message-id, so a predicate rejecting (nearly) every id does not block the event-loop
+	static final int MAX_MESSAGE_ID_PROBES = 1 << 16;
+
+	private final int maxInFlight;
+	private final AckListener listener;
+	private final IntObjectHashMap<DataAckMessage> inFlight;
+	private final IntPredicate messageIdInUse;
+	private int nextMessageId;
+
+	public HspAckCorrelator(final int maxInFlight, final AckListener listener) {
+		this(maxInFlight, listener, id -> false);
+	}
+
+	/**
+	 * @param messageIdInUse ids (besides the ones in flight) which must not be assigned, e.g.
+	 *            <code>journal::contains</code> for the unacked entries of an {@link HspJournal} replayed from a
+	 *            previous connection
+	 */
+	public HspAckCorrelator(final int maxInFlight, final AckListener listener, final IntPredicate messageIdInUse) {
+		this(maxInFlight, 0, listener, messageIdInUse);
+	}
+
+	HspAckCorrelator(final int maxInFlight, final int firstMessageId, final AckListener listener) {
+		this(maxInFlight, firstMessageId, listener, id -> false);
+	}
+
+	HspAckCorrelator(final int maxInFlight, final int firstMessageId, final AckListener listener, final IntPredicate messageIdInUse) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be > 0. Was: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		this.listener = listener;
+		this.nextMessageId = firstMessageId;
+		this.messageIdInUse = messageIdInUse;
+		// with the default load-factor of 0.5 the table never has to grow
+		this.inFlight = new IntObjectHashMap<>(maxInFlight * 2);
+		LOG.debug("Initialized with maxInFlight={}", maxInFlight);
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (!(msg instanceof DataAckMessage)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final DataAckMessage dataAckMessage = (DataAckMessage) msg;
+		if (inFlight.size() >= maxInFlight) {
+			dataAckMessage.release();
+			promise.setFailure(new InFlightWindowExceededException(maxInFlight));
+			return;
+		}
+		if (!skipMessageIdsInUse()) {
+			dataAckMessage.release();
+			promise.setFailure(new MessageIdsExhaustedException(MAX_MESSAGE_ID_PROBES));
+			return;
+		}
+		final int messageId = nextMessageId++;
+		dataAckMessage.setMessageId(messageId);
+		inFlight.put(messageId, dataAckMessage);
+		// a void promise cannot be listened to
+		ctx.write(dataAckMessage, promise.unvoid()).addListener(WriteListener.newInstance(this, dataAckMessage));
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof AckMessage) {
+			final AckMessage ackMessage = (AckMessage) msg;
+			final DataAckMessage request = inFlight.remove(ackMessage.getMessageId());
+			if (request != null) {
+				ackMessage.release();
+				listener.acked(request);
+				return;
+			}
+		} else if (msg instanceof ErrorMessage) {
+			final ErrorMessage errorMessage = (ErrorMessage) msg;
+			final DataAckMessage request = inFlight.remove(errorMessage.getMessageId());
+			if (request != null) {
+				try {
+					listener.failed(request, errorMessage);
+				} finally {
+					errorMessage.release();
+				}
+				return;
+			}
+		} else if (msg instanceof ErrorUndefMessage) {
+			final ErrorUndefMessage errorUndefMessage = (ErrorUndefMessage) msg;
+			final DataAckMessage request = inFlight.remove(errorUndefMessage.getMessageId());
+			if (request != null) {
+				try {
+					listener.failed(request, errorUndefMessage);
+				} finally {
+					errorUndefMessage.release();
+				}
+				return;
+			}
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		abortAll(new ClosedChannelException());
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		abortAll(new IllegalStateException("Handler removed"));
+	}
+
+	/**
+	 * Stops waiting for the answer of the message with the given id (e.g. after a timeout).
+	 *
+	 * @return the message or <code>null</code> if it is not in flight (anymore)
+	 */
+	public DataAckMessage cancel(final int messageId) {
+		return inFlight.remove(messageId);
+	}
+
+	/**
+	 * Stops waiting for the answer of the given message.
+	 *
+	 * @return <code>true</code> if the message was in flight
+	 */
+	public boolean cancel(final DataAckMessage request) {
+		if (inFlight.get(request.getMessageId()) != request) {
+			return false;
+		}
+		inFlight.remove(request.getMessageId());
+		return true;
+	}
+
+	/**
+	 * @return number of unanswered messages
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Advances <code>nextMessageId</code> to an id which is not in use.
+	 *
+	 * @return <code>false</code> if none was found within {@link #MAX_MESSAGE_ID_PROBES} probes
+	 */
+	private boolean skipMessageIdsInUse() {
+		// after a wrap-around the id of a (very) old message may still be in use
+		for (int probes = 0; probes < MAX_MESSAGE_ID_PROBES; probes++) {
+			if (!inFlight.containsKey(nextMessageId) && !messageIdInUse.test(nextMessageId)) {
+				return true;
+			}
+			nextMessageId++;
+		}
+		return false;
+	}
+
+	private void writeFailed(final DataAckMessage request, final Throwable cause) {
+		// the message may have been answered (or cancelled) in the meantime
+		if (cancel(request)) {
+			LOG.debug("Write of messageId={} failed", request.getMessageId(), cause);
+			listener.aborted(request, cause);
+		}
+	}
+
+	private void abortAll(final Throwable cause) {
+		if (inFlight.isEmpty()) {
+			return;
+		}
+		final DataAckMessage[] requests = inFlight.values().toArray(new DataAckMessage[0]);
+		inFlight.clear();
+		for (final DataAckMessage request : requests) {
+			listener.aborted(request, cause);
+		}
+	}
+
+	/**
+	 * Receives the outcome of every {@link DataAckMessage} written through {@link HspAckCorrelator}. The listener
+	 * gets the written message back and decides about its payload (e.g. releases it). Answers passed to the listener
+	 * are released after the listener returned.
+	 */
+	public interface AckListener {
+
+		void acked(DataAckMessage request);
+
+		/**
+		 * @param error {@link ErrorMessage} or {@link ErrorUndefMessage}
+		 */
+		void failed(DataAckMessage request, HspMessage error);
+
+		/**
+		 * The message will not be answered, e.g. because the channel was closed or the write failed. After a failed
+		 * write the message has usually been released already by the handler which failed it, so a listener releasing
+		 * the payload has to guard against releasing it twice.
+		 */
+		void aborted(DataAckMessage request, Throwable cause);
+	}
+
+	private static final class WriteListener implements ChannelFutureListener {
+		private static final Recycler<WriteListener> RECYCLER = new Recycler<WriteListener>() {
+			@Override
+			protected WriteListener newObject(final Handle<WriteListener> handle) {
+				return new WriteListener(handle);
+			}
+		};
+
+		private final Recycler.Handle<WriteListener> handle;
+		private HspAckCorrelator owner;
+		private DataAckMessage request;
+
+		private WriteListener(final Recycler.Handle<WriteListener> handle) {
+			this.handle = handle;
+		}
+
+		static WriteListener newInstance(final HspAckCorrelator owner, final DataAckMessage request) {
+			final WriteListener listener = RECYCLER.get();
+			listener.owner = owner;
+			listener.request = request;
+			return listener;
+		}
+
+		@Override
+		public void operationComplete(final ChannelFuture future) {
+			final HspAckCorrelator o = owner;
+			final DataAckMessage r = request;
+			owner = null;
+			request = null;
+			handle.recycle(this);
+			if (!future.isSuccess()) {
+				o.writeFailed(r, future.cause());
+			}
+		}
+	}
+
+	public static class InFlightWindowExceededException extends RuntimeException {
+		private static final long serialVersionUID = 2797421094003370318L;
+
+		public InFlightWindowExceededException(final int maxInFlight) {
+			super("Max. number of messages in flight reached. max-in-flight=" + maxInFlight);
+		}
+	}
+
+	public static class MessageIdsExhaustedException extends RuntimeException {
+		private static final long serialVersionUID = -6514372958104726417L;
+
+		public MessageIdsExhaustedException(final int probes) {
+			super("No free message-id found. probes=" + probes);
+		}
+	}
+}
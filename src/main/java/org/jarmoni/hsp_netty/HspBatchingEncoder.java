@@ -0,0 +1,329 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.PromiseNotifier;
+import org.jarmoni.hsp_netty.Messages.HspMessage;
+import org.jarmoni.hsp_netty.Messages.PayloadMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alternative to {@link HspEncoder} for bursts of small messages.
+ * <p>
+ * Consecutive messages are encoded into one (pooled) batch-buffer which is written when it cannot take the next
+ * message or when the channel is flushed. Messages which do not fit into an empty batch are encoded into a buffer
+ * of their own. Optionally flushes are consolidated: a flush is then delayed by at most <code>maxFlushDelay</code>,
+ * so that several flushes within this period result in a single write to the socket. A pending flush is executed
+ * immediately when a batch gets full.
+ * <p>
+ * Payloads of at least <code>zeroCopyThreshold</code> bytes are not copied: the header of the frame is appended to
+ * the batch, the batch (up to and including this header) is written as a slice and a retained duplicate of the
+ * payload is written behind it. The remaining capacity of the batch-buffer is used for the following frames. On flush
+ * the transport passes all these buffers to a single gathering write (see
+ * {@link io.netty.channel.ChannelOutboundBuffer#nioBuffers()}, <code>writev</code> with native epoll), so mixed
+ * traffic of small and large frames costs one syscall and no copies of large payloads.
+ * <p>
+ * The counters exposed by this handler (batches, frames, bytes, flushes) are meant for tuning
+ * <code>maxBatchBytes</code>, <code>maxFlushDelay</code> and <code>zeroCopyThreshold</code> for throughput vs
+ * latency.
+ */
+public class HspBatchingEncoder extends ChannelOutboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspBatchingEncoder.class);
+
+	private static final int MAX_BATCH_BYTES_DEFAULT = 8192;
+
+	private final int maxBatchBytes;
+	private final long maxFlushDelayNanos;
+	private final int zeroCopyThreshold;
+	private final HspMetrics metrics;
+
+	private ChannelHandlerContext ctx;
+	private ByteBuf batch;
+	private int batchFrames;
+	private final List<ChannelPromise> batchPromises = new ArrayList<>();
+	private Future<?> scheduledFlush;
+	private final Runnable flushTask;
+
+	// written by the event-loop only (lazySet, no store-fence per frame), read by the getters from any thread
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong frameCount = new AtomicLong();
+	private final AtomicLong writtenBytes = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong flushRequestCount = new AtomicLong();
+	private final AtomicLong zeroCopyCount = new AtomicLong();
+	private long unflushedBytes;
+
+	public HspBatchingEncoder() {
+		this(MAX_BATCH_BYTES_DEFAULT, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param maxBatchBytes capacity of a batch-buffer
+	 * @param maxFlushDelay max. delay of a flush, <code>0</code> flushes immediately
+	 */
+	public HspBatchingEncoder(final int maxBatchBytes, final long maxFlushDelay, final TimeUnit unit) {
+		this(maxBatchBytes, maxFlushDelay, unit, HspMetrics.NOOP);
+	}
+
+	/**
+	 * @param metrics receives an event for every encoded frame
+	 */
+	public HspBatchingEncoder(final int maxBatchBytes, final long maxFlushDelay, final TimeUnit unit, final HspMetrics metrics) {
+		this(maxBatchBytes, maxFlushDelay, unit, Integer.MAX_VALUE, metrics);
+	}
+
+	/**
+	 * @param zeroCopyThreshold payloads of {@link PayloadMessage}s with at least this number of readable bytes are
+	 *            written without copying. The reference-count and the reader-index of the payload held by the message
+	 *            stay untouched.
+	 */
+	public HspBatchingEncoder(final int maxBatchBytes, final long maxFlushDelay, final TimeUnit unit, final int zeroCopyThreshold, final HspMetrics metrics) {
+		if (maxBatchBytes <= 0) {
+			throw new IllegalArgumentException("maxBatchBytes must be > 0. Was: " + maxBatchBytes);
+		}
+		if (maxFlushDelay < 0) {
+			throw new IllegalArgumentException("maxFlushDelay must be >= 0. Was: " + maxFlushDelay);
+		}
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxFlushDelayNanos = unit.toNanos(maxFlushDelay);
+		this.zeroCopyThreshold = zeroCopyThreshold;
+		this.metrics = metrics;
+		this.flushTask = () -> {
+			scheduledFlush = null;
+			doFlush(ctx);
+		};
+		LOG.debug("Initialized with maxBatchBytes={}, maxFlushDelayNanos={}, zeroCopyThreshold={}", maxBatchBytes, maxFlushDelayNanos, zeroCopyThreshold);
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (!(msg instanceof HspMessage)) {
+			writeBatch(ctx);
+			ctx.write(msg, promise);
+			return;
+		}
+		LOG.debug("Receiving bytes...");
+		final HspMessage hspMessage = (HspMessage) msg;
+		final int frameBytes = frameBytes(hspMessage);
+		metrics.frameEncoded(hspMessage.getCommandType(), frameBytes);
+		if (isZeroCopy(hspMessage)) {
+			writeZeroCopy(ctx, (PayloadMessage) hspMessage, promise);
+			return;
+		}
+		if (batch != null && batch.writableBytes() < frameBytes) {
+			writeBatch(ctx);
+		}
+		if (frameBytes > maxBatchBytes) {
+			writeFrame(ctx, hspMessage, frameBytes, promise);
+			return;
+		}
+		if (batch == null) {
+			batch = ctx.alloc().ioBuffer(maxBatchBytes, maxBatchBytes);
+		}
+		hspMessage.toBytes(batch);
+		batchFrames++;
+		if (!promise.isVoid()) {
+			batchPromises.add(promise);
+		}
+		if (!batch.isWritable()) {
+			writeBatch(ctx);
+		}
+	}
+
+	@Override
+	public void flush(final ChannelHandlerContext ctx) throws Exception {
+		flushRequestCount.lazySet(flushRequestCount.get() + 1);
+		if (maxFlushDelayNanos == 0) {
+			doFlush(ctx);
+		} else if (scheduledFlush == null) {
+			scheduledFlush = ctx.executor().schedule(flushTask, maxFlushDelayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public void close(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+		doFlush(ctx);
+		ctx.close(promise);
+	}
+
+	@Override
+	public void disconnect(final ChannelHandlerContext ctx, final ChannelPromise promise) throws Exception {
+		doFlush(ctx);
+		ctx.disconnect(promise);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		if (batch != null || scheduledFlush != null) {
+			doFlush(ctx);
+		}
+	}
+
+	/**
+	 * @return number of (batch-) buffers written
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * @return number of frames written as part of a batch
+	 */
+	public long getFrameCount() {
+		return frameCount.get();
+	}
+
+	/**
+	 * @return number of bytes written, including frames which were not batched
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes.get();
+	}
+
+	/**
+	 * @return number of flushes passed to the next handler (i.e. roughly the number of syscalls)
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	/**
+	 * @return number of flushes requested by previous handlers
+	 */
+	public long getFlushRequestCount() {
+		return flushRequestCount.get();
+	}
+
+	/**
+	 * @return number of frames whose payload was written without copying (their headers are counted as part of a
+	 *         batch)
+	 */
+	public long getZeroCopyCount() {
+		return zeroCopyCount.get();
+	}
+
+	private void doFlush(final ChannelHandlerContext ctx) {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		writeBatch(ctx);
+		flushCount.lazySet(flushCount.get() + 1);
+		unflushedBytes = 0;
+		ctx.flush();
+	}
+
+	private void writeFrame(final ChannelHandlerContext ctx, final HspMessage msg, final int frameBytes, final ChannelPromise promise) {
+		final ByteBuf frame = ctx.alloc().ioBuffer(frameBytes);
+		try {
+			msg.toBytes(frame);
+		} catch (final Throwable t) {
+			frame.release();
+			throw t;
+		}
+		written(frameBytes);
+		ctx.write(frame, promise);
+		flushIfDue(ctx);
+	}
+
+	private boolean isZeroCopy(final HspMessage msg) {
+		return msg instanceof PayloadMessage && ((PayloadMessage) msg).getPayload().readableBytes() >= zeroCopyThreshold
+				&& ((PayloadMessage) msg).headerLength() <= maxBatchBytes;
+	}
+
+	private void writeZeroCopy(final ChannelHandlerContext ctx, final PayloadMessage msg, final ChannelPromise promise) {
+		if (batch != null && batch.writableBytes() < msg.headerLength()) {
+			writeBatch(ctx);
+		}
+		if (batch == null) {
+			batch = ctx.alloc().ioBuffer(maxBatchBytes, maxBatchBytes);
+		}
+		msg.headerToBytes(batch);
+		batchFrames++;
+		writeBatchSlice(ctx);
+		final ByteBuf payload = msg.getPayload().retainedDuplicate();
+		zeroCopyCount.lazySet(zeroCopyCount.get() + 1);
+		written(payload.readableBytes());
+		// completes after the header (and all frames before) as writes complete in order
+		ctx.write(payload, promise);
+		flushIfDue(ctx);
+	}
+
+	/**
+	 * Writes the readable part of the batch as a slice and keeps the remaining capacity for the following frames.
+	 */
+	private void writeBatchSlice(final ChannelHandlerContext ctx) {
+		if (!batch.isWritable()) {
+			// nothing left to share
+			final ByteBuf buf = batch;
+			batch = null;
+			writeBatchBuffer(ctx, buf);
+			return;
+		}
+		writeBatchBuffer(ctx, batch.readRetainedSlice(batch.readableBytes()));
+	}
+
+	private void writeBatch(final ChannelHandlerContext ctx) {
+		if (batch == null) {
+			return;
+		}
+		final ByteBuf buf = batch;
+		batch = null;
+		if (!buf.isReadable()) {
+			// the content has already been written as slice(s)
+			buf.release();
+			return;
+		}
+		writeBatchBuffer(ctx, buf);
+		flushIfDue(ctx);
+	}
+
+	private void writeBatchBuffer(final ChannelHandlerContext ctx, final ByteBuf buf) {
+		batchCount.lazySet(batchCount.get() + 1);
+		frameCount.lazySet(frameCount.get() + batchFrames);
+		batchFrames = 0;
+		written(buf.readableBytes());
+		if (batchPromises.isEmpty()) {
+			ctx.write(buf, ctx.voidPromise());
+		} else {
+			final ChannelPromise[] promises = batchPromises.toArray(new ChannelPromise[0]);
+			batchPromises.clear();
+			ctx.write(buf).addListener(new PromiseNotifier<>(promises));
+		}
+	}
+
+	private void written(final int bytes) {
+		writtenBytes.lazySet(writtenBytes.get() + bytes);
+		unflushedBytes += bytes;
+	}
+
+	private void flushIfDue(final ChannelHandlerContext ctx) {
+		// a consolidated flush must not wait once a batch worth of bytes is pending
+		if (scheduledFlush != null && unflushedBytes >= maxBatchBytes) {
+			doFlush(ctx);
+		}
+	}
+
+	static int frameBytes(final HspMessage msg) {
+		if (msg instanceof PayloadMessage) {
+			final PayloadMessage payloadMessage = (PayloadMessage) msg;
+			return payloadMessage.headerLength() + payloadMessage.getPayload().readableBytes();
+		}
+		return msg.getCommandType().headerLength();
+	}
+}
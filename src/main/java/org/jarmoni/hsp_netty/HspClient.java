@@ -0,0 +1,263 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.jarmoni.hsp_netty.HspAckCorrelator.AckListener;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request/response-API on top of a single HSP-channel.
+ * <p>
+ * {@link #send(short, ByteBuf)} writes a {@link DataAckMessage} and returns a future which is completed when the
+ * peer answers it. Any number of requests (up to <code>maxInFlight</code>) may be outstanding at the same time, so
+ * requests are pipelined on the connection. The channel must already contain the codec (e.g. {@link HspDecoder} and
+ * {@link HspEncoder}); the client adds an {@link HspAckCorrelator} to the end of its pipeline.
+ * <p>
+ * Futures are completed on the event-loop of the channel, so dependent actions should be cheap or use the async
+ * variants of {@link CompletableFuture}.
+ */
+public class HspClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspClient.class);
+
+	private static final int MAX_IN_FLIGHT_DEFAULT = 1024;
+	private static final long TIMEOUT_MILLIS_DEFAULT = 30_000;
+
+	// HashedWheelTimer is expensive (one thread per instance), so all clients share one by default
+	private static final class DefaultTimerHolder {
+		private static final Timer TIMER = new HashedWheelTimer(new DefaultThreadFactory("hsp-client-timer", true), 10, TimeUnit.MILLISECONDS);
+	}
+
+	private final Channel channel;
+	private final HspAckCorrelator correlator;
+	private final Timer timer;
+	private final long timeoutNanos;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile long lastSendNanos = System.nanoTime();
+
+	public HspClient(final Channel channel) {
+		this(channel, MAX_IN_FLIGHT_DEFAULT, TIMEOUT_MILLIS_DEFAULT, TimeUnit.MILLISECONDS, DefaultTimerHolder.TIMER);
+	}
+
+	/**
+	 * @param maxInFlight max. number of outstanding requests, further requests fail
+	 * @param timeout time after which a request is failed with {@link TimeoutException}
+	 * @param timer drives the timeouts (usually a {@link HashedWheelTimer} shared by several clients)
+	 */
+	public HspClient(final Channel channel, final int maxInFlight, final long timeout, final TimeUnit unit, final Timer timer) {
+		this.channel = channel;
+		this.timer = timer;
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.correlator = new HspAckCorrelator(maxInFlight, new ResponseListener());
+		channel.pipeline().addLast(correlator);
+		LOG.debug("Initialized with maxInFlight={}, timeoutNanos={}", maxInFlight, timeoutNanos);
+	}
+
+	/**
+	 * Sends the payload within a {@link DataAckMessage}. The client takes over the ownership of the payload and
+	 * releases it when the request is completed and its write has completed. May be called from any thread.
+	 *
+	 * @return future completed with the answer of the peer or exceptionally if the request could not be written, was
+	 *         not answered within the timeout or the channel was closed
+	 */
+	public CompletableFuture<AckResult> send(final short payloadType, final ByteBuf payload) {
+		final Request request = new Request(payloadType, payload);
+		inFlight.incrementAndGet();
+		lastSendNanos = System.nanoTime();
+		request.timeout = timer.newTimeout(request, timeoutNanos, TimeUnit.NANOSECONDS);
+		channel.writeAndFlush(request).addListener(request);
+		return request.future;
+	}
+
+	static Timer defaultTimer() {
+		return DefaultTimerHolder.TIMER;
+	}
+
+	public Channel channel() {
+		return channel;
+	}
+
+	/**
+	 * @return number of requests which are not completed yet (including requests not written yet)
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of the last {@link #send(short, ByteBuf)} (or of the creation)
+	 */
+	public long lastSendNanos() {
+		return lastSendNanos;
+	}
+
+	public ChannelFuture close() {
+		return channel.close();
+	}
+
+	private class Request extends DataAckMessage implements ChannelFutureListener, TimerTask, Runnable {
+		private final CompletableFuture<AckResult> future = new CompletableFuture<>();
+		private volatile Timeout timeout;
+		private boolean released;
+		private boolean done;
+		private boolean writeCompleted;
+
+		Request(final short payloadType, final ByteBuf payload) {
+			super(-1, payloadType, payload);
+		}
+
+		@Override
+		public void operationComplete(final ChannelFuture writeFuture) {
+			writeCompleted = true;
+			if (!writeFuture.isSuccess()) {
+				correlator.cancel(this);
+				completeExceptionally(writeFuture.cause());
+			}
+			if (done) {
+				// completed (e.g. timed out) while the frame was still waiting to be written
+				release();
+			}
+		}
+
+		@Override
+		public void run(final Timeout t) {
+			channel.eventLoop().execute(this);
+		}
+
+		@Override
+		public void run() {
+			// the request may still be waiting for the write (and has no id yet) or it is in flight
+			correlator.cancel(this);
+			completeExceptionally(new TimeoutException("Request not answered within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms"));
+		}
+
+		@Override
+		public void release() {
+			// may be called by the correlator and by this client
+			if (!released) {
+				released = true;
+				super.release();
+			}
+		}
+
+		void complete(final AckResult result) {
+			done();
+			future.complete(result);
+		}
+
+		void completeExceptionally(final Throwable cause) {
+			done();
+			future.completeExceptionally(cause);
+		}
+
+		private void done() {
+			// called on the event-loop only
+			if (done) {
+				return;
+			}
+			done = true;
+			inFlight.decrementAndGet();
+			// as long as the write is pending, the frame may still be queued in front of the encoder
+			if (writeCompleted) {
+				release();
+			}
+			final Timeout t = timeout;
+			if (t != null) {
+				t.cancel();
+			}
+		}
+	}
+
+	private static class ResponseListener implements AckListener {
+
+		@Override
+		public void acked(final DataAckMessage request) {
+			((Request) request).complete(new AckResult(request.getMessageId(), HspCommandType.AckCommand, (short) 0, Unpooled.EMPTY_BUFFER));
+		}
+
+		@Override
+		public void failed(final DataAckMessage request, final HspMessage error) {
+			final AckResult result;
+			if (error instanceof ErrorMessage) {
+				final ErrorMessage errorMessage = (ErrorMessage) error;
+				result = new AckResult(request.getMessageId(), HspCommandType.ErrorCommand, errorMessage.getErrorType(), Unpooled.copiedBuffer(errorMessage.getPayload()));
+			} else {
+				result = new AckResult(request.getMessageId(), HspCommandType.ErrorUndefCommand, (short) 0, Unpooled.EMPTY_BUFFER);
+			}
+			((Request) request).complete(result);
+		}
+
+		@Override
+		public void aborted(final DataAckMessage request, final Throwable cause) {
+			((Request) request).completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Answer of the peer to a request.
+	 */
+	public static class AckResult {
+		private final int messageId;
+		private final HspCommandType commandType;
+		private final short errorType;
+		private final ByteBuf errorPayload;
+
+		public AckResult(final int messageId, final HspCommandType commandType, final short errorType, final ByteBuf errorPayload) {
+			this.messageId = messageId;
+			this.commandType = commandType;
+			this.errorType = errorType;
+			this.errorPayload = errorPayload;
+		}
+
+		public int getMessageId() {
+			return messageId;
+		}
+
+		/**
+		 * @return {@link HspCommandType#AckCommand}, {@link HspCommandType#ErrorCommand} or
+		 *         {@link HspCommandType#ErrorUndefCommand}
+		 */
+		public HspCommandType getCommandType() {
+			return commandType;
+		}
+
+		public boolean isAcked() {
+			return commandType == HspCommandType.AckCommand;
+		}
+
+		/**
+		 * @return error-type of an {@link ErrorMessage}, <code>0</code> otherwise
+		 */
+		public short getErrorType() {
+			return errorType;
+		}
+
+		/**
+		 * @return (unpooled copy of the) payload of an {@link ErrorMessage}, empty otherwise
+		 */
+		public ByteBuf getErrorPayload() {
+			return errorPayload;
+		}
+
+		@Override
+		public String toString() {
+			return "AckResult[messageId=" + messageId + ", commandType=" + commandType + ", errorType=" + errorType + "]";
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import org.jarmoni.hsp_netty.HspClient.AckResult;
+import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of {@link HspClient}s spread over one or more endpoints (e.g. several ports of a multi-threaded server).
+ * <p>
+ * Every {@link #send(short, ByteBuf)} uses the connection with the fewest requests in flight. The pool keeps
+ * <code>minSize</code> connections open and grows up to <code>maxSize</code> while every connection has at least
+ * <code>growThreshold</code> requests in flight, one connection at a time. When the load drops, connections above
+ * <code>minSize</code> which had nothing to send for <code>idleTimeout</code> are closed again (the least busy
+ * connection is the oldest one in case of a tie, so surplus connections run idle first). A connect started to grow the
+ * pool is not retried when it fails. Connections are health-checked by an {@link HspKeepAliveHandler} (pings while
+ * idle, close after missed pongs) and closed on an {@link HspDecoderException}, as the decoder discards everything
+ * afterwards. Closed connections are removed and replaced (after <code>reconnectDelay</code> if the
+ * connect fails).
+ */
+public class HspClientPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspClientPool.class);
+
+	private final HspConnector connector;
+	private final List<SocketAddress> endpoints;
+	private final int minSize;
+	private final int maxSize;
+	private final int growThreshold;
+	private final long pingIntervalNanos;
+	private final int maxMissedPongs;
+	private final long reconnectDelayNanos;
+	private final long idleTimeoutNanos;
+
+	private final CopyOnWriteArrayList<HspClient> clients = new CopyOnWriteArrayList<>();
+	// open and pending connections
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger nextEndpoint = new AtomicInteger();
+	// a connect started by grow() is pending, it is not in clients yet
+	private final AtomicBoolean growing = new AtomicBoolean();
+	private volatile boolean closed;
+	private volatile ScheduledFuture<?> shrinkFuture;
+
+	private HspClientPool(final Builder builder) {
+		this.connector = builder.connector;
+		this.endpoints = new ArrayList<>(builder.endpoints);
+		this.minSize = builder.minSize;
+		this.maxSize = builder.maxSize;
+		this.growThreshold = builder.growThreshold;
+		this.pingIntervalNanos = builder.pingIntervalNanos;
+		this.maxMissedPongs = builder.maxMissedPongs;
+		this.reconnectDelayNanos = builder.reconnectDelayNanos;
+		this.idleTimeoutNanos = builder.idleTimeoutNanos;
+		LOG.debug("Initialized with endpoints={}, minSize={}, maxSize={}, growThreshold={}, idleTimeoutNanos={}", endpoints, minSize, maxSize, growThreshold,
+				idleTimeoutNanos);
+	}
+
+	public static Builder builder(final HspConnector connector) {
+		return new Builder(connector);
+	}
+
+	/**
+	 * Sends the payload on the connection with the fewest requests in flight (see
+	 * {@link HspClient#send(short, ByteBuf)}).
+	 *
+	 * @return future failed with {@link ClosedChannelException} if no connection is open
+	 */
+	public CompletableFuture<AckResult> send(final short payloadType, final ByteBuf payload) {
+		final HspClient client = leastInFlight();
+		if (client == null) {
+			payload.release();
+			final CompletableFuture<AckResult> future = new CompletableFuture<>();
+			future.completeExceptionally(new ClosedChannelException());
+			return future;
+		}
+		if (client.inFlight() >= growThreshold) {
+			grow();
+		}
+		return client.send(payloadType, payload);
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * @return requests in flight over all connections (approximation)
+	 */
+	public int inFlight() {
+		int inFlight = 0;
+		for (final HspClient client : clients) {
+			inFlight += client.inFlight();
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Closes all connections, the connector stays open.
+	 */
+	public void close() {
+		closed = true;
+		final ScheduledFuture<?> f = shrinkFuture;
+		if (f != null) {
+			f.cancel(false);
+		}
+		for (final HspClient client : clients) {
+			client.close();
+		}
+	}
+
+	private HspClient leastInFlight() {
+		HspClient least = null;
+		int leastInFlight = Integer.MAX_VALUE;
+		for (final HspClient client : clients) {
+			final int inFlight = client.inFlight();
+			if (inFlight < leastInFlight && client.channel().isActive()) {
+				least = client;
+				leastInFlight = inFlight;
+			}
+		}
+		return least;
+	}
+
+	private void grow() {
+		if (!growing.compareAndSet(false, true)) {
+			return;
+		}
+		int current;
+		while ((current = size.get()) < maxSize) {
+			if (size.compareAndSet(current, current + 1)) {
+				LOG.debug("Growing pool to size={}", current + 1);
+				// cleared after the new client was added (or the connect failed)
+				connect().whenComplete((client, cause) -> growing.set(false));
+				return;
+			}
+		}
+		growing.set(false);
+	}
+
+	private void shrink() {
+		final long now = System.nanoTime();
+		int surplus = clients.size() - minSize;
+		// the newest connections are the least used ones
+		for (int i = clients.size() - 1; i >= 0 && surplus > 0; i--) {
+			final HspClient client;
+			try {
+				client = clients.get(i);
+			} catch (final IndexOutOfBoundsException e) {
+				// removed concurrently
+				continue;
+			}
+			if (client.inFlight() == 0 && now - client.lastSendNanos() >= idleTimeoutNanos && clients.remove(client)) {
+				LOG.debug("Shrinking pool, closing idle channel={}", client.channel());
+				surplus--;
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Gives up the slot of a connection (e.g. a failed connect) if the pool is above <code>minSize</code>.
+	 */
+	private boolean dropSurplusSlot() {
+		int current;
+		while ((current = size.get()) > minSize) {
+			if (size.compareAndSet(current, current - 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private CompletableFuture<HspClient> connect() {
+		final SocketAddress endpoint = endpoints.get(Math.floorMod(nextEndpoint.getAndIncrement(), endpoints.size()));
+		return connector.connectClient(endpoint).whenComplete((client, cause) -> {
+			if (cause != null) {
+				LOG.warn("Connecting to endpoint={} failed: {}", endpoint, cause.toString());
+				scheduleReconnect();
+				return;
+			}
+			if (closed) {
+				client.close();
+				return;
+			}
+			final Channel channel = client.channel();
+			channel.pipeline().addLast(new HspKeepAliveHandler(pingIntervalNanos, TimeUnit.NANOSECONDS, maxMissedPongs), new DecoderErrorHandler());
+			clients.add(client);
+			channel.closeFuture().addListener(f -> {
+				clients.remove(client);
+				size.decrementAndGet();
+				if (!closed && size.get() < minSize) {
+					size.incrementAndGet();
+					connect();
+				}
+			});
+		});
+	}
+
+	private void scheduleReconnect() {
+		if (closed) {
+			size.decrementAndGet();
+			return;
+		}
+		if (dropSurplusSlot()) {
+			// the connection was not needed to keep minSize, the next grow tries again
+			return;
+		}
+		// the connector's event-loops outlive the pool's connections
+		connector.executor().schedule(this::connect, reconnectDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return number of open and pending connections
+	 */
+	int slots() {
+		return size.get();
+	}
+
+	private CompletableFuture<HspClientPool> start() {
+		if (maxSize > minSize) {
+			final long period = Math.max(idleTimeoutNanos / 2, 1);
+			shrinkFuture = connector.executor().scheduleWithFixedDelay(this::shrink, period, period, TimeUnit.NANOSECONDS);
+		}
+		final CompletableFuture<?>[] connects = new CompletableFuture<?>[minSize];
+		for (int i = 0; i < minSize; i++) {
+			size.incrementAndGet();
+			connects[i] = connect();
+		}
+		final CompletableFuture<HspClientPool> future = new CompletableFuture<>();
+		CompletableFuture.allOf(connects).whenComplete((v, cause) -> {
+			if (clients.isEmpty()) {
+				close();
+				future.completeExceptionally(cause != null ? cause : new ClosedChannelException());
+			} else {
+				future.complete(this);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Closes the connection on an {@link HspDecoderException}, the pool replaces it.
+	 */
+	private static class DecoderErrorHandler extends ChannelInboundHandlerAdapter {
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+			final Throwable t = cause instanceof DecoderException && cause.getCause() != null ? cause.getCause() : cause;
+			if (t instanceof HspDecoderException) {
+				LOG.warn("Closing channel={} after decoder-error: {}", ctx.channel(), t.getMessage());
+				ctx.close();
+				return;
+			}
+			ctx.fireExceptionCaught(cause);
+		}
+	}
+
+	public static class Builder {
+		private final HspConnector connector;
+		private List<SocketAddress> endpoints = new ArrayList<>();
+		private int minSize = 1;
+		private int maxSize = 1;
+		private int growThreshold = Integer.MAX_VALUE;
+		private long pingIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+		private int maxMissedPongs = 3;
+		private long reconnectDelayNanos = TimeUnit.SECONDS.toNanos(1);
+		private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+		private Builder(final HspConnector connector) {
+			this.connector = connector;
+		}
+
+		/**
+		 * @param endpoints connections are distributed round-robin over the endpoints
+		 */
+		public Builder endpoints(final SocketAddress... endpoints) {
+			this.endpoints = Arrays.asList(endpoints);
+			return this;
+		}
+
+		/**
+		 * Fixed size.
+		 */
+		public Builder size(final int size) {
+			return size(size, size, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Elastic size.
+		 *
+		 * @param growThreshold a connection is added when the least busy connection has this number of requests in
+		 *            flight
+		 */
+		public Builder size(final int minSize, final int maxSize, final int growThreshold) {
+			if (minSize <= 0 || maxSize < minSize) {
+				throw new IllegalArgumentException("Required: 0 < minSize <= maxSize. Was: minSize=" + minSize + ", maxSize=" + maxSize);
+			}
+			this.minSize = minSize;
+			this.maxSize = maxSize;
+			this.growThreshold = growThreshold;
+			return this;
+		}
+
+		/**
+		 * @see HspKeepAliveHandler
+		 */
+		public Builder healthCheck(final long pingInterval, final TimeUnit unit, final int maxMissedPongs) {
+			this.pingIntervalNanos = unit.toNanos(pingInterval);
+			this.maxMissedPongs = maxMissedPongs;
+			return this;
+		}
+
+		public Builder reconnectDelay(final long reconnectDelay, final TimeUnit unit) {
+			this.reconnectDelayNanos = unit.toNanos(reconnectDelay);
+			return this;
+		}
+
+		/**
+		 * @param idleTimeout time without requests after which a connection above <code>minSize</code> is closed
+		 */
+		public Builder idleTimeout(final long idleTimeout, final TimeUnit unit) {
+			if (idleTimeout <= 0) {
+				throw new IllegalArgumentException("idleTimeout must be > 0. Was: " + idleTimeout);
+			}
+			this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+			return this;
+		}
+
+		/**
+		 * Opens <code>minSize</code> connections.
+		 *
+		 * @return future completed when the connections are established, failed if none could be established
+		 */
+		public CompletableFuture<HspClientPool> connect() {
+			if (endpoints.isEmpty()) {
+				throw new IllegalArgumentException("At least one endpoint is required");
+			}
+			return new HspClientPool(this).start();
+		}
+	}
+}
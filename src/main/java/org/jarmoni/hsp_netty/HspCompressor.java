@@ -0,0 +1,117 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.EncoderException;
+import org.jarmoni.hsp_netty.Compression.Algorithm;
+import org.jarmoni.hsp_netty.Compression.Codec;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.jarmoni.hsp_netty.Messages.DataMessage;
+import org.jarmoni.hsp_netty.Messages.PayloadMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the payloads of outgoing {@link DataMessage}s and {@link DataAckMessage}s with at least
+ * <code>minPayloadBytes</code> readable bytes (see {@link Compression} for the format). Payloads which do not shrink
+ * are sent uncompressed. Place this handler behind the encoder (i.e. add it to the pipeline after the encoder), the
+ * peer needs an {@link HspDecompressor}.
+ * <p>
+ * Like the encoder this handler does not take over the ownership of the written message: the compressed payload is
+ * written within a new message and released once it is written, the original message is left untouched.
+ */
+public class HspCompressor extends ChannelOutboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspCompressor.class);
+
+	private static final int MIN_PAYLOAD_BYTES_DEFAULT = 512;
+
+	private final Algorithm algorithm;
+	private final int minPayloadBytes;
+	private Codec codec;
+
+	// updated on the event-loop with lazySet, see HspBatchingEncoder
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	public HspCompressor(final Algorithm algorithm) {
+		this(algorithm, MIN_PAYLOAD_BYTES_DEFAULT);
+	}
+
+	/**
+	 * @param minPayloadBytes smaller payloads are not compressed
+	 */
+	public HspCompressor(final Algorithm algorithm, final int minPayloadBytes) {
+		this.algorithm = algorithm;
+		this.minPayloadBytes = Math.max(minPayloadBytes, 1);
+		LOG.debug("Initialized with algorithm={}, minPayloadBytes={}", algorithm, minPayloadBytes);
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		codec = algorithm.newCodec();
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		codec.end();
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (!(msg instanceof DataMessage || msg instanceof DataAckMessage)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final short payloadType = msg instanceof DataMessage ? ((DataMessage) msg).getPayloadType() : ((DataAckMessage) msg).getPayloadType();
+		// checked for every payload, the peer's decompressor would take an uncompressed one for compressed
+		if (Compression.isCompressed(payloadType)) {
+			promise.setFailure(new EncoderException("Payload-type=" + payloadType + " collides with compressed-flag"));
+			return;
+		}
+		final ByteBuf payload = ((PayloadMessage) msg).getPayload();
+		if (payload.readableBytes() < minPayloadBytes) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final ByteBuf compressed = ctx.alloc().heapBuffer(payload.readableBytes());
+		try {
+			compressed.writeByte(algorithm.byteValue());
+			compressed.writeInt(payload.readableBytes());
+			codec.compress(payload, compressed);
+		} catch (final Throwable t) {
+			compressed.release();
+			throw new EncoderException(t);
+		}
+		if (compressed.readableBytes() >= payload.readableBytes()) {
+			compressed.release();
+			ctx.write(msg, promise);
+			return;
+		}
+		uncompressedBytes.lazySet(uncompressedBytes.get() + payload.readableBytes());
+		compressedBytes.lazySet(compressedBytes.get() + compressed.readableBytes());
+		final short compressedType = (short) (payloadType | Compression.COMPRESSED_FLAG);
+		final PayloadMessage compressedMessage = msg instanceof DataMessage ? new DataMessage(compressedType, compressed)
+				: new DataAckMessage(((DataAckMessage) msg).getMessageId(), compressedType, compressed);
+		ctx.write(compressedMessage, promise.unvoid()).addListener((ChannelFutureListener) f -> compressed.release());
+	}
+
+	/**
+	 * @return sum of the sizes of all compressed payloads before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * @return sum of the sizes of all compressed payloads after compression
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+}
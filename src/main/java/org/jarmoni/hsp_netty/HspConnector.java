@@ -0,0 +1,116 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side counterpart of {@link HspServer}: opens HSP-connections with the same transport-selection, allocator,
+ * socket-options and pipeline ({@link HspFrameDecoder}, {@link HspEncoder}, handlers of the
+ * <code>pipelineInitializer</code>). All connections of a connector share its event-loops.
+ */
+public class HspConnector {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspConnector.class);
+
+	private final EventLoopGroup group;
+	private final Bootstrap bootstrap;
+	private final int maxInFlight;
+	private final long requestTimeoutNanos;
+
+	private HspConnector(final Builder builder) {
+		group = HspTransport.newEventLoopGroup(builder.eventLoopThreads, builder.preferNative, "hsp-client");
+		maxInFlight = builder.maxInFlight;
+		requestTimeoutNanos = builder.requestTimeoutNanos;
+		bootstrap = new Bootstrap().group(group).channel(HspTransport.channelClass(group)).option(ChannelOption.CONNECT_TIMEOUT_MILLIS, builder.connectTimeoutMillis)
+				.handler(builder.newChannelInitializer());
+		LOG.debug("Initialized with native={}, eventLoopThreads={}", isNative(), builder.eventLoopThreads);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return future of a connected channel with the HSP-pipeline
+	 */
+	public ChannelFuture connect(final SocketAddress remoteAddress) {
+		return bootstrap.connect(remoteAddress);
+	}
+
+	/**
+	 * @return future of an {@link HspClient} on a new connection (the client adds its correlator behind the handlers
+	 *         of the <code>pipelineInitializer</code>)
+	 */
+	public CompletableFuture<HspClient> connectClient(final SocketAddress remoteAddress) {
+		final CompletableFuture<HspClient> future = new CompletableFuture<>();
+		connect(remoteAddress).addListener((ChannelFuture f) -> {
+			if (f.isSuccess()) {
+				future.complete(new HspClient(f.channel(), maxInFlight, requestTimeoutNanos, TimeUnit.NANOSECONDS, HspClient.defaultTimer()));
+			} else {
+				future.completeExceptionally(f.cause());
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return executor for tasks related to the connections of this connector
+	 */
+	public EventExecutor executor() {
+		return group.next();
+	}
+
+	/**
+	 * @return <code>true</code> if native epoll is used
+	 */
+	public boolean isNative() {
+		return HspTransport.isNative(group);
+	}
+
+	/**
+	 * Closes all connections.
+	 */
+	public void close() throws InterruptedException {
+		group.shutdownGracefully(0, 5, TimeUnit.SECONDS).sync();
+	}
+
+	public static class Builder extends HspTransport.ChannelBuilder<Builder> {
+		private int connectTimeoutMillis = 10_000;
+		private int maxInFlight = 1024;
+		private long requestTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+		private Builder() {}
+
+		public Builder connectTimeoutMillis(final int connectTimeoutMillis) {
+			this.connectTimeoutMillis = connectTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * Settings of the clients created by {@link HspConnector#connectClient(SocketAddress)}.
+		 */
+		public Builder clientSettings(final int maxInFlight, final long requestTimeout, final TimeUnit unit) {
+			this.maxInFlight = maxInFlight;
+			this.requestTimeoutNanos = unit.toNanos(requestTimeout);
+			return this;
+		}
+
+		public HspConnector build() {
+			return new HspConnector(this);
+		}
+
+		@Override
+		Builder self() {
+			return this;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package org.jarmoni.hsp_netty;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ReplayingDecoder;
+import org.jarmoni.hsp_netty.HspMetrics.DecoderError;
 import org.jarmoni.hsp_netty.Messages.*;
 import org.jarmoni.hsp_netty.Types.HspCommandType;
 import org.slf4j.Logger;
@@ -11,13 +12,46 @@ import org.slf4j.LoggerFactory;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * Decodes HSP-frames into {@link HspMessage}s.
+ * <p>
+ * By default a decoder-error is fatal: an {@link HspDecoderException} is thrown and all further bytes are discarded
+ * until the connection is closed. In recovery-mode (<code>maxConsecutiveErrors &gt; 0</code>) a frame whose
+ * payload-length exceeds <code>maxPayloadBytes</code> is skipped instead (its length is known, so the decoder stays
+ * in sync with the stream) and decoding resumes with the next frame. If the skipped frame is a
+ * {@link DataAckMessage}, the peer is answered with an {@link ErrorUndefMessage} carrying its messageId. Errors after
+ * which the frame-boundary is unknown (unknown command, negative payload-length) are always fatal, as are more than
+ * <code>maxConsecutiveErrors</code> skipped frames in a row.
+ */
 public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 
 	private static final Logger LOG = LoggerFactory.getLogger(HspDecoder.class);
 
 	private static final int MAX_PAYLOAD_BYTES_DEFAULT = 8192;
+	// presence-flags of the primitive fields of the frame currently decoded
+	private static final int PAYLOAD_TYPE_PRESENT = 1;
+	private static final int ERROR_TYPE_PRESENT = 1 << 1;
+	private static final int PAYLOAD_LENGTH_PRESENT = 1 << 2;
+	private static final int MESSAGE_ID_PRESENT = 1 << 3;
+
 	private final int maxPayloadBytes;
-	private CurrentFields currentFields;
+	private final MessageFactory messageFactory;
+	private final HspMetrics metrics;
+	private final int maxConsecutiveErrors;
+	private long decodeStartNanos;
+	private int consecutiveErrors;
+	// recovery-mode only: payload-bytes of the skipped frame not discarded yet
+	private int remainingSkipBytes;
+
+	// Fields of the frame currently decoded. They are reused for every frame so that decoding allocates nothing but
+	// the message (and the payload-slice).
+	private HspCommandType command;
+	private short payloadType;
+	private short errorType;
+	private int payloadLength;
+	private ByteBuf payload;
+	private int messageId;
+	private int presentFields;
 
 	public HspDecoder() {
 		this(MAX_PAYLOAD_BYTES_DEFAULT);
@@ -27,16 +61,59 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		this(DecoderState.READ_COMMAND, maxPayloadBytes);
 	}
 
+	/**
+	 * @param pooled if <code>true</code>, decoded messages are taken from a pool (see {@link MessageFactory#POOLED})
+	 */
+	public HspDecoder(final int maxPayloadBytes, final boolean pooled) {
+		this(DecoderState.READ_COMMAND, maxPayloadBytes, pooled);
+	}
+
 	public HspDecoder(final DecoderState startState, final int maxPayloadBytes) {
+		this(startState, maxPayloadBytes, false);
+	}
+
+	public HspDecoder(final DecoderState startState, final int maxPayloadBytes, final boolean pooled) {
+		this(startState, maxPayloadBytes, pooled, HspMetrics.NOOP);
+	}
+
+	/**
+	 * @param metrics receives an event for every decoded frame and every decoder-error
+	 */
+	public HspDecoder(final int maxPayloadBytes, final boolean pooled, final HspMetrics metrics) {
+		this(DecoderState.READ_COMMAND, maxPayloadBytes, pooled, metrics);
+	}
+
+	public HspDecoder(final DecoderState startState, final int maxPayloadBytes, final boolean pooled, final HspMetrics metrics) {
+		this(startState, maxPayloadBytes, pooled, metrics, 0);
+	}
+
+	/**
+	 * @param maxConsecutiveErrors enables recovery-mode if &gt; 0: max. number of frames skipped in a row before an
+	 *            error becomes fatal
+	 */
+	public HspDecoder(final int maxPayloadBytes, final boolean pooled, final HspMetrics metrics, final int maxConsecutiveErrors) {
+		this(DecoderState.READ_COMMAND, maxPayloadBytes, pooled, metrics, maxConsecutiveErrors);
+	}
+
+	public HspDecoder(final DecoderState startState, final int maxPayloadBytes, final boolean pooled, final HspMetrics metrics, final int maxConsecutiveErrors) {
 		super(startState);
+		if (maxConsecutiveErrors < 0) {
+			throw new IllegalArgumentException("maxConsecutiveErrors must be >= 0. Was: " + maxConsecutiveErrors);
+		}
 		this.maxPayloadBytes = maxPayloadBytes;
-		this.currentFields = new CurrentFields();
-		LOG.debug("Initialized with startState={}, maxPayloadBytes={}", startState, maxPayloadBytes);
+		this.messageFactory = pooled ? MessageFactory.POOLED : MessageFactory.UNPOOLED;
+		this.metrics = metrics;
+		this.maxConsecutiveErrors = maxConsecutiveErrors;
+		LOG.debug("Initialized with startState={}, maxPayloadBytes={}, pooled={}, metrics={}, maxConsecutiveErrors={}", startState, maxPayloadBytes, pooled, metrics,
+				maxConsecutiveErrors);
 	}
 
 	@Override
 	protected void decode(final ChannelHandlerContext ctx, final ByteBuf buffer, final List<Object> out) throws Exception {
 		LOG.debug("Receiving bytes...");
+		if (metrics != HspMetrics.NOOP) {
+			decodeStartNanos = System.nanoTime();
+		}
 		final DecoderState currentState = state();
 		switch (currentState) {
 		case READ_COMMAND: {
@@ -63,12 +140,16 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 			readMessageId(ctx, buffer, out);
 			break;
 		}
+		case SKIP_PAYLOAD: {
+			skipPayload(buffer);
+			break;
+		}
 		case STATE_ERROR: {
 			handleStateError(buffer);
 			break;
 		}
 		default:
-			stateError(new HspDecoderException("Unhandled decoder-state=" + currentState));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Unhandled decoder-state=" + currentState));
 		}
 	}
 
@@ -77,17 +158,17 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		try {
 			command = buffer.readByte();
 		} catch (final Exception e) {
-			stateError(new HspDecoderException("Parsing of (command-) Varint failed"));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Parsing of (command-) Varint failed"));
 			return;
 		}
-		final Optional<HspCommandType> cmdTypeOpt = HspCommandType.byByteValue(command);
-		if (!cmdTypeOpt.isPresent()) {
-			stateError(new HspDecoderException("Not existing command=" + command));
+		final HspCommandType cmdType = HspCommandType.fromByteValue(command);
+		if (cmdType == null) {
+			stateError(DecoderError.UNKNOWN_COMMAND, new HspDecoderException("Not existing command=" + command));
 			return;
 		}
 
-		currentFields.command = cmdTypeOpt;
-		switch (cmdTypeOpt.get()) {
+		this.command = cmdType;
+		switch (cmdType) {
 		case DataCommand:
 			readPayloadType(ctx, buffer, out);
 			break;
@@ -116,7 +197,7 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 			break;
 		}
 		default:
-			stateError(new HspDecoderException("Unhandled command=" + cmdTypeOpt.get()));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Unhandled command=" + cmdType));
 		}
 	}
 
@@ -126,10 +207,11 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		try {
 			payloadType = buffer.readShort();
 		} catch (final Exception e) {
-			stateError(new HspDecoderException("Parsing of (payload-type-) Varint failed"));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Parsing of (payload-type-) Varint failed"));
 			return;
 		}
-		currentFields.payloadType = Optional.of(payloadType);
+		this.payloadType = payloadType;
+		this.presentFields |= PAYLOAD_TYPE_PRESENT;
 		readPayloadLength(ctx, buffer, out);
 	}
 
@@ -139,10 +221,11 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		try {
 			errorType = buffer.readShort();
 		} catch (final Exception e) {
-			stateError(new HspDecoderException("Parsing of (error-type-) Varint failed"));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Parsing of (error-type-) Varint failed"));
 			return;
 		}
-		currentFields.errorType = Optional.of(errorType);
+		this.errorType = errorType;
+		this.presentFields |= ERROR_TYPE_PRESENT;
 		readPayloadLength(ctx, buffer, out);
 	}
 
@@ -152,33 +235,37 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		try {
 			payloadLength = buffer.readInt();
 		} catch (final Exception e) {
-			stateError(new HspDecoderException("Parsing of (payload-length-) Varint failed"));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Parsing of (payload-length-) Varint failed"));
 			return;
 		}
 		// Because we require an unsigned value for the 'length' we have to exclude all negative integers
+		if ((payloadLength & 0x80000000) == 0 && payloadLength > maxPayloadBytes && isRecoverable()) {
+			skipFrame(ctx, buffer, DecoderError.PAYLOAD_TOO_LARGE, "Payload-length=" + payloadLength + " exceeds max-payload-bytes=" + maxPayloadBytes, payloadLength);
+			return;
+		}
 		if ((payloadLength & 0x80000000) != 0 || payloadLength > maxPayloadBytes) {
-			stateError(new HspDecoderException("Payload-length=" + payloadLength + " exceeds max-payload-bytes=" + maxPayloadBytes));
+			stateError(DecoderError.PAYLOAD_TOO_LARGE, new HspDecoderException("Payload-length=" + payloadLength + " exceeds max-payload-bytes=" + maxPayloadBytes));
 			return;
 		}
 		if (payloadLength == 0) {
-			currentFields.payload = Optional.of(ctx.alloc().directBuffer());
+			this.payload = ctx.alloc().directBuffer();
 			pushMessage(out);
 			return;
 		}
-		currentFields.payloadLength = Optional.of(payloadLength);
+		this.payloadLength = payloadLength;
+		this.presentFields |= PAYLOAD_LENGTH_PRESENT;
 		readPayload(ctx, buffer, out);
 	}
 
 	private void readPayload(final ChannelHandlerContext ctx, final ByteBuf buffer, final List<Object> out) {
 		checkpoint(DecoderState.READ_PAYLOAD);
-		if (!currentFields.payloadLength.isPresent()) {
-			stateError(new HspDecoderException("Excpected payload-length to be present"));
+		if (!isPresent(PAYLOAD_LENGTH_PRESENT)) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Excpected payload-length to be present"));
 			return;
 		}
 		// we come into trouble when trying to use method #readSlice(int) because reference-counter won't be increased
 		// an has value '0' in next processing stage, so the bytes will be unavailable
-		final ByteBuf payload = buffer.readRetainedSlice(currentFields.payloadLength.get());
-		currentFields.payload = Optional.of(payload);
+		this.payload = buffer.readRetainedSlice(payloadLength);
 		pushMessage(out);
 	}
 
@@ -188,34 +275,35 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		try {
 			msgId = buffer.readInt();
 		} catch (final Exception e) {
-			stateError(new HspDecoderException("Parsing of (messageId-) Varint failed"));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Parsing of (messageId-) Varint failed"));
 			return;
 		}
 
-		currentFields.messageId = Optional.of(msgId);
-		if (!currentFields.command.isPresent()) {
-			stateError(new HspDecoderException("Command must be present"));
+		this.messageId = msgId;
+		this.presentFields |= MESSAGE_ID_PRESENT;
+		if (command == null) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Command must be present"));
 			return;
 		}
-		if (currentFields.command.get().equals(HspCommandType.AckCommand)) {
+		if (command == HspCommandType.AckCommand) {
 			pushMessage(out);
-		} else if (currentFields.command.get().equals(HspCommandType.DataAckCommand)) {
+		} else if (command == HspCommandType.DataAckCommand) {
 			readPayloadType(ctx, buffer, out);
-		} else if (currentFields.command.get().equals(HspCommandType.ErrorCommand)) {
+		} else if (command == HspCommandType.ErrorCommand) {
 			readErrorType(ctx, buffer, out);
-		} else if (currentFields.command.get().equals(HspCommandType.ErrorUndefCommand)) {
+		} else if (command == HspCommandType.ErrorUndefCommand) {
 			pushMessage(out);
 		} else {
-			stateError(new HspDecoderException("Unexpected command=" + currentFields.command.get()));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Unexpected command=" + command));
 		}
 	}
 
 	private void pushMessage(final List<Object> out) {
-		if (!currentFields.command.isPresent()) {
-			stateError(new HspDecoderException("Command must be present"));
+		if (command == null) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Command must be present"));
 			return;
 		}
-		switch (currentFields.command.get()) {
+		switch (command) {
 		case DataCommand: {
 			pushDataMessage(out);
 			break;
@@ -233,11 +321,11 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 			break;
 		}
 		case PingCommand: {
-			out.add(new PingMessage());
+			out.add(messageFactory.pingMessage());
 			break;
 		}
 		case PongCommand: {
-			out.add(new PongMessage());
+			out.add(messageFactory.pongMessage());
 			break;
 		}
 		case ErrorUndefCommand: {
@@ -245,71 +333,109 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 			break;
 		}
 		default:
-			stateError(new HspDecoderException("Unknown command=" + currentFields.command.get()));
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Unknown command=" + command));
+		}
+		if (metrics != HspMetrics.NOOP) {
+			final int payloadBytes = payload == null ? 0 : payload.readableBytes();
+			metrics.frameDecoded(command, command.headerLength() + payloadBytes, payloadBytes, System.nanoTime() - decodeStartNanos);
 		}
+		consecutiveErrors = 0;
 		resetCurrentFields();
 		checkpoint(DecoderState.READ_COMMAND);
 	}
 
 	private void pushDataMessage(final List<Object> out) {
-		if (!currentFields.payloadType.isPresent() || !currentFields.payload.isPresent()) {
-			stateError(new HspDecoderException("Missing fields"),
-					"type and payload must be present. Was: type=" + currentFields.payloadType.isPresent() + ", payload=" + currentFields.payload.isPresent());
+		if (!isPresent(PAYLOAD_TYPE_PRESENT) || payload == null) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Missing fields"),
+					"type and payload must be present. Was: type=" + isPresent(PAYLOAD_TYPE_PRESENT) + ", payload=" + (payload != null));
 			return;
 		}
-		out.add(new DataMessage(currentFields.payloadType.get(), currentFields.payload.get()));
+		out.add(messageFactory.dataMessage(payloadType, payload));
 	}
 
 	private void pushDataAckMessage(final List<Object> out) {
-		if (!currentFields.messageId.isPresent() || !currentFields.payloadType.isPresent() || !currentFields.payload.isPresent()) {
-			stateError(new HspDecoderException("Missing fields"), "messageId, type and payload must be present. Was: messageId=" + currentFields.messageId.isPresent() + ", type="
-					+ currentFields.payloadType.isPresent() + ", payload=" + currentFields.payload.isPresent());
+		if (!isPresent(MESSAGE_ID_PRESENT) || !isPresent(PAYLOAD_TYPE_PRESENT) || payload == null) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Missing fields"), "messageId, type and payload must be present. Was: messageId=" + isPresent(MESSAGE_ID_PRESENT) + ", type="
+					+ isPresent(PAYLOAD_TYPE_PRESENT) + ", payload=" + (payload != null));
 			return;
 		}
-		out.add(new DataAckMessage(currentFields.messageId.get(), currentFields.payloadType.get(), currentFields.payload.get()));
+		out.add(messageFactory.dataAckMessage(messageId, payloadType, payload));
 	}
 
 	private void pushAckMessage(final List<Object> out) {
-		if (!currentFields.messageId.isPresent()) {
-			stateError(new HspDecoderException("messageId must be present"));
+		if (!isPresent(MESSAGE_ID_PRESENT)) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("messageId must be present"));
+			return;
 		}
-		out.add(new AckMessage(currentFields.messageId.get()));
+		out.add(messageFactory.ackMessage(messageId));
 	}
 
 	private void pushErrorMessage(final List<Object> out) {
-		if (!currentFields.messageId.isPresent() || !currentFields.errorType.isPresent() || !currentFields.payload.isPresent()) {
-			stateError(new HspDecoderException("Missing fields"), "messageId, type and payload must be present. Was: messageId=" + currentFields.messageId.isPresent() + ", type="
-					+ currentFields.payloadType.isPresent() + ", payload=" + currentFields.payload.isPresent());
+		if (!isPresent(MESSAGE_ID_PRESENT) || !isPresent(ERROR_TYPE_PRESENT) || payload == null) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("Missing fields"), "messageId, type and payload must be present. Was: messageId=" + isPresent(MESSAGE_ID_PRESENT) + ", type="
+					+ isPresent(ERROR_TYPE_PRESENT) + ", payload=" + (payload != null));
 			return;
 		}
-		out.add(new ErrorMessage(currentFields.messageId.get(), currentFields.errorType.get(), currentFields.payload.get()));
+		out.add(messageFactory.errorMessage(messageId, errorType, payload));
 	}
 
 	private void pushErrorUndefMessage(final List<Object> out) {
-		if (!currentFields.messageId.isPresent()) {
-			stateError(new HspDecoderException("messageId must be present"));
+		if (!isPresent(MESSAGE_ID_PRESENT)) {
+			stateError(DecoderError.MISSING_FIELDS, new HspDecoderException("messageId must be present"));
 			return;
 		}
-		out.add(new ErrorUndefMessage(currentFields.messageId.get()));
+		out.add(messageFactory.errorUndefMessage(messageId));
 	}
 
-	private void stateError(final HspDecoderException ex) {
-		stateError(ex, Optional.empty());
+	private void stateError(final DecoderError error, final HspDecoderException ex) {
+		stateError(error, ex, Optional.empty());
 	}
 
-	private void stateError(final HspDecoderException ex, final String msg) {
-		stateError(ex, Optional.of(msg));
+	private void stateError(final DecoderError error, final HspDecoderException ex, final String msg) {
+		stateError(error, ex, Optional.of(msg));
 	}
 
-	private void stateError(final HspDecoderException ex, final Optional<String> messageOpt) {
+	private void stateError(final DecoderError error, final HspDecoderException ex, final Optional<String> messageOpt) {
 		LOG.error(messageOpt.orElse(ex.getMessage()));
+		metrics.decoderError(error);
 		resetCurrentFields();
 		checkpoint(DecoderState.STATE_ERROR);
 		throw ex;
 	}
 
+	private boolean isRecoverable() {
+		return consecutiveErrors < maxConsecutiveErrors;
+	}
+
+	private void skipFrame(final ChannelHandlerContext ctx, final ByteBuf buffer, final DecoderError error, final String msg, final int skipBytes) {
+		consecutiveErrors++;
+		LOG.warn("{}. Skipping frame ({} consecutive errors)", msg, consecutiveErrors);
+		metrics.decoderError(error);
+		if (command == HspCommandType.DataAckCommand && isPresent(MESSAGE_ID_PRESENT)) {
+			// written via the channel, so that the message passes the encoder wherever it is located in the pipeline
+			ctx.channel().writeAndFlush(new ErrorUndefMessage(messageId), ctx.voidPromise());
+		}
+		resetCurrentFields();
+		remainingSkipBytes = skipBytes;
+		skipPayload(buffer);
+	}
+
+	private void skipPayload(final ByteBuf buffer) {
+		// skips what is available, so that an oversized payload is never accumulated
+		final int skip = Math.min(actualReadableBytes(), remainingSkipBytes);
+		buffer.skipBytes(skip);
+		remainingSkipBytes -= skip;
+		checkpoint(remainingSkipBytes == 0 ? DecoderState.READ_COMMAND : DecoderState.SKIP_PAYLOAD);
+	}
+
+	private boolean isPresent(final int field) {
+		return (presentFields & field) != 0;
+	}
+
 	private void resetCurrentFields() {
-		this.currentFields = new CurrentFields();
+		this.command = null;
+		this.payload = null;
+		this.presentFields = 0;
 	}
 
 	private void handleStateError(final ByteBuf buffer) {
@@ -317,17 +443,8 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		buffer.skipBytes(actualReadableBytes());
 	}
 
-	public static class CurrentFields {
-		public Optional<HspCommandType> command = Optional.empty();
-		public Optional<Short> payloadType = Optional.empty();
-		public Optional<Short> errorType = Optional.empty();
-		public Optional<Integer> payloadLength = Optional.empty();
-		public Optional<ByteBuf> payload = Optional.empty();
-		public Optional<Integer> messageId = Optional.empty();
-	}
-
 	enum DecoderState {
-		READ_COMMAND, READ_PAYLOAD_TYPE, READ_ERROR_TYPE, READ_MESSAGE_ID, READ_PAYLOAD_LENGTH, READ_PAYLOAD, STATE_ERROR
+		READ_COMMAND, READ_PAYLOAD_TYPE, READ_ERROR_TYPE, READ_MESSAGE_ID, READ_PAYLOAD_LENGTH, READ_PAYLOAD, SKIP_PAYLOAD, STATE_ERROR
 	}
 
 	public static class HspDecoderException extends RuntimeException {
@@ -336,5 +453,9 @@ public class HspDecoder extends ReplayingDecoder<HspDecoder.DecoderState> {
 		public HspDecoderException(final String cause) {
 			super(cause);
 		}
+
+		public HspDecoderException(final String message, final Throwable cause) {
+			super(message, cause);
+		}
 	}
 }
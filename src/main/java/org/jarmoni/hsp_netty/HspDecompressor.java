@@ -0,0 +1,115 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.jarmoni.hsp_netty.Compression.Algorithm;
+import org.jarmoni.hsp_netty.Compression.Codec;
+import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.jarmoni.hsp_netty.Messages.DataMessage;
+import org.jarmoni.hsp_netty.Messages.PayloadMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decompresses the payloads of {@link DataMessage}s and {@link DataAckMessage}s compressed by {@link HspCompressor}
+ * (payload-type with {@link Compression#COMPRESSED_FLAG}). Place this handler behind the decoder. The uncompressed
+ * payload is allocated by the allocator of the channel and must not exceed <code>maxPayloadBytes</code>, which is
+ * checked before decompressing. Uncompressed messages are passed on as they are.
+ */
+public class HspDecompressor extends ChannelInboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspDecompressor.class);
+
+	private static final int MAX_PAYLOAD_BYTES_DEFAULT = 8192;
+
+	private final int maxPayloadBytes;
+	private final Codec[] codecs = new Codec[Algorithm.values().length];
+
+	public HspDecompressor() {
+		this(MAX_PAYLOAD_BYTES_DEFAULT);
+	}
+
+	/**
+	 * @param maxPayloadBytes max. size of an uncompressed payload
+	 */
+	public HspDecompressor(final int maxPayloadBytes) {
+		this.maxPayloadBytes = maxPayloadBytes;
+		LOG.debug("Initialized with maxPayloadBytes={}", maxPayloadBytes);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		for (final Codec codec : codecs) {
+			if (codec != null) {
+				codec.end();
+			}
+		}
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		final short payloadType;
+		if (msg instanceof DataMessage) {
+			payloadType = ((DataMessage) msg).getPayloadType();
+		} else if (msg instanceof DataAckMessage) {
+			payloadType = ((DataAckMessage) msg).getPayloadType();
+		} else {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		if (!Compression.isCompressed(payloadType)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		final PayloadMessage payloadMessage = (PayloadMessage) msg;
+		// read before releasing: a pooled message is recycled by release()
+		final boolean dataAck = msg instanceof DataAckMessage;
+		final int messageId = dataAck ? ((DataAckMessage) msg).getMessageId() : -1;
+		final ByteBuf uncompressed;
+		try {
+			uncompressed = decompress(ctx, payloadMessage.getPayload().duplicate());
+		} finally {
+			payloadMessage.release();
+		}
+		final short uncompressedType = (short) (payloadType & ~Compression.COMPRESSED_FLAG);
+		if (dataAck) {
+			ctx.fireChannelRead(new DataAckMessage(messageId, uncompressedType, uncompressed));
+		} else {
+			ctx.fireChannelRead(new DataMessage(uncompressedType, uncompressed));
+		}
+	}
+
+	private ByteBuf decompress(final ChannelHandlerContext ctx, final ByteBuf compressed) {
+		if (compressed.readableBytes() < Compression.PREFIX_LENGTH) {
+			throw new HspDecoderException("Compressed payload too short. length=" + compressed.readableBytes());
+		}
+		final byte algorithmByte = compressed.readByte();
+		final Algorithm algorithm = Algorithm.fromByteValue(algorithmByte);
+		if (algorithm == null) {
+			throw new HspDecoderException("Not existing compression-algorithm=" + algorithmByte);
+		}
+		final int length = compressed.readInt();
+		if (length < 0 || length > maxPayloadBytes) {
+			throw new HspDecoderException("Uncompressed payload-length=" + length + " exceeds max-payload-bytes=" + maxPayloadBytes);
+		}
+		final ByteBuf out = ctx.alloc().heapBuffer(length, length);
+		try {
+			codec(algorithm).decompress(compressed, out, length);
+		} catch (final Exception e) {
+			out.release();
+			throw new HspDecoderException("Decompression failed: " + e.getMessage(), e);
+		}
+		return out;
+	}
+
+	private Codec codec(final Algorithm algorithm) {
+		Codec codec = codecs[algorithm.ordinal()];
+		if (codec == null) {
+			codec = algorithm.newCodec();
+			codecs[algorithm.ordinal()] = codec;
+		}
+		return codec;
+	}
+}
@@ -0,0 +1,137 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.jarmoni.hsp_netty.Messages.AckMessage;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops received {@link DataAckMessage}s whose message-id has already been received on this connection (e.g. because
+ * the sender retried it) and answers them with an {@link AckMessage} instead of passing them on.
+ * <p>
+ * The received ids are tracked in a sliding window of <code>windowSize</code> ids ending at the highest id received
+ * so far, stored as a bitmap. Checking an id costs O(1) and allocates nothing. Ids are compared with serial-number
+ * arithmetic, so the window keeps sliding when the ids wrap around. An id older than the window cannot be classified
+ * and is passed on (and counted, see {@link #getOutOfWindowCount()}), so a message is never lost because of the
+ * filter.
+ * <p>
+ * A duplicate is acked even if the application has not answered the first delivery yet. Place this handler behind
+ * the decoder and in front of the handlers of the application.
+ */
+public class HspDuplicateFilter extends ChannelInboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspDuplicateFilter.class);
+
+	private static final int WINDOW_SIZE_DEFAULT = 4096;
+
+	private final long[] bitmap;
+	private final int mask;
+	private int highestId;
+	private boolean empty = true;
+
+	// single writer (the event-loop)
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong outOfWindowCount = new AtomicLong();
+
+	public HspDuplicateFilter() {
+		this(WINDOW_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param windowSize number of ids tracked (a power of two, at least 64)
+	 */
+	public HspDuplicateFilter(final int windowSize) {
+		if (windowSize < Long.SIZE || Integer.bitCount(windowSize) != 1) {
+			throw new IllegalArgumentException("windowSize must be a power of two >= 64. Was: " + windowSize);
+		}
+		this.bitmap = new long[windowSize / Long.SIZE];
+		this.mask = windowSize - 1;
+		LOG.debug("Initialized with windowSize={}", windowSize);
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof DataAckMessage) {
+			final int messageId = ((DataAckMessage) msg).getMessageId();
+			if (isDuplicate(messageId)) {
+				LOG.debug("Dropping duplicate messageId={}", messageId);
+				duplicateCount.lazySet(duplicateCount.get() + 1);
+				((DataAckMessage) msg).release();
+				ctx.writeAndFlush(new AckMessage(messageId), ctx.voidPromise());
+				return;
+			}
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	/**
+	 * @return number of dropped (and re-acked) duplicates
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return number of messages passed on because their id was older than the window
+	 */
+	public long getOutOfWindowCount() {
+		return outOfWindowCount.get();
+	}
+
+	/**
+	 * Records the id as received.
+	 *
+	 * @return <code>true</code> if the id has already been received
+	 */
+	boolean isDuplicate(final int messageId) {
+		if (empty) {
+			empty = false;
+			highestId = messageId;
+			set(messageId);
+			return false;
+		}
+		// serial-number arithmetic: the difference is correct across the wrap-around as long as |diff| < 2^31
+		final int diff = messageId - highestId;
+		if (diff > 0) {
+			slide(diff);
+			highestId = messageId;
+			set(messageId);
+			return false;
+		}
+		if (-(long) diff > mask) {
+			outOfWindowCount.lazySet(outOfWindowCount.get() + 1);
+			return false;
+		}
+		final int bit = messageId & mask;
+		final long word = bitmap[bit >>> 6];
+		final long bitMask = 1L << bit;
+		if ((word & bitMask) != 0) {
+			return true;
+		}
+		bitmap[bit >>> 6] = word | bitMask;
+		return false;
+	}
+
+	private void slide(final int diff) {
+		if (diff > mask) {
+			Arrays.fill(bitmap, 0L);
+			return;
+		}
+		// the bits of the new ids (highestId + 1 ... highestId + diff) still belong to the ids leaving the window
+		// (W ids earlier), so they are cleared
+		for (int i = 1; i <= diff; i++) {
+			final int bit = (highestId + i) & mask;
+			bitmap[bit >>> 6] &= ~(1L << bit);
+		}
+	}
+
+	private void set(final int messageId) {
+		final int bit = messageId & mask;
+		bitmap[bit >>> 6] |= 1L << bit;
+	}
+}
@@ -1,13 +1,25 @@
 package org.jarmoni.hsp_netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
 import org.jarmoni.hsp_netty.Messages.HspMessage;
+import org.jarmoni.hsp_netty.Messages.PayloadMessage;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadChunk;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadHeader;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Encodes {@link HspMessage}s. Frames decoded in streaming-mode (see {@link HspFrameDecoder}) can be written as they
+ * are: an {@link HspPayloadHeader} is encoded into a buffer of its own, the content of an {@link HspPayloadChunk} is
+ * passed on without copying. The body of an {@link HspPayloadStream} is written behind its header as it is, see
+ * there.
+ */
 @ChannelHandler.Sharable
 public class HspEncoder extends MessageToByteEncoder<HspMessage> {
 
@@ -15,10 +27,85 @@ public class HspEncoder extends MessageToByteEncoder<HspMessage> {
 
 	private static final HspEncoder INSTANCE = new HspEncoder();
 
+	private final int zeroCopyThreshold;
+	private final HspMetrics metrics;
+
+	public HspEncoder() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param zeroCopyThreshold Payloads of {@link PayloadMessage}s with at least this number of readable bytes are not
+	 *            copied into the output-buffer. Instead only the header is written into a (small) buffer and header
+	 *            and a retained duplicate of the payload are written as {@link CompositeByteBuf}. The reference-count
+	 *            and the reader-index of the payload held by the message stay untouched.
+	 */
+	public HspEncoder(final int zeroCopyThreshold) {
+		this(zeroCopyThreshold, HspMetrics.NOOP);
+	}
+
+	/**
+	 * @param metrics receives an event for every encoded frame
+	 */
+	public HspEncoder(final int zeroCopyThreshold, final HspMetrics metrics) {
+		this.zeroCopyThreshold = zeroCopyThreshold;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (msg instanceof PayloadMessage && ((PayloadMessage) msg).getPayload().readableBytes() >= zeroCopyThreshold) {
+			writeZeroCopy(ctx, (PayloadMessage) msg, promise);
+			return;
+		}
+		if (msg instanceof HspPayloadHeader) {
+			writeHeader(ctx, (HspPayloadHeader) msg, promise);
+			return;
+		}
+		if (msg instanceof HspPayloadStream) {
+			final HspPayloadStream stream = (HspPayloadStream) msg;
+			writeHeader(ctx, stream.getHeader(), ctx.voidPromise());
+			ctx.write(stream.getBody(), promise);
+			return;
+		}
+		if (msg instanceof HspPayloadChunk) {
+			ctx.write(((HspPayloadChunk) msg).content(), promise);
+			return;
+		}
+		super.write(ctx, msg, promise);
+	}
+
 	@Override
 	protected void encode(final ChannelHandlerContext ctx, final HspMessage msg, final ByteBuf out) throws Exception {
 		LOG.debug("Receiving bytes...");
+		final int writerIndex = out.writerIndex();
 		msg.toBytes(out);
+		metrics.frameEncoded(msg.getCommandType(), out.writerIndex() - writerIndex);
+	}
+
+	private void writeZeroCopy(final ChannelHandlerContext ctx, final PayloadMessage msg, final ChannelPromise promise) {
+		LOG.debug("Receiving bytes (zero-copy)...");
+		final ByteBuf header = ctx.alloc().ioBuffer(msg.headerLength());
+		final ByteBuf payload = msg.getPayload().retainedDuplicate();
+		try {
+			msg.headerToBytes(header);
+		} catch (final Throwable t) {
+			header.release();
+			payload.release();
+			throw t;
+		}
+		final CompositeByteBuf frame = ctx.alloc().compositeBuffer(2);
+		frame.addComponents(true, header, payload);
+		metrics.frameEncoded(msg.getCommandType(), frame.readableBytes());
+		ctx.write(frame, promise);
+	}
+
+	private void writeHeader(final ChannelHandlerContext ctx, final HspPayloadHeader msg, final ChannelPromise promise) {
+		final ByteBuf header = ctx.alloc().ioBuffer(msg.headerLength());
+		msg.toBytes(header);
+		// the chunks/body are counted as part of the frame
+		metrics.frameEncoded(msg.getCommandType(), msg.headerLength() + msg.getPayloadLength());
+		ctx.write(header, promise);
 	}
 
 	public static HspEncoder instance() {
@@ -0,0 +1,296 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import org.jarmoni.hsp_netty.Messages.HspMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound flow-control for {@link HspMessage}s.
+ * <p>
+ * While the channel is writable messages are passed on immediately. When it becomes unwritable (see the
+ * write-buffer-water-marks of the channel) messages are queued until it becomes writable again. The queue is limited
+ * to <code>maxQueuedBytes</code>, the size of a message being its header plus the readable bytes of its payload. When
+ * a message does not fit into the queue anymore, the {@link OverflowPolicy} applies. Producers are notified by a
+ * {@link FlowControlListener} when the handler starts and stops queueing, so they can pause instead of running into
+ * the limit.
+ * <p>
+ * Place this handler in front of the encoder (i.e. add it to the pipeline after the encoder).
+ */
+public class HspFlowControlHandler extends ChannelDuplexHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspFlowControlHandler.class);
+
+	public enum OverflowPolicy {
+		/**
+		 * The message is released and its promise is failed with {@link FlowControlException}.
+		 */
+		FAIL,
+		/**
+		 * The message is released and its promise is cancelled.
+		 */
+		DROP,
+		/**
+		 * {@link HspFlowControlHandler#write(HspMessage)} blocks the producer up to <code>blockTimeout</code> until
+		 * there is room in the queue and throws {@link FlowControlException} afterwards. The limit is enforced only
+		 * for producers using this method: other writes (e.g. from the event-loop, which must never block) are always
+		 * queued. As producers racing for the same room are not serialized, the queue may exceed
+		 * <code>maxQueuedBytes</code> by one message per producer.
+		 */
+		BLOCK
+	}
+
+	private final long maxQueuedBytes;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutNanos;
+	private final FlowControlListener listener;
+
+	private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final Object blockLock = new Object();
+	private volatile int blockedProducers;
+	private volatile boolean paused;
+	// overflows are counted on the event-loop only
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private ChannelHandlerContext ctx;
+
+	/**
+	 * @param blockTimeout max. time a producer is blocked with {@link OverflowPolicy#BLOCK}
+	 * @param listener is called on the event-loop, may be <code>null</code>
+	 */
+	public HspFlowControlHandler(final long maxQueuedBytes, final OverflowPolicy policy, final long blockTimeout, final TimeUnit unit, final FlowControlListener listener) {
+		if (maxQueuedBytes <= 0) {
+			throw new IllegalArgumentException("maxQueuedBytes must be > 0. Was: " + maxQueuedBytes);
+		}
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.policy = policy;
+		this.blockTimeoutNanos = unit.toNanos(blockTimeout);
+		this.listener = listener;
+		LOG.debug("Initialized with maxQueuedBytes={}, policy={}, blockTimeoutNanos={}", maxQueuedBytes, policy, blockTimeoutNanos);
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	/**
+	 * Writes and flushes the message through the whole pipeline. With {@link OverflowPolicy#BLOCK} the calling
+	 * (non-event-loop-) thread is blocked while the queue is full.
+	 */
+	public ChannelFuture write(final HspMessage msg) throws InterruptedException {
+		final Channel channel = ctx.channel();
+		if (policy == OverflowPolicy.BLOCK && !channel.eventLoop().inEventLoop()) {
+			awaitRoom(HspBatchingEncoder.frameBytes(msg));
+		}
+		return channel.writeAndFlush(msg);
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (!(msg instanceof HspMessage)) {
+			ctx.write(msg, promise);
+			return;
+		}
+		if (queue.isEmpty() && ctx.channel().isWritable()) {
+			ctx.write(msg, promise);
+			return;
+		}
+		final HspMessage hspMessage = (HspMessage) msg;
+		final int bytes = HspBatchingEncoder.frameBytes(hspMessage);
+		if (queuedBytes.get() + bytes > maxQueuedBytes && policy != OverflowPolicy.BLOCK) {
+			overflow(hspMessage, promise);
+			return;
+		}
+		queue.add(new PendingWrite(hspMessage, promise, bytes));
+		queuedBytes.addAndGet(bytes);
+		pause();
+	}
+
+	@Override
+	public void flush(final ChannelHandlerContext ctx) throws Exception {
+		drain(ctx);
+		ctx.flush();
+	}
+
+	@Override
+	public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+		if (ctx.channel().isWritable()) {
+			drain(ctx);
+			ctx.flush();
+		} else {
+			pause();
+		}
+		ctx.fireChannelWritabilityChanged();
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		failAll(new ClosedChannelException());
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		// the queue is handed over to the following handlers
+		drainAll(ctx);
+	}
+
+	/**
+	 * @return <code>true</code> while messages are queued
+	 */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return number of messages dropped ({@link OverflowPolicy#DROP})
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return number of messages failed because the queue was full
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	private void overflow(final HspMessage msg, final ChannelPromise promise) {
+		msg.release();
+		if (policy == OverflowPolicy.DROP) {
+			droppedCount.lazySet(droppedCount.get() + 1);
+			promise.cancel(false);
+		} else {
+			failedCount.lazySet(failedCount.get() + 1);
+			promise.setFailure(new FlowControlException(maxQueuedBytes));
+		}
+	}
+
+	private void drain(final ChannelHandlerContext ctx) {
+		if (queue.isEmpty()) {
+			return;
+		}
+		PendingWrite pending;
+		while (ctx.channel().isWritable() && (pending = queue.poll()) != null) {
+			queuedBytes.addAndGet(-pending.bytes);
+			ctx.write(pending.msg, pending.promise);
+		}
+		roomAvailable();
+		if (queue.isEmpty() && ctx.channel().isWritable()) {
+			resume();
+		}
+	}
+
+	private void drainAll(final ChannelHandlerContext ctx) {
+		PendingWrite pending;
+		while ((pending = queue.poll()) != null) {
+			queuedBytes.addAndGet(-pending.bytes);
+			ctx.write(pending.msg, pending.promise);
+		}
+		roomAvailable();
+	}
+
+	private void failAll(final Throwable cause) {
+		PendingWrite pending;
+		while ((pending = queue.poll()) != null) {
+			queuedBytes.addAndGet(-pending.bytes);
+			pending.msg.release();
+			pending.promise.tryFailure(cause);
+		}
+		roomAvailable();
+	}
+
+	private void pause() {
+		if (!paused) {
+			paused = true;
+			if (listener != null) {
+				listener.paused(ctx.channel());
+			}
+		}
+	}
+
+	private void resume() {
+		if (paused) {
+			paused = false;
+			if (listener != null) {
+				listener.resumed(ctx.channel());
+			}
+		}
+	}
+
+	private void awaitRoom(final int bytes) throws InterruptedException {
+		if (queuedBytes.get() + bytes <= maxQueuedBytes) {
+			return;
+		}
+		final long deadline = System.nanoTime() + blockTimeoutNanos;
+		synchronized (blockLock) {
+			blockedProducers++;
+			try {
+				while (queuedBytes.get() + bytes > maxQueuedBytes && ctx.channel().isActive()) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new FlowControlException(maxQueuedBytes);
+					}
+					TimeUnit.NANOSECONDS.timedWait(blockLock, remaining);
+				}
+			} finally {
+				blockedProducers--;
+			}
+		}
+	}
+
+	private void roomAvailable() {
+		if (blockedProducers > 0) {
+			synchronized (blockLock) {
+				blockLock.notifyAll();
+			}
+		}
+	}
+
+	private static final class PendingWrite {
+		private final HspMessage msg;
+		private final ChannelPromise promise;
+		private final int bytes;
+
+		PendingWrite(final HspMessage msg, final ChannelPromise promise, final int bytes) {
+			this.msg = msg;
+			this.promise = promise;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Notified on the event-loop when {@link HspFlowControlHandler} starts queueing (producers should pause) and when
+	 * the queue is drained again.
+	 */
+	public interface FlowControlListener {
+
+		void paused(Channel channel);
+
+		void resumed(Channel channel);
+	}
+
+	public static class FlowControlException extends RuntimeException {
+		private static final long serialVersionUID = -4384826315702981733L;
+
+		public FlowControlException(final long maxQueuedBytes) {
+			super("Max. number of queued bytes reached. max-queued-bytes=" + maxQueuedBytes);
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import org.jarmoni.hsp_netty.HspDecoder.DecoderState;
+import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
+import org.jarmoni.hsp_netty.HspMetrics.DecoderError;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadChunk;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadHeader;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Non-replaying alternative to {@link HspDecoder}.
+ * <p>
+ * Instead of reading field by field and replaying from the last checkpoint when a frame is incomplete, this decoder
+ * peeks at the command, checks {@link ByteBuf#readableBytes()} against the fixed header-size of the command (and
+ * the payload-length for commands carrying a payload) and decodes a whole frame in one pass once it is complete.
+ * The wire-format, the produced messages and the error-handling (see {@link DecoderState#STATE_ERROR}) are the same
+ * as with {@link HspDecoder}.
+ * <p>
+ * In streaming-mode frames carrying a payload are not aggregated. Instead an {@link HspPayloadHeader} is emitted as
+ * soon as the header is complete, followed by {@link HspPayloadChunk}s containing the payload-bytes as they arrive
+ * (the last chunk is marked, an empty payload results in one empty last chunk). <code>maxPayloadBytes</code> then
+ * limits the size of a chunk instead of the size of a payload, so payloads of any size can be passed on with bounded
+ * memory per connection.
+ * <p>
+ * The recovery-mode (<code>maxConsecutiveErrors &gt; 0</code>) skips frames with an oversized payload like
+ * {@link HspDecoder} does. In streaming-mode payloads are never too large, so it has no effect there.
+ * <p>
+ * In callback-mode (constructed with an {@link HspFrameListener}) no messages are created and nothing is passed on:
+ * the listener is called with the fields of every frame from the parse-loop and gets the payload as a slice of the
+ * cumulation-buffer, so decoding allocates (apart from the slice) and reference-counts nothing per frame.
+ */
+public class HspFrameDecoder extends ByteToMessageDecoder {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspFrameDecoder.class);
+
+	private static final int MAX_PAYLOAD_BYTES_DEFAULT = 8192;
+
+	private static final int COMMAND_LENGTH = 1;
+	private static final int PAYLOAD_LENGTH_LENGTH = 4;
+
+	private final int maxPayloadBytes;
+	private final MessageFactory messageFactory;
+	private final boolean streaming;
+	private final HspMetrics metrics;
+	private final int maxConsecutiveErrors;
+	// callback-mode only
+	private final HspFrameListener listener;
+	private DecoderState state = DecoderState.READ_COMMAND;
+	// streaming-mode only: payload-bytes of the current frame not emitted yet
+	private int remainingPayloadBytes;
+	// recovery-mode only
+	private int remainingSkipBytes;
+	private int consecutiveErrors;
+
+	public HspFrameDecoder() {
+		this(MAX_PAYLOAD_BYTES_DEFAULT);
+	}
+
+	public HspFrameDecoder(final int maxPayloadBytes) {
+		this(maxPayloadBytes, false);
+	}
+
+	/**
+	 * @param pooled if <code>true</code>, decoded messages are taken from a pool (see {@link MessageFactory#POOLED})
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final boolean pooled) {
+		this(maxPayloadBytes, pooled, false);
+	}
+
+	/**
+	 * @param maxPayloadBytes max. size of a payload or (in streaming-mode) of a chunk
+	 * @param streaming if <code>true</code>, payloads are emitted as {@link HspPayloadHeader} followed by
+	 *            {@link HspPayloadChunk}s
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final boolean pooled, final boolean streaming) {
+		this(maxPayloadBytes, pooled, streaming, HspMetrics.NOOP);
+	}
+
+	/**
+	 * @param metrics receives an event for every decoded frame (in streaming-mode: header) and every decoder-error
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final boolean pooled, final boolean streaming, final HspMetrics metrics) {
+		this(maxPayloadBytes, pooled, streaming, metrics, 0);
+	}
+
+	/**
+	 * @param maxConsecutiveErrors enables recovery-mode if &gt; 0: max. number of frames skipped in a row before an
+	 *            error becomes fatal (see {@link HspDecoder})
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final boolean pooled, final boolean streaming, final HspMetrics metrics, final int maxConsecutiveErrors) {
+		this(maxPayloadBytes, pooled, streaming, metrics, maxConsecutiveErrors, null);
+	}
+
+	/**
+	 * Creates a decoder in callback-mode.
+	 *
+	 * @param listener is called for every decoded frame instead of passing on a message
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final HspFrameListener listener) {
+		this(maxPayloadBytes, listener, HspMetrics.NOOP, 0);
+	}
+
+	/**
+	 * Creates a decoder in callback-mode.
+	 *
+	 * @param maxConsecutiveErrors enables recovery-mode if &gt; 0 (see
+	 *            {@link #HspFrameDecoder(int, boolean, boolean, HspMetrics, int)})
+	 */
+	public HspFrameDecoder(final int maxPayloadBytes, final HspFrameListener listener, final HspMetrics metrics, final int maxConsecutiveErrors) {
+		this(maxPayloadBytes, false, false, metrics, maxConsecutiveErrors, listener);
+	}
+
+	private HspFrameDecoder(final int maxPayloadBytes, final boolean pooled, final boolean streaming, final HspMetrics metrics, final int maxConsecutiveErrors,
+			final HspFrameListener listener) {
+		if (streaming && maxPayloadBytes <= 0) {
+			throw new IllegalArgumentException("maxPayloadBytes must be > 0 in streaming-mode. Was: " + maxPayloadBytes);
+		}
+		if (maxConsecutiveErrors < 0) {
+			throw new IllegalArgumentException("maxConsecutiveErrors must be >= 0. Was: " + maxConsecutiveErrors);
+		}
+		this.maxPayloadBytes = maxPayloadBytes;
+		this.messageFactory = pooled ? MessageFactory.POOLED : MessageFactory.UNPOOLED;
+		this.streaming = streaming;
+		this.metrics = metrics;
+		this.maxConsecutiveErrors = maxConsecutiveErrors;
+		this.listener = listener;
+		LOG.debug("Initialized with maxPayloadBytes={}, pooled={}, streaming={}, metrics={}, maxConsecutiveErrors={}, listener={}", maxPayloadBytes, pooled, streaming,
+				metrics, maxConsecutiveErrors, listener);
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf buffer, final List<Object> out) throws Exception {
+		LOG.debug("Receiving bytes...");
+		final long startNanos = metrics != HspMetrics.NOOP ? System.nanoTime() : 0;
+		if (state == DecoderState.STATE_ERROR) {
+			handleStateError(buffer);
+			return;
+		}
+		if (state == DecoderState.READ_PAYLOAD) {
+			readChunk(buffer, out);
+			return;
+		}
+		if (state == DecoderState.SKIP_PAYLOAD) {
+			skipPayload(buffer);
+			return;
+		}
+		final int readableBytes = buffer.readableBytes();
+		if (readableBytes < COMMAND_LENGTH) {
+			return;
+		}
+		final int readerIndex = buffer.readerIndex();
+		final byte command = buffer.getByte(readerIndex);
+		final HspCommandType cmdType = HspCommandType.fromByteValue(command);
+		if (cmdType == null) {
+			stateError(DecoderError.UNKNOWN_COMMAND, new HspDecoderException("Not existing command=" + command));
+			return;
+		}
+		final int headerLength = cmdType.headerLength();
+		if (readableBytes < headerLength) {
+			return;
+		}
+		if (!streaming && hasPayload(cmdType) && consecutiveErrors < maxConsecutiveErrors) {
+			// the payload-length is the last field of the header. Negative lengths are fatal (see #payloadLength(int))
+			final int payloadLength = buffer.getInt(readerIndex + headerLength - PAYLOAD_LENGTH_LENGTH);
+			if (payloadLength > maxPayloadBytes) {
+				skipFrame(ctx, buffer, cmdType, payloadLength);
+				return;
+			}
+		}
+
+		int payloadLength = 0;
+		switch (cmdType) {
+		case DataCommand: {
+			payloadLength = payloadLength(buffer.getInt(readerIndex + 3));
+			if (!streaming && readableBytes < headerLength + payloadLength) {
+				return;
+			}
+			final short payloadType = buffer.getShort(readerIndex + 1);
+			buffer.skipBytes(headerLength);
+			if (streaming) {
+				startPayload(buffer, new HspPayloadHeader(cmdType, -1, payloadType, payloadLength), out);
+				break;
+			}
+			if (listener != null) {
+				listener.onData(ctx, payloadType, readPayloadSlice(buffer, payloadLength));
+				break;
+			}
+			out.add(messageFactory.dataMessage(payloadType, readPayload(buffer, payloadLength)));
+			break;
+		}
+		case DataAckCommand: {
+			payloadLength = payloadLength(buffer.getInt(readerIndex + 7));
+			if (!streaming && readableBytes < headerLength + payloadLength) {
+				return;
+			}
+			final int messageId = buffer.getInt(readerIndex + 1);
+			final short payloadType = buffer.getShort(readerIndex + 5);
+			buffer.skipBytes(headerLength);
+			if (streaming) {
+				startPayload(buffer, new HspPayloadHeader(cmdType, messageId, payloadType, payloadLength), out);
+				break;
+			}
+			if (listener != null) {
+				listener.onDataAck(ctx, messageId, payloadType, readPayloadSlice(buffer, payloadLength));
+				break;
+			}
+			out.add(messageFactory.dataAckMessage(messageId, payloadType, readPayload(buffer, payloadLength)));
+			break;
+		}
+		case ErrorCommand: {
+			payloadLength = payloadLength(buffer.getInt(readerIndex + 7));
+			if (!streaming && readableBytes < headerLength + payloadLength) {
+				return;
+			}
+			final int messageId = buffer.getInt(readerIndex + 1);
+			final short errorType = buffer.getShort(readerIndex + 5);
+			buffer.skipBytes(headerLength);
+			if (streaming) {
+				startPayload(buffer, new HspPayloadHeader(cmdType, messageId, errorType, payloadLength), out);
+				break;
+			}
+			if (listener != null) {
+				listener.onError(ctx, messageId, errorType, readPayloadSlice(buffer, payloadLength));
+				break;
+			}
+			out.add(messageFactory.errorMessage(messageId, errorType, readPayload(buffer, payloadLength)));
+			break;
+		}
+		case AckCommand: {
+			buffer.skipBytes(COMMAND_LENGTH);
+			final int messageId = buffer.readInt();
+			if (listener != null) {
+				listener.onAck(ctx, messageId);
+				break;
+			}
+			out.add(messageFactory.ackMessage(messageId));
+			break;
+		}
+		case ErrorUndefCommand: {
+			buffer.skipBytes(COMMAND_LENGTH);
+			final int messageId = buffer.readInt();
+			if (listener != null) {
+				listener.onErrorUndef(ctx, messageId);
+				break;
+			}
+			out.add(messageFactory.errorUndefMessage(messageId));
+			break;
+		}
+		case PingCommand: {
+			buffer.skipBytes(COMMAND_LENGTH);
+			if (listener != null) {
+				listener.onPing(ctx);
+				break;
+			}
+			out.add(messageFactory.pingMessage());
+			break;
+		}
+		case PongCommand: {
+			buffer.skipBytes(COMMAND_LENGTH);
+			if (listener != null) {
+				listener.onPong(ctx);
+				break;
+			}
+			out.add(messageFactory.pongMessage());
+			break;
+		}
+		default:
+			stateError(DecoderError.MALFORMED, new HspDecoderException("Unhandled command=" + cmdType));
+		}
+		consecutiveErrors = 0;
+		if (metrics != HspMetrics.NOOP) {
+			metrics.frameDecoded(cmdType, headerLength + payloadLength, payloadLength, System.nanoTime() - startNanos);
+		}
+	}
+
+	private static boolean hasPayload(final HspCommandType cmdType) {
+		return cmdType == HspCommandType.DataCommand || cmdType == HspCommandType.DataAckCommand || cmdType == HspCommandType.ErrorCommand;
+	}
+
+	private void skipFrame(final ChannelHandlerContext ctx, final ByteBuf buffer, final HspCommandType cmdType, final int payloadLength) {
+		consecutiveErrors++;
+		LOG.warn("Payload-length={} exceeds max-payload-bytes={}. Skipping frame ({} consecutive errors)", payloadLength, maxPayloadBytes, consecutiveErrors);
+		metrics.decoderError(DecoderError.PAYLOAD_TOO_LARGE);
+		if (cmdType == HspCommandType.DataAckCommand) {
+			// written via the channel, so that the message passes the encoder wherever it is located in the pipeline
+			ctx.channel().writeAndFlush(new ErrorUndefMessage(buffer.getInt(buffer.readerIndex() + COMMAND_LENGTH)), ctx.voidPromise());
+		}
+		buffer.skipBytes(cmdType.headerLength());
+		remainingSkipBytes = payloadLength;
+		state = DecoderState.SKIP_PAYLOAD;
+		skipPayload(buffer);
+	}
+
+	private void skipPayload(final ByteBuf buffer) {
+		// skips what is available, so that an oversized payload is never accumulated
+		final int skip = Math.min(buffer.readableBytes(), remainingSkipBytes);
+		buffer.skipBytes(skip);
+		remainingSkipBytes -= skip;
+		if (remainingSkipBytes == 0) {
+			state = DecoderState.READ_COMMAND;
+		}
+	}
+
+	private int payloadLength(final int payloadLength) {
+		// Because we require an unsigned value for the 'length' we have to exclude all negative integers
+		if ((payloadLength & 0x80000000) != 0 || (!streaming && payloadLength > maxPayloadBytes)) {
+			stateError(DecoderError.PAYLOAD_TOO_LARGE, new HspDecoderException("Payload-length=" + payloadLength + " exceeds max-payload-bytes=" + maxPayloadBytes));
+		}
+		return payloadLength;
+	}
+
+	private void startPayload(final ByteBuf buffer, final HspPayloadHeader header, final List<Object> out) {
+		out.add(header);
+		remainingPayloadBytes = header.getPayloadLength();
+		state = DecoderState.READ_PAYLOAD;
+		readChunk(buffer, out);
+	}
+
+	private void readChunk(final ByteBuf buffer, final List<Object> out) {
+		if (remainingPayloadBytes == 0) {
+			state = DecoderState.READ_COMMAND;
+			out.add(new HspPayloadChunk(Unpooled.EMPTY_BUFFER, true));
+			return;
+		}
+		final int chunkLength = Math.min(Math.min(buffer.readableBytes(), remainingPayloadBytes), maxPayloadBytes);
+		if (chunkLength == 0) {
+			return;
+		}
+		remainingPayloadBytes -= chunkLength;
+		final boolean last = remainingPayloadBytes == 0;
+		if (last) {
+			state = DecoderState.READ_COMMAND;
+		}
+		out.add(new HspPayloadChunk(buffer.readRetainedSlice(chunkLength), last));
+	}
+
+	private static ByteBuf readPayload(final ByteBuf buffer, final int payloadLength) {
+		if (payloadLength == 0) {
+			return Unpooled.EMPTY_BUFFER;
+		}
+		// see HspDecoder#readPayload: a non-retained slice would be released together with the cumulation-buffer
+		return buffer.readRetainedSlice(payloadLength);
+	}
+
+	private static ByteBuf readPayloadSlice(final ByteBuf buffer, final int payloadLength) {
+		// not retained: only valid during the callback (see HspFrameListener)
+		return payloadLength == 0 ? Unpooled.EMPTY_BUFFER : buffer.readSlice(payloadLength);
+	}
+
+	private void stateError(final DecoderError error, final HspDecoderException ex) {
+		LOG.error(ex.getMessage());
+		metrics.decoderError(error);
+		state = DecoderState.STATE_ERROR;
+		throw ex;
+	}
+
+	private void handleStateError(final ByteBuf buffer) {
+		// Keep discarding until disconnection
+		buffer.skipBytes(buffer.readableBytes());
+	}
+}
@@ -0,0 +1,36 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Receives the fields of decoded frames directly from the parse-loop of an {@link HspFrameDecoder} in callback-mode
+ * (see {@link HspFrameDecoder#HspFrameDecoder(int, HspFrameListener)}), without any {@link Messages} being created or
+ * passed through the pipeline.
+ * <p>
+ * A payload is a slice of the decoder's cumulation-buffer and only valid until the method returns. It is not
+ * released by the listener. A listener using the payload afterwards (e.g. writing it to another channel) has to
+ * retain it (e.g. {@link ByteBuf#retainedSlice()}). The methods are called on the event-loop of the channel, so one
+ * instance per channel needs no synchronization. An exception thrown by a method is passed to
+ * {@link io.netty.channel.ChannelInboundHandler#exceptionCaught(ChannelHandlerContext, Throwable)} like a
+ * decoder-error (wrapped into a {@link io.netty.handler.codec.DecoderException}).
+ */
+public interface HspFrameListener {
+
+	/**
+	 * @param ctx context of the decoder
+	 */
+	default void onData(final ChannelHandlerContext ctx, final short payloadType, final ByteBuf payload) throws Exception {}
+
+	default void onDataAck(final ChannelHandlerContext ctx, final int messageId, final short payloadType, final ByteBuf payload) throws Exception {}
+
+	default void onAck(final ChannelHandlerContext ctx, final int messageId) throws Exception {}
+
+	default void onError(final ChannelHandlerContext ctx, final int messageId, final short errorType, final ByteBuf payload) throws Exception {}
+
+	default void onErrorUndef(final ChannelHandlerContext ctx, final int messageId) throws Exception {}
+
+	default void onPing(final ChannelHandlerContext ctx) throws Exception {}
+
+	default void onPong(final ChannelHandlerContext ctx) throws Exception {}
+}
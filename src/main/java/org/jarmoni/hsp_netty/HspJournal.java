@@ -0,0 +1,540 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundInvoker;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.internal.PlatformDependent;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Journal of outgoing {@link DataAckMessage}s which are not acknowledged yet, used by {@link HspJournalHandler} for
+ * at-least-once delivery across reconnects (and restarts of the process).
+ * <p>
+ * Frames are appended in their wire-format ({@link DataAckMessage#toBytes(ByteBuf)}) to memory-mapped segment-files
+ * of <code>segmentBytes</code> each. Every entry consists of the frame-length (int), a state-byte (unacked/acked) and
+ * the frame. {@link #ack(int)} only flips the state-byte, so appending and acknowledging cost no I/O besides the
+ * page-cache. When a segment is full, a new one is started. Segments without unacked entries are deleted; segments in
+ * which at most a quarter of the used bytes is still unacked are compacted (their unacked entries are copied to the
+ * current segment) whenever a new segment is started. {@link #replay(ChannelOutboundInvoker)} writes the unacked
+ * frames as buffers wrapping the mapped files, so they are not copied onto the heap.
+ * <p>
+ * The message-id identifies an entry, so the ids of unacked entries must be unique. Memory-mapped files are not
+ * forced to disk unless {@link #force()} is called, i.e. entries survive a crash of the process but not necessarily a
+ * crash of the OS. The journal is thread-safe, it is usually accessed from the event-loop of the current channel only.
+ */
+public class HspJournal implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspJournal.class);
+
+	private static final String SUFFIX = ".journal";
+	// frame-length (int) and state (byte)
+	private static final int ENTRY_HEADER_LENGTH = 5;
+	private static final byte UNACKED = 1;
+	private static final byte ACKED = 2;
+	// offset of the message-id within a DataAck-frame
+	private static final int MESSAGE_ID_OFFSET = 1;
+	private static final int COMPACTION_RATIO = 4;
+
+	private final Path directory;
+	private final int segmentBytes;
+	// oldest segment first
+	private final List<Segment> segments = new ArrayList<>();
+	private final LongObjectHashMap<Segment> segmentsBySequence = new LongObjectHashMap<>();
+	// messageId -> position of the entry ((segment-sequence << 32) | offset), primitive so appending does not box
+	private final PositionIndex index = new PositionIndex();
+	private Segment current;
+	private long nextSequence;
+	private boolean compacting;
+	private boolean closed;
+
+	/**
+	 * Opens the journal in the given directory. Unacked entries of an existing journal are kept, so they are replayed
+	 * after a restart.
+	 *
+	 * @param segmentBytes size of a segment-file (a frame larger than this gets a segment of its own)
+	 */
+	public HspJournal(final Path directory, final int segmentBytes) {
+		if (segmentBytes <= ENTRY_HEADER_LENGTH) {
+			throw new IllegalArgumentException("segmentBytes must be > " + ENTRY_HEADER_LENGTH + ". Was: " + segmentBytes);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		try {
+			Files.createDirectories(directory);
+			recover();
+		} catch (final IOException e) {
+			throw new HspJournalException("Opening journal in " + directory + " failed", e);
+		}
+		LOG.debug("Initialized with directory={}, segmentBytes={}, unacked={}", directory, segmentBytes, index.size());
+	}
+
+	/**
+	 * Appends the frame of the message.
+	 *
+	 * @throws HspJournalException if an entry with the same message-id is not acked yet or the segment could not be
+	 *             created
+	 */
+	public synchronized void append(final DataAckMessage msg) {
+		checkOpen();
+		final int messageId = msg.getMessageId();
+		if (index.containsKey(messageId)) {
+			throw new HspJournalException("Entry with messageId=" + messageId + " is not acked yet");
+		}
+		final int frameLength = msg.headerLength() + msg.getPayload().readableBytes();
+		final Segment segment = segmentFor(frameLength);
+		final ByteBuf buf = segment.buf;
+		final int offset = buf.writerIndex();
+		buf.writerIndex(offset + ENTRY_HEADER_LENGTH);
+		msg.toBytes(buf);
+		// the length is written last, so an interrupted append is not recovered as an entry
+		buf.setByte(offset + 4, UNACKED);
+		buf.setInt(offset, frameLength);
+		added(segment, messageId, offset, frameLength);
+	}
+
+	/**
+	 * @return <code>true</code> if there is an unacked entry with the given message-id, i.e. the id must not be used
+	 *         for a new message yet (see {@link HspJournalHandler})
+	 */
+	public synchronized boolean contains(final int messageId) {
+		return index.containsKey(messageId);
+	}
+
+	/**
+	 * Marks the entry with the given message-id as acked.
+	 *
+	 * @return <code>false</code> if there is no unacked entry with this message-id
+	 */
+	public synchronized boolean ack(final int messageId) {
+		if (closed) {
+			return false;
+		}
+		final long position = index.remove(messageId);
+		if (position == PositionIndex.NONE) {
+			return false;
+		}
+		final Segment segment = segment(position >>> 32);
+		final int offset = (int) position;
+		segment.buf.setByte(offset + 4, ACKED);
+		segment.unacked--;
+		segment.unackedBytes -= ENTRY_HEADER_LENGTH + segment.buf.getInt(offset);
+		if (segment.unacked == 0 && segment != current) {
+			remove(segment);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the frames of all unacked entries (oldest segment first) without flushing. The written buffers wrap the
+	 * mapped files, the segments stay mapped until the writes are completed.
+	 *
+	 * @return number of written frames
+	 */
+	public synchronized int replay(final ChannelOutboundInvoker out) {
+		checkOpen();
+		int count = 0;
+		for (final Segment segment : segments) {
+			int offset = 0;
+			int frameLength;
+			while (offset + ENTRY_HEADER_LENGTH <= segment.buf.capacity() && (frameLength = segment.buf.getInt(offset)) > 0) {
+				if (segment.buf.getByte(offset + 4) == UNACKED) {
+					final ByteBuf frame = Unpooled.wrappedBuffer(segment.buf.nioBuffer(offset + ENTRY_HEADER_LENGTH, frameLength));
+					segment.retain();
+					out.write(frame).addListener(segment);
+					count++;
+				}
+				offset += ENTRY_HEADER_LENGTH + frameLength;
+			}
+		}
+		LOG.debug("Replayed {} entries", count);
+		return count;
+	}
+
+	/**
+	 * @return number of unacked entries
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return number of segment-files
+	 */
+	public synchronized int segmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces the content of all segments to the storage device.
+	 */
+	public synchronized void force() {
+		checkOpen();
+		for (final Segment segment : segments) {
+			segment.mapped.force();
+		}
+	}
+
+	/**
+	 * Copies the unacked entries of segments in which at most a quarter of the used bytes is unacked to the current
+	 * segment and deletes these segments. Called automatically whenever a new segment is started.
+	 */
+	public synchronized void compact() {
+		checkOpen();
+		if (compacting) {
+			return;
+		}
+		compacting = true;
+		try {
+			for (final Segment segment : new ArrayList<>(segments)) {
+				// a segment may have been removed while compacting another one
+				if (segment != current && !segment.obsolete && segment.unackedBytes * COMPACTION_RATIO <= segment.buf.writerIndex()) {
+					moveEntries(segment);
+				}
+			}
+		} finally {
+			compacting = false;
+		}
+	}
+
+	/**
+	 * Unmaps all segments (once pending replays are written). Unacked entries are kept for the next
+	 * {@link HspJournal} opened in the same directory.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (final Segment segment : segments) {
+			segment.release();
+		}
+		segments.clear();
+		segmentsBySequence.clear();
+		index.clear();
+		current = null;
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new HspJournalException("Journal is closed");
+		}
+	}
+
+	private Segment segmentFor(final int frameLength) {
+		final int entryLength = ENTRY_HEADER_LENGTH + frameLength;
+		if (current != null && current.buf.writableBytes() >= entryLength) {
+			return current;
+		}
+		final Segment previous = current;
+		current = newSegment(Math.max(segmentBytes, entryLength));
+		if (previous != null && previous.unacked == 0) {
+			remove(previous);
+		}
+		compact();
+		// compaction may have filled the new segment
+		return current.buf.writableBytes() >= entryLength ? current : segmentFor(frameLength);
+	}
+
+	private void moveEntries(final Segment segment) {
+		int offset = 0;
+		int frameLength;
+		while (segment.unacked > 0 && (frameLength = segment.buf.getInt(offset)) > 0) {
+			if (segment.buf.getByte(offset + 4) == UNACKED) {
+				final int messageId = segment.buf.getInt(offset + ENTRY_HEADER_LENGTH + MESSAGE_ID_OFFSET);
+				index.remove(messageId);
+				final Segment target = segmentFor(frameLength);
+				final int targetOffset = target.buf.writerIndex();
+				target.buf.writerIndex(targetOffset + ENTRY_HEADER_LENGTH);
+				target.buf.writeBytes(segment.buf, offset + ENTRY_HEADER_LENGTH, frameLength);
+				target.buf.setByte(targetOffset + 4, UNACKED);
+				target.buf.setInt(targetOffset, frameLength);
+				added(target, messageId, targetOffset, frameLength);
+				segment.buf.setByte(offset + 4, ACKED);
+				segment.unacked--;
+				segment.unackedBytes -= ENTRY_HEADER_LENGTH + frameLength;
+			}
+			offset += ENTRY_HEADER_LENGTH + frameLength;
+		}
+		LOG.debug("Compacted segment={}", segment.path);
+		remove(segment);
+	}
+
+	private void added(final Segment segment, final int messageId, final int offset, final int frameLength) {
+		index.put(messageId, (segment.sequence << 32) | offset);
+		segment.unacked++;
+		segment.unackedBytes += ENTRY_HEADER_LENGTH + frameLength;
+	}
+
+	private Segment segment(final long sequence) {
+		final Segment segment = segmentsBySequence.get(sequence);
+		if (segment == null) {
+			throw new IllegalStateException("No segment with sequence=" + sequence);
+		}
+		return segment;
+	}
+
+	private void add(final Segment segment) {
+		segments.add(segment);
+		segmentsBySequence.put(segment.sequence, segment);
+	}
+
+	private void remove(final Segment segment) {
+		segments.remove(segment);
+		segmentsBySequence.remove(segment.sequence);
+		segment.obsolete = true;
+		segment.release();
+	}
+
+	private Segment newSegment(final int size) {
+		final Path path = directory.resolve(String.format("%020d%s", nextSequence, SUFFIX));
+		try {
+			final Segment segment = new Segment(path, nextSequence++, map(path, size));
+			add(segment);
+			LOG.debug("Started segment={}", path);
+			return segment;
+		} catch (final IOException e) {
+			throw new HspJournalException("Creating segment " + path + " failed", e);
+		}
+	}
+
+	private void recover() throws IOException {
+		final List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		// the file-names are zero-padded sequence-numbers
+		paths.sort(null);
+		for (final Path path : paths) {
+			final String name = path.getFileName().toString();
+			final long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			final Segment segment = new Segment(path, sequence, map(path, (int) Files.size(path)));
+			add(segment);
+			nextSequence = sequence + 1;
+			final ByteBuf buf = segment.buf;
+			int offset = 0;
+			int frameLength;
+			while (offset + ENTRY_HEADER_LENGTH <= buf.capacity() && (frameLength = buf.getInt(offset)) > 0 && offset + ENTRY_HEADER_LENGTH + frameLength <= buf.capacity()) {
+				if (buf.getByte(offset + 4) == UNACKED) {
+					final int messageId = buf.getInt(offset + ENTRY_HEADER_LENGTH + MESSAGE_ID_OFFSET);
+					if (index.containsKey(messageId)) {
+						LOG.warn("Duplicate unacked messageId={} in segment={}, the older entry is replaced", messageId, path);
+						ack(messageId);
+					}
+					added(segment, messageId, offset, frameLength);
+				}
+				offset += ENTRY_HEADER_LENGTH + frameLength;
+			}
+			buf.writerIndex(offset);
+			current = segment;
+		}
+		for (final Segment segment : new ArrayList<>(segments)) {
+			if (segment.unacked == 0 && segment != current) {
+				remove(segment);
+			}
+		}
+	}
+
+	private static MappedByteBuffer map(final Path path, final int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return channel.map(MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * A mapped segment-file. References are held by the journal and by every replayed frame not written yet, the file
+	 * is unmapped (and deleted if it has become obsolete) when the last reference is released.
+	 */
+	private static final class Segment extends AbstractReferenceCounted implements ChannelFutureListener {
+		private final Path path;
+		private final long sequence;
+		private final MappedByteBuffer mapped;
+		private final ByteBuf buf;
+		private int unacked;
+		private long unackedBytes;
+		private boolean obsolete;
+
+		Segment(final Path path, final long sequence, final MappedByteBuffer mapped) {
+			this.path = path;
+			this.sequence = sequence;
+			this.mapped = mapped;
+			// the wrapper does not free the mapped memory
+			this.buf = Unpooled.wrappedBuffer(mapped).clear();
+		}
+
+		@Override
+		public void operationComplete(final ChannelFuture future) {
+			release();
+		}
+
+		@Override
+		protected void deallocate() {
+			PlatformDependent.freeDirectBuffer(mapped);
+			if (obsolete) {
+				try {
+					Files.deleteIfExists(path);
+				} catch (final IOException e) {
+					LOG.warn("Deleting segment={} failed: {}", path, e.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public ReferenceCounted touch(final Object hint) {
+			return this;
+		}
+	}
+
+	/**
+	 * Open-addressing table (linear probing) of message-ids to non-negative positions, so neither lookups nor
+	 * updates allocate.
+	 */
+	private static final class PositionIndex {
+		static final long NONE = -1;
+		private static final int INITIAL_CAPACITY = 64;
+
+		private int[] keys = new int[INITIAL_CAPACITY];
+		// NONE marks a free slot
+		private long[] values = newValues(INITIAL_CAPACITY);
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		boolean containsKey(final int key) {
+			return get(key) != NONE;
+		}
+
+		long get(final int key) {
+			for (int i = slot(key);; i = next(i)) {
+				if (values[i] == NONE) {
+					return NONE;
+				}
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+		}
+
+		void put(final int key, final long value) {
+			for (int i = slot(key);; i = next(i)) {
+				if (values[i] == NONE) {
+					keys[i] = key;
+					values[i] = value;
+					// load-factor 0.5
+					if (++size * 2 > keys.length) {
+						rehash(keys.length * 2);
+					}
+					return;
+				}
+				if (keys[i] == key) {
+					values[i] = value;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the removed position or {@link #NONE}
+		 */
+		long remove(final int key) {
+			for (int i = slot(key);; i = next(i)) {
+				if (values[i] == NONE) {
+					return NONE;
+				}
+				if (keys[i] == key) {
+					final long value = values[i];
+					values[i] = NONE;
+					size--;
+					closeGap(i);
+					return value;
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(values, NONE);
+			size = 0;
+		}
+
+		/**
+		 * Moves the following entries of the probe-sequence into the freed slot where necessary, so lookups need no
+		 * tombstones.
+		 */
+		private void closeGap(final int freed) {
+			int gap = freed;
+			for (int i = next(freed); values[i] != NONE; i = next(i)) {
+				final int home = slot(keys[i]);
+				// the entry may fill the gap if its home-slot is not cyclically within (gap, i]
+				if (((i - home) & (keys.length - 1)) >= ((i - gap) & (keys.length - 1))) {
+					keys[gap] = keys[i];
+					values[gap] = values[i];
+					values[i] = NONE;
+					gap = i;
+				}
+			}
+		}
+
+		private void rehash(final int capacity) {
+			final int[] oldKeys = keys;
+			final long[] oldValues = values;
+			keys = new int[capacity];
+			values = newValues(capacity);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != NONE) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private int slot(final int key) {
+			// consecutive message-ids are spread over the table
+			final int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (keys.length - 1);
+		}
+
+		private int next(final int i) {
+			return (i + 1) & (keys.length - 1);
+		}
+
+		private static long[] newValues(final int capacity) {
+			final long[] values = new long[capacity];
+			Arrays.fill(values, NONE);
+			return values;
+		}
+	}
+
+	public static class HspJournalException extends RuntimeException {
+		private static final long serialVersionUID = -4316521779032409541L;
+
+		public HspJournalException(final String message) {
+			super(message);
+		}
+
+		public HspJournalException(final String message, final Throwable cause) {
+			super(message, cause);
+		}
+	}
+}
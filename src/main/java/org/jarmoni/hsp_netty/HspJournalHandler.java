@@ -0,0 +1,77 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import org.jarmoni.hsp_netty.HspJournal.HspJournalException;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * At-least-once delivery of {@link DataAckMessage}s across reconnects, backed by an {@link HspJournal}.
+ * <p>
+ * Every outgoing {@link DataAckMessage} is appended to the journal before it is passed on. The entry is marked as acked
+ * when the peer answers the message-id with an {@link AckMessage}, an {@link ErrorMessage} or an
+ * {@link ErrorUndefMessage} (an error is an answer, too, so it is not replayed). Answers are passed on. When the
+ * channel becomes active, all unacked entries (e.g. of a previous connection) are replayed from the mapped journal
+ * before the event is passed on.
+ * <p>
+ * The journal outlives the connection: add a new handler with the same journal to every new channel. Place this
+ * handler between the encoder and the handler assigning the message-ids (e.g. {@link HspAckCorrelator}). The ids of
+ * unacked entries must be unique, a message whose id is still unacked is failed with {@link HspJournalException}, so
+ * the correlator of a new connection has to skip them: <code>new HspAckCorrelator(maxInFlight, listener,
+ * journal::contains)</code>. Replayed messages are answered with their original ids, which that correlator does not
+ * know (and passes on).
+ */
+public class HspJournalHandler extends ChannelDuplexHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspJournalHandler.class);
+
+	private final HspJournal journal;
+
+	public HspJournalHandler(final HspJournal journal) {
+		this.journal = journal;
+	}
+
+	@Override
+	public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+		final int replayed = journal.replay(ctx);
+		if (replayed > 0) {
+			LOG.info("Replaying {} unacked messages on channel={}", replayed, ctx.channel());
+			ctx.flush();
+		}
+		ctx.fireChannelActive();
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		if (msg instanceof DataAckMessage) {
+			final DataAckMessage dataAckMessage = (DataAckMessage) msg;
+			try {
+				journal.append(dataAckMessage);
+			} catch (final HspJournalException e) {
+				dataAckMessage.release();
+				promise.setFailure(e);
+				return;
+			}
+		}
+		ctx.write(msg, promise);
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof AckMessage) {
+			journal.ack(((AckMessage) msg).getMessageId());
+		} else if (msg instanceof ErrorMessage) {
+			journal.ack(((ErrorMessage) msg).getMessageId());
+		} else if (msg instanceof ErrorUndefMessage) {
+			journal.ack(((ErrorUndefMessage) msg).getMessageId());
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	public HspJournal getJournal() {
+		return journal;
+	}
+}
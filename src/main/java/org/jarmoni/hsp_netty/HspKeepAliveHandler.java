@@ -0,0 +1,176 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.jarmoni.hsp_netty.Messages.PingMessage;
+import org.jarmoni.hsp_netty.Messages.PongMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an HSP-connection alive and detects dead peers.
+ * <p>
+ * Received {@link PingMessage}s are answered with a {@link PongMessage} and neither of them is passed to the
+ * following handlers. When nothing has been read for <code>pingInterval</code>, a {@link PingMessage} is sent and the
+ * round-trip-time until the {@link PongMessage} arrives is recorded in a {@link Histogram} (nanoseconds). Every read
+ * proves that the peer is alive. Writes only delay a ping by at most one further <code>pingInterval</code>, so a peer
+ * which is only written to is still checked. When nothing has been read for <code>maxMissedPongs</code> intervals
+ * after a ping, the channel is closed. Further pings are sent while one is unanswered, the round-trip-time is measured
+ * from the first of them. A pong arriving after other messages is not measured, as it was delayed by them.
+ * <p>
+ * Place this handler behind the decoder (and in front of application-handlers).
+ */
+public class HspKeepAliveHandler extends ChannelDuplexHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspKeepAliveHandler.class);
+
+	private final long pingIntervalNanos;
+	private final int maxMissedPongs;
+	private final Histogram rttHistogram;
+
+	private ChannelHandlerContext ctx;
+	private ScheduledFuture<?> checkFuture;
+	private final Runnable checkTask = this::check;
+	private long lastReadNanos;
+	private long lastWriteNanos;
+	private long pingSentNanos;
+	// pongs answer the pings in order, so the count tells whether a pong answers the measured ping
+	private int pingsInFlight;
+	private boolean measuringRtt;
+	private int missedPongs;
+	private volatile long lastRttNanos = -1;
+
+	public HspKeepAliveHandler(final long pingInterval, final TimeUnit unit, final int maxMissedPongs) {
+		this(pingInterval, unit, maxMissedPongs, new Histogram());
+	}
+
+	/**
+	 * @param rttHistogram receives the round-trip-times (may be shared by several handlers, see
+	 *            {@link Histogram#striped()})
+	 */
+	public HspKeepAliveHandler(final long pingInterval, final TimeUnit unit, final int maxMissedPongs, final Histogram rttHistogram) {
+		if (pingInterval <= 0) {
+			throw new IllegalArgumentException("pingInterval must be > 0. Was: " + pingInterval);
+		}
+		if (maxMissedPongs <= 0) {
+			throw new IllegalArgumentException("maxMissedPongs must be > 0. Was: " + maxMissedPongs);
+		}
+		this.pingIntervalNanos = unit.toNanos(pingInterval);
+		this.maxMissedPongs = maxMissedPongs;
+		this.rttHistogram = rttHistogram;
+		LOG.debug("Initialized with pingIntervalNanos={}, maxMissedPongs={}", pingIntervalNanos, maxMissedPongs);
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+		if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+			start();
+		}
+	}
+
+	@Override
+	public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+		start();
+		ctx.fireChannelActive();
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		stop();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		stop();
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		final long now = System.nanoTime();
+		lastReadNanos = now;
+		if (msg instanceof PingMessage) {
+			ctx.writeAndFlush(PongMessage.instance(), ctx.voidPromise());
+			return;
+		}
+		missedPongs = 0;
+		if (msg instanceof PongMessage) {
+			if (pingsInFlight > 0) {
+				pingsInFlight--;
+				if (measuringRtt) {
+					measuringRtt = false;
+					lastRttNanos = now - pingSentNanos;
+					rttHistogram.record(lastRttNanos);
+				}
+			}
+			return;
+		}
+		measuringRtt = false;
+		ctx.fireChannelRead(msg);
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+		lastWriteNanos = System.nanoTime();
+		ctx.write(msg, promise);
+	}
+
+	public Histogram getRttHistogram() {
+		return rttHistogram;
+	}
+
+	/**
+	 * @return round-trip-time of the last answered ping or <code>-1</code>
+	 */
+	public long getLastRttNanos() {
+		return lastRttNanos;
+	}
+
+	private void start() {
+		if (checkFuture != null) {
+			return;
+		}
+		lastReadNanos = System.nanoTime();
+		lastWriteNanos = lastReadNanos;
+		checkFuture = ctx.executor().schedule(checkTask, pingIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void stop() {
+		if (checkFuture != null) {
+			checkFuture.cancel(false);
+			checkFuture = null;
+		}
+	}
+
+	private void check() {
+		if (!ctx.channel().isOpen()) {
+			return;
+		}
+		final long now = System.nanoTime();
+		// a write defers the ping by at most one interval after the last read
+		final long pingDueNanos = Math.min(Math.max(lastReadNanos, lastWriteNanos), lastReadNanos + pingIntervalNanos) + pingIntervalNanos;
+		if (now - pingDueNanos < 0) {
+			// data is flowing, so there is no need for a ping
+			checkFuture = ctx.executor().schedule(checkTask, pingDueNanos - now, TimeUnit.NANOSECONDS);
+			return;
+		}
+		if (pingsInFlight > 0 && ++missedPongs >= maxMissedPongs) {
+			LOG.warn("Closing channel={}: {} pings were not answered", ctx.channel(), missedPongs);
+			checkFuture = null;
+			ctx.close();
+			return;
+		}
+		if (pingsInFlight++ == 0) {
+			// a late pong answers the first unanswered ping, so its send-time is kept
+			measuringRtt = true;
+			pingSentNanos = now;
+		}
+		ctx.writeAndFlush(PingMessage.instance(), ctx.voidPromise());
+		checkFuture = ctx.executor().schedule(checkTask, pingIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,130 @@
+package org.jarmoni.hsp_netty;
+
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives codec-level events from {@link HspDecoder}, {@link HspFrameDecoder}, {@link HspEncoder} and
+ * {@link HspBatchingEncoder}.
+ * <p>
+ * Implementations are called on the event-loop for every frame, so they must be cheap and thread-safe (one instance
+ * is usually shared by all channels). {@link #NOOP} is the default, {@link LongAdderMetrics} counts everything
+ * without locks.
+ */
+public interface HspMetrics {
+
+	HspMetrics NOOP = new HspMetrics() {
+	};
+
+	/**
+	 * @param frameBytes header- and payload-bytes
+	 * @param decodeNanos time spent in the decode-call which completed the frame
+	 */
+	default void frameDecoded(final HspCommandType commandType, final int frameBytes, final int payloadBytes, final long decodeNanos) {}
+
+	/**
+	 * @param frameBytes header- and payload-bytes
+	 */
+	default void frameEncoded(final HspCommandType commandType, final int frameBytes) {}
+
+	default void decoderError(final DecoderError error) {}
+
+	enum DecoderError {
+		UNKNOWN_COMMAND, PAYLOAD_TOO_LARGE, MISSING_FIELDS, MALFORMED
+	}
+
+	/**
+	 * Counts frames and bytes per {@link HspCommandType} and direction and decoder-errors per {@link DecoderError}
+	 * using {@link LongAdder}s. Payload-sizes and decode-times are recorded in {@link Histogram}s.
+	 */
+	class LongAdderMetrics implements HspMetrics {
+
+		private static final HspCommandType[] COMMAND_TYPES = HspCommandType.values();
+		private static final DecoderError[] DECODER_ERRORS = DecoderError.values();
+
+		private final LongAdder[] decodedFrames = newAdders(COMMAND_TYPES.length);
+		private final LongAdder[] decodedBytes = newAdders(COMMAND_TYPES.length);
+		private final LongAdder[] encodedFrames = newAdders(COMMAND_TYPES.length);
+		private final LongAdder[] encodedBytes = newAdders(COMMAND_TYPES.length);
+		private final LongAdder[] decoderErrors = newAdders(DECODER_ERRORS.length);
+		private final Histogram payloadBytes = Histogram.striped();
+		private final Histogram decodeNanos = Histogram.striped();
+
+		@Override
+		public void frameDecoded(final HspCommandType commandType, final int frameBytes, final int payloadBytes, final long decodeNanos) {
+			final int i = commandType.ordinal();
+			decodedFrames[i].increment();
+			decodedBytes[i].add(frameBytes);
+			this.payloadBytes.record(payloadBytes);
+			this.decodeNanos.record(decodeNanos);
+		}
+
+		@Override
+		public void frameEncoded(final HspCommandType commandType, final int frameBytes) {
+			final int i = commandType.ordinal();
+			encodedFrames[i].increment();
+			encodedBytes[i].add(frameBytes);
+		}
+
+		@Override
+		public void decoderError(final DecoderError error) {
+			decoderErrors[error.ordinal()].increment();
+		}
+
+		public long getDecodedFrames(final HspCommandType commandType) {
+			return decodedFrames[commandType.ordinal()].sum();
+		}
+
+		public long getDecodedBytes(final HspCommandType commandType) {
+			return decodedBytes[commandType.ordinal()].sum();
+		}
+
+		public long getEncodedFrames(final HspCommandType commandType) {
+			return encodedFrames[commandType.ordinal()].sum();
+		}
+
+		public long getEncodedBytes(final HspCommandType commandType) {
+			return encodedBytes[commandType.ordinal()].sum();
+		}
+
+		public long getDecoderErrors(final DecoderError error) {
+			return decoderErrors[error.ordinal()].sum();
+		}
+
+		/**
+		 * @return sizes of decoded payloads (bytes)
+		 */
+		public Histogram getPayloadBytes() {
+			return payloadBytes;
+		}
+
+		/**
+		 * @return decode-times of frames (nanoseconds)
+		 */
+		public Histogram getDecodeNanos() {
+			return decodeNanos;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("LongAdderMetrics[");
+			for (final HspCommandType commandType : COMMAND_TYPES) {
+				sb.append(commandType).append("=[in=").append(getDecodedFrames(commandType)).append('/').append(getDecodedBytes(commandType)).append("B, out=")
+						.append(getEncodedFrames(commandType)).append('/').append(getEncodedBytes(commandType)).append("B], ");
+			}
+			for (final DecoderError error : DECODER_ERRORS) {
+				sb.append(error).append('=').append(getDecoderErrors(error)).append(", ");
+			}
+			return sb.append("payloadBytes=").append(payloadBytes).append(", decodeNanos=").append(decodeNanos).append(']').toString();
+		}
+
+		private static LongAdder[] newAdders(final int size) {
+			final LongAdder[] adders = new LongAdder[size];
+			for (int i = 0; i < size; i++) {
+				adders[i] = new LongAdder();
+			}
+			return adders;
+		}
+	}
+}
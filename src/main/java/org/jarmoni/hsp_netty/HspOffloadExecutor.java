@@ -0,0 +1,144 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pool of worker-threads with one task-queue per thread ("stripe"), used by {@link HspOffloadHandler}.
+ * <p>
+ * A task is executed by the stripe selected by its key, so tasks with the same key are executed one after another in
+ * the order they were submitted. Every stripe has a lock-free multi-producer/single-consumer queue (see
+ * {@link PlatformDependent#newMpscQueue()}), so any number of event-loops can submit without contention on a lock.
+ * An idle worker parks and is unparked by the next submit. The executor is usually shared by all channels.
+ */
+public class HspOffloadExecutor implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspOffloadExecutor.class);
+
+	private final Stripe[] stripes;
+	private volatile boolean shutdown;
+
+	/**
+	 * @param threads number of stripes (and threads), default is the number of available processors
+	 */
+	public HspOffloadExecutor(final int threads) {
+		this(threads, new DefaultThreadFactory("hsp-offload", true));
+	}
+
+	public HspOffloadExecutor(final int threads, final ThreadFactory threadFactory) {
+		final int stripeCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+			stripes[i].thread = threadFactory.newThread(stripes[i]);
+		}
+		for (final Stripe stripe : stripes) {
+			stripe.thread.start();
+		}
+		LOG.debug("Initialized with stripes={}", stripeCount);
+	}
+
+	/**
+	 * Executes the task on the stripe selected by the key.
+	 *
+	 * @throws IllegalStateException if the executor has been closed
+	 */
+	public void execute(final int key, final Runnable task) {
+		if (shutdown) {
+			throw new IllegalStateException("Executor is closed");
+		}
+		stripes[(key & Integer.MAX_VALUE) % stripes.length].execute(task);
+	}
+
+	public int stripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Stops accepting tasks and waits until the workers have executed the tasks already submitted.
+	 *
+	 * @return <code>true</code> if all workers terminated within the timeout
+	 */
+	public boolean shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+		shutdown = true;
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (final Stripe stripe : stripes) {
+			LockSupport.unpark(stripe.thread);
+		}
+		for (final Stripe stripe : stripes) {
+			final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remainingMillis <= 0) {
+				return false;
+			}
+			stripe.thread.join(remainingMillis);
+			if (stripe.thread.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Shuts down and waits up to 10 seconds for the workers (see {@link #shutdown(long, TimeUnit)}).
+	 */
+	@Override
+	public void close() {
+		try {
+			if (!shutdown(10, TimeUnit.SECONDS)) {
+				LOG.warn("Workers did not terminate within 10 seconds");
+			}
+		} catch (final InterruptedException e) {
+			LOG.warn("Interrupted while waiting for the workers to terminate");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private final class Stripe implements Runnable {
+		private final Queue<Runnable> queue = PlatformDependent.newMpscQueue();
+		private Thread thread;
+		private volatile boolean parked;
+
+		void execute(final Runnable task) {
+			queue.offer(task);
+			if (parked) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Runnable task = queue.poll();
+				if (task != null) {
+					runSafely(task);
+					continue;
+				}
+				if (shutdown) {
+					return;
+				}
+				parked = true;
+				// a task offered before 'parked' was visible to the producer is found here, a task offered afterwards
+				// unparks this thread
+				if (queue.isEmpty() && !shutdown) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+
+		private void runSafely(final Runnable task) {
+			try {
+				task.run();
+			} catch (final Throwable t) {
+				LOG.error("Offloaded task failed", t);
+			}
+		}
+	}
+}
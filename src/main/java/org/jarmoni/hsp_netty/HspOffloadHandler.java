@@ -0,0 +1,173 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.Recycler;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Hands decoded {@link DataMessage}s and {@link DataAckMessage}s over to the worker-threads of an
+ * {@link HspOffloadExecutor}, so that the handling of the messages of one connection can use all cores.
+ * <p>
+ * The stripe (i.e. the worker) is selected by a key of the message, by default its payload-type, so messages with the
+ * same key are handled in the order they were received. The {@link OffloadHandler} is called on the worker, afterwards
+ * the message is released (a handler keeping the payload has to retain it). When the handler returns, a
+ * {@link DataAckMessage} is answered with an {@link AckMessage}, when it throws, with an {@link ErrorUndefMessage}.
+ * Both are written from the worker. Other messages are passed on on the event-loop.
+ * <p>
+ * When more than <code>maxPendingMessages</code> messages of the channel are waiting for a worker, reading from the
+ * channel is suspended until half of them are handled.
+ */
+public class HspOffloadHandler extends ChannelInboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspOffloadHandler.class);
+
+	private static final int MAX_PENDING_MESSAGES_DEFAULT = 1024;
+
+	private final HspOffloadExecutor executor;
+	private final ToIntFunction<PayloadMessage> stripeKey;
+	private final OffloadHandler handler;
+	private final int maxPendingMessages;
+	private final AtomicInteger pendingMessages = new AtomicInteger();
+	private final Runnable resumeTask = this::resumeIfDrained;
+	private ChannelHandlerContext ctx;
+	private boolean suspended;
+
+	public HspOffloadHandler(final HspOffloadExecutor executor, final OffloadHandler handler) {
+		this(executor, HspOffloadHandler::payloadType, handler, MAX_PENDING_MESSAGES_DEFAULT);
+	}
+
+	/**
+	 * @param stripeKey key selecting the stripe, messages with the same key are handled in order
+	 * @param maxPendingMessages number of messages waiting for a worker above which reading is suspended
+	 */
+	public HspOffloadHandler(final HspOffloadExecutor executor, final ToIntFunction<PayloadMessage> stripeKey, final OffloadHandler handler, final int maxPendingMessages) {
+		if (maxPendingMessages <= 0) {
+			throw new IllegalArgumentException("maxPendingMessages must be > 0. Was: " + maxPendingMessages);
+		}
+		this.executor = executor;
+		this.stripeKey = stripeKey;
+		this.handler = handler;
+		this.maxPendingMessages = maxPendingMessages;
+		LOG.debug("Initialized with maxPendingMessages={}", maxPendingMessages);
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (!(msg instanceof DataMessage) && !(msg instanceof DataAckMessage)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		final PayloadMessage payloadMessage = (PayloadMessage) msg;
+		// counted before the worker can count it down
+		if (pendingMessages.incrementAndGet() > maxPendingMessages && !suspended) {
+			LOG.debug("Suspending reads of channel={}", ctx.channel());
+			suspended = true;
+			ctx.channel().config().setAutoRead(false);
+		}
+		try {
+			executor.execute(stripeKey.applyAsInt(payloadMessage), Task.newInstance(this, payloadMessage));
+		} catch (final IllegalStateException e) {
+			pendingMessages.decrementAndGet();
+			payloadMessage.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of messages of this channel waiting for (or being handled by) a worker
+	 */
+	public int getPendingMessages() {
+		return pendingMessages.get();
+	}
+
+	private void handle(final PayloadMessage msg) {
+		final boolean answer = msg instanceof DataAckMessage;
+		final int messageId = answer ? ((DataAckMessage) msg).getMessageId() : -1;
+		boolean handled = false;
+		try {
+			handler.handle(ctx, msg);
+			handled = true;
+		} catch (final Throwable t) {
+			LOG.error("Handling of message={} failed", msg, t);
+		} finally {
+			msg.release();
+		}
+		if (answer) {
+			ctx.writeAndFlush(handled ? new AckMessage(messageId) : new ErrorUndefMessage(messageId), ctx.voidPromise());
+		}
+		if (pendingMessages.decrementAndGet() == maxPendingMessages / 2) {
+			// suspending and resuming happen on the event-loop, so they cannot overtake each other
+			ctx.executor().execute(resumeTask);
+		}
+	}
+
+	private void resumeIfDrained() {
+		if (suspended && pendingMessages.get() <= maxPendingMessages / 2) {
+			LOG.debug("Resuming reads of channel={}", ctx.channel());
+			suspended = false;
+			ctx.channel().config().setAutoRead(true);
+		}
+	}
+
+	private static int payloadType(final PayloadMessage msg) {
+		return msg instanceof DataMessage ? ((DataMessage) msg).getPayloadType() : ((DataAckMessage) msg).getPayloadType();
+	}
+
+	/**
+	 * Handles a message on a worker-thread. The message is released after this method returned, so the payload has to
+	 * be retained if it is used afterwards.
+	 */
+	@FunctionalInterface
+	public interface OffloadHandler {
+
+		/**
+		 * @param msg {@link DataMessage} or {@link DataAckMessage}
+		 */
+		void handle(ChannelHandlerContext ctx, PayloadMessage msg) throws Exception;
+	}
+
+	private static final class Task implements Runnable {
+		private static final Recycler<Task> RECYCLER = new Recycler<Task>() {
+			@Override
+			protected Task newObject(final Handle<Task> handle) {
+				return new Task(handle);
+			}
+		};
+
+		private final Recycler.Handle<Task> handle;
+		private HspOffloadHandler owner;
+		private PayloadMessage msg;
+
+		private Task(final Recycler.Handle<Task> handle) {
+			this.handle = handle;
+		}
+
+		static Task newInstance(final HspOffloadHandler owner, final PayloadMessage msg) {
+			final Task task = RECYCLER.get();
+			task.owner = owner;
+			task.msg = msg;
+			return task;
+		}
+
+		@Override
+		public void run() {
+			final HspOffloadHandler o = owner;
+			final PayloadMessage m = msg;
+			owner = null;
+			msg = null;
+			handle.recycle(this);
+			o.handle(m);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.jarmoni.hsp_netty.Messages.DataAckMessage;
+import org.jarmoni.hsp_netty.Messages.DataMessage;
+import org.jarmoni.hsp_netty.Messages.PayloadMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Routes {@link DataMessage}s and {@link DataAckMessage}s to the {@link PayloadHandler} registered for their
+ * payload-type.
+ * <p>
+ * The handlers are looked up in a table with one slot per payload-type, which is built once by {@link Builder}, so a
+ * dispatch is a single array-access. A handler may be registered with an {@link Executor}: messages of its type are
+ * then handled on the executor (e.g. for slow consumers) while all other types are handled inline on the event-loop.
+ * Messages of types without handler are passed on to the next handler (or to the default-handler, if set). Other
+ * messages are always passed on.
+ */
+@ChannelHandler.Sharable
+public class HspPayloadDispatcher extends ChannelInboundHandlerAdapter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspPayloadDispatcher.class);
+
+	private static final int PAYLOAD_TYPES = 1 << 16;
+
+	private final Route[] routes;
+	private final Route defaultRoute;
+
+	private HspPayloadDispatcher(final Route[] routes, final Route defaultRoute) {
+		this.routes = routes;
+		this.defaultRoute = defaultRoute;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		final short payloadType;
+		if (msg instanceof DataMessage) {
+			payloadType = ((DataMessage) msg).getPayloadType();
+		} else if (msg instanceof DataAckMessage) {
+			payloadType = ((DataAckMessage) msg).getPayloadType();
+		} else {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		final Route route = routes[payloadType & 0xffff];
+		if (route != null) {
+			route.dispatch(ctx, (PayloadMessage) msg);
+		} else if (defaultRoute != null) {
+			defaultRoute.dispatch(ctx, (PayloadMessage) msg);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	/**
+	 * Handles the messages of a payload-type. The handler takes over the ownership of the message and has to release
+	 * it (see {@link PayloadMessage#release()}).
+	 */
+	@FunctionalInterface
+	public interface PayloadHandler {
+
+		/**
+		 * @param msg {@link DataMessage} or {@link DataAckMessage}
+		 */
+		void handle(ChannelHandlerContext ctx, PayloadMessage msg) throws Exception;
+	}
+
+	private static final class Route {
+		private final PayloadHandler handler;
+		private final Executor executor;
+
+		Route(final PayloadHandler handler, final Executor executor) {
+			this.handler = handler;
+			this.executor = executor;
+		}
+
+		void dispatch(final ChannelHandlerContext ctx, final PayloadMessage msg) throws Exception {
+			if (executor == null) {
+				handler.handle(ctx, msg);
+				return;
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						handler.handle(ctx, msg);
+					} catch (final Throwable t) {
+						// passed to the event-loop of the channel
+						ctx.fireExceptionCaught(t);
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				msg.release();
+				throw e;
+			}
+		}
+	}
+
+	public static class Builder {
+		private final Route[] routes = new Route[PAYLOAD_TYPES];
+		private Route defaultRoute;
+
+		private Builder() {}
+
+		/**
+		 * Handles messages of the given payload-type on the event-loop.
+		 */
+		public Builder handler(final short payloadType, final PayloadHandler handler) {
+			return handler(payloadType, handler, null);
+		}
+
+		/**
+		 * @param executor handles the messages of the given payload-type, <code>null</code> for the event-loop.
+		 *            Messages are handled in order if the executor is single-threaded.
+		 */
+		public Builder handler(final short payloadType, final PayloadHandler handler, final Executor executor) {
+			if (routes[payloadType & 0xffff] != null) {
+				throw new IllegalStateException("Handler already registered for payload-type=" + payloadType);
+			}
+			routes[payloadType & 0xffff] = new Route(handler, executor);
+			return this;
+		}
+
+		/**
+		 * Handles messages of all payload-types without handler (instead of passing them on).
+		 */
+		public Builder defaultHandler(final PayloadHandler handler, final Executor executor) {
+			defaultRoute = new Route(handler, executor);
+			return this;
+		}
+
+		public HspPayloadDispatcher build() {
+			LOG.debug("Building dispatcher with defaultHandler={}", defaultRoute != null);
+			return new HspPayloadDispatcher(routes.clone(), defaultRoute);
+		}
+	}
+}
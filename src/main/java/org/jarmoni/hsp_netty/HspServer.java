@@ -0,0 +1,101 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HSP-server with a ready-made pipeline: {@link HspFrameDecoder} and {@link HspEncoder}, followed by the handlers
+ * added by the <code>pipelineInitializer</code> of the application.
+ * <p>
+ * The server uses native epoll if it is available (NIO otherwise), the {@link PooledByteBufAllocator} and sets
+ * <code>TCP_NODELAY</code>, the socket-buffer-sizes and the write-buffer-water-marks of the accepted channels.
+ */
+public class HspServer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspServer.class);
+
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final Channel serverChannel;
+
+	private HspServer(final Builder builder) throws InterruptedException {
+		bossGroup = HspTransport.newEventLoopGroup(1, builder.preferNative, "hsp-server-boss");
+		workerGroup = HspTransport.newEventLoopGroup(builder.eventLoopThreads, builder.preferNative, "hsp-server-worker");
+		final ServerBootstrap bootstrap = new ServerBootstrap().group(bossGroup, workerGroup).channel(HspTransport.serverChannelClass(bossGroup))
+				.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT).option(ChannelOption.SO_REUSEADDR, true).childHandler(builder.newChannelInitializer());
+		try {
+			serverChannel = bootstrap.bind(builder.localAddress).sync().channel();
+		} catch (final InterruptedException | RuntimeException e) {
+			shutdownGroups();
+			throw e;
+		}
+		LOG.info("Listening on {} (native={}, eventLoopThreads={})", serverChannel.localAddress(), isNative(), builder.eventLoopThreads);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public SocketAddress localAddress() {
+		return serverChannel.localAddress();
+	}
+
+	/**
+	 * @return <code>true</code> if native epoll is used
+	 */
+	public boolean isNative() {
+		return HspTransport.isNative(workerGroup);
+	}
+
+	/**
+	 * Closes the server-channel and all accepted channels.
+	 */
+	public void close() throws InterruptedException {
+		serverChannel.close().sync();
+		shutdownGroups();
+	}
+
+	private void shutdownGroups() throws InterruptedException {
+		bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).sync();
+		workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS).sync();
+	}
+
+	public static class Builder extends HspTransport.ChannelBuilder<Builder> {
+		private SocketAddress localAddress = new InetSocketAddress(0);
+
+		private Builder() {}
+
+		/**
+		 * @param localAddress default is an ephemeral port on all interfaces
+		 */
+		public Builder localAddress(final SocketAddress localAddress) {
+			this.localAddress = localAddress;
+			return this;
+		}
+
+		public Builder port(final int port) {
+			return localAddress(new InetSocketAddress(port));
+		}
+
+		/**
+		 * Binds the server.
+		 */
+		public HspServer start() throws InterruptedException {
+			return new HspServer(this);
+		}
+
+		@Override
+		Builder self() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Selects the transport used by {@link HspServer} and {@link HspConnector}: native epoll where it is available
+ * (Linux with <code>netty-transport-native-epoll</code> on the classpath), NIO otherwise.
+ */
+public final class HspTransport {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HspTransport.class);
+
+	private static final boolean EPOLL_AVAILABLE = epollAvailable();
+
+	private HspTransport() {}
+
+	/**
+	 * @return <code>true</code> if native epoll can be used
+	 */
+	public static boolean isEpollAvailable() {
+		return EPOLL_AVAILABLE;
+	}
+
+	/**
+	 * @param threads number of event-loops, <code>0</code> for Netty's default (twice the number of cores)
+	 * @param preferNative use epoll if it is available
+	 */
+	public static EventLoopGroup newEventLoopGroup(final int threads, final boolean preferNative, final String name) {
+		final DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+		if (preferNative && EPOLL_AVAILABLE) {
+			return new EpollEventLoopGroup(threads, threadFactory);
+		}
+		return new NioEventLoopGroup(threads, threadFactory);
+	}
+
+	public static boolean isNative(final EventLoopGroup group) {
+		return EPOLL_AVAILABLE && group instanceof EpollEventLoopGroup;
+	}
+
+	public static Class<? extends ServerChannel> serverChannelClass(final EventLoopGroup group) {
+		return isNative(group) ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+
+	public static Class<? extends Channel> channelClass(final EventLoopGroup group) {
+		return isNative(group) ? EpollSocketChannel.class : NioSocketChannel.class;
+	}
+
+	static HspEncoder newEncoder(final HspMetrics metrics) {
+		return metrics == HspMetrics.NOOP ? HspEncoder.instance() : new HspEncoder(Integer.MAX_VALUE, metrics);
+	}
+
+	private static boolean epollAvailable() {
+		try {
+			if (Epoll.isAvailable()) {
+				return true;
+			}
+			LOG.debug("Native epoll not available", Epoll.unavailabilityCause());
+		} catch (final LinkageError e) {
+			// netty-transport-native-epoll is an optional dependency
+			LOG.debug("Native epoll not on classpath", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Options shared by {@link HspServer.Builder} and {@link HspConnector.Builder}: transport, socket-options and the
+	 * HSP-pipeline of every (accepted or connected) channel.
+	 */
+	abstract static class ChannelBuilder<B extends ChannelBuilder<B>> {
+		int eventLoopThreads;
+		boolean preferNative = true;
+		private boolean tcpNoDelay = true;
+		private int receiveBufferSize;
+		private int sendBufferSize;
+		private WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
+		private int maxPayloadBytes = 8192;
+		private int maxConsecutiveDecoderErrors;
+		private boolean pooledMessages;
+		private HspMetrics metrics = HspMetrics.NOOP;
+		private HspEncoder encoder;
+		private Consumer<ChannelPipeline> pipelineInitializer = pipeline -> {};
+
+		/**
+		 * @param eventLoopThreads number of event-loops handling the channels, <code>0</code> (default) for twice the
+		 *            number of cores
+		 */
+		public B eventLoopThreads(final int eventLoopThreads) {
+			this.eventLoopThreads = eventLoopThreads;
+			return self();
+		}
+
+		/**
+		 * @param preferNative use native epoll if it is available (default)
+		 */
+		public B preferNative(final boolean preferNative) {
+			this.preferNative = preferNative;
+			return self();
+		}
+
+		public B tcpNoDelay(final boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return self();
+		}
+
+		/**
+		 * @param receiveBufferSize <code>SO_RCVBUF</code>, <code>0</code> (default) for the OS-default
+		 */
+		public B receiveBufferSize(final int receiveBufferSize) {
+			this.receiveBufferSize = receiveBufferSize;
+			return self();
+		}
+
+		/**
+		 * @param sendBufferSize <code>SO_SNDBUF</code>, <code>0</code> (default) for the OS-default
+		 */
+		public B sendBufferSize(final int sendBufferSize) {
+			this.sendBufferSize = sendBufferSize;
+			return self();
+		}
+
+		public B writeBufferWaterMark(final int low, final int high) {
+			this.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+			return self();
+		}
+
+		public B maxPayloadBytes(final int maxPayloadBytes) {
+			this.maxPayloadBytes = maxPayloadBytes;
+			return self();
+		}
+
+		/**
+		 * @param maxConsecutiveDecoderErrors enables the recovery-mode of the decoder if &gt; 0 (see
+		 *            {@link HspDecoder}), default is <code>0</code> (a decoder-error is fatal)
+		 */
+		public B maxConsecutiveDecoderErrors(final int maxConsecutiveDecoderErrors) {
+			this.maxConsecutiveDecoderErrors = maxConsecutiveDecoderErrors;
+			return self();
+		}
+
+		/**
+		 * @param pooledMessages see {@link Messages.MessageFactory#POOLED}
+		 */
+		public B pooledMessages(final boolean pooledMessages) {
+			this.pooledMessages = pooledMessages;
+			return self();
+		}
+
+		public B metrics(final HspMetrics metrics) {
+			this.metrics = metrics;
+			return self();
+		}
+
+		/**
+		 * @param encoder default is a copying {@link HspEncoder} reporting to the metrics
+		 */
+		public B encoder(final HspEncoder encoder) {
+			this.encoder = encoder;
+			return self();
+		}
+
+		/**
+		 * @param pipelineInitializer adds the handlers of the application behind the codec of every channel
+		 */
+		public B pipelineInitializer(final Consumer<ChannelPipeline> pipelineInitializer) {
+			this.pipelineInitializer = pipelineInitializer;
+			return self();
+		}
+
+		abstract B self();
+
+		/**
+		 * @return initializer setting the socket-options and adding the codec and the handlers of the application
+		 */
+		ChannelInitializer<Channel> newChannelInitializer() {
+			final Map<ChannelOption<?>, Object> options = new HashMap<>();
+			options.put(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+			options.put(ChannelOption.TCP_NODELAY, tcpNoDelay);
+			options.put(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+			if (receiveBufferSize > 0) {
+				options.put(ChannelOption.SO_RCVBUF, receiveBufferSize);
+			}
+			if (sendBufferSize > 0) {
+				options.put(ChannelOption.SO_SNDBUF, sendBufferSize);
+			}
+			final int maxPayloadBytes = this.maxPayloadBytes;
+			final int maxConsecutiveDecoderErrors = this.maxConsecutiveDecoderErrors;
+			final boolean pooledMessages = this.pooledMessages;
+			final HspMetrics metrics = this.metrics;
+			final HspEncoder encoder = this.encoder != null ? this.encoder : newEncoder(metrics);
+			final Consumer<ChannelPipeline> pipelineInitializer = this.pipelineInitializer;
+			return new ChannelInitializer<Channel>() {
+				@Override
+				protected void initChannel(final Channel ch) {
+					ch.config().setOptions(options);
+					final ChannelPipeline pipeline = ch.pipeline();
+					pipeline.addLast(new HspFrameDecoder(maxPayloadBytes, pooledMessages, false, metrics, maxConsecutiveDecoderErrors));
+					pipeline.addLast(encoder);
+					pipelineInitializer.accept(pipeline);
+				}
+			};
+		}
+	}
+}
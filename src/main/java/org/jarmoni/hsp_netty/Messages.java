@@ -1,6 +1,7 @@
 package org.jarmoni.hsp_netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
 import io.netty.util.ReferenceCountUtil;
 import org.jarmoni.hsp_netty.Types.HspCommandType;
 
@@ -19,88 +20,202 @@ public class Messages {
 
 		public abstract void toBytes(ByteBuf byteStr);
 
+		/**
+		 * Releases the payload (if any). Pooled instances (see {@link MessageFactory#POOLED}) are returned to the pool
+		 * and must not be used afterwards.
+		 */
 		public void release() {}
 	}
 
-	public static class DataMessage extends HspMessage {
-		private final short payloadType;
-		private final ByteBuf payload;
+	/**
+	 * Base of all messages which carry a payload. The wire-format of these messages is a fixed-size header followed by
+	 * the payload, so the header can be written independently of the payload (see {@link #headerToBytes(ByteBuf)}).
+	 */
+	public static abstract class PayloadMessage extends HspMessage {
+		protected ByteBuf payload;
 
-		public DataMessage(final short payloadType, final ByteBuf payload) {
-			super(HspCommandType.DataCommand);
-			this.payloadType = payloadType;
+		public PayloadMessage(final HspCommandType commandType, final ByteBuf payload) {
+			super(commandType);
 			this.payload = payload;
 		}
 
-		public short getPayloadType() {
-			return payloadType;
-		}
-
 		public ByteBuf getPayload() {
 			return payload;
 		}
 
+		/**
+		 * @return number of bytes written by {@link #headerToBytes(ByteBuf)}
+		 */
+		public int headerLength() {
+			return commandType.headerLength();
+		}
+
+		/**
+		 * Writes all fields but the payload (including the payload-length).
+		 */
+		public abstract void headerToBytes(ByteBuf buf);
+
 		@Override
-		// TODO What about using CompositeBuffer here?
 		public void toBytes(final ByteBuf buf) {
+			headerToBytes(buf);
+			// We cannot use method #writeBytes(ByteBuf payload) because this. will alter the reader index of source
+			buf.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+		}
+
+		@Override
+		public void release() {
+			ReferenceCountUtil.release(payload);
+		}
+	}
+
+	public static class DataMessage extends PayloadMessage {
+		private static final Recycler<DataMessage> RECYCLER = new Recycler<DataMessage>() {
+			@Override
+			protected DataMessage newObject(final Handle<DataMessage> handle) {
+				return new DataMessage(handle);
+			}
+		};
+
+		private final Recycler.Handle<DataMessage> handle;
+		private short payloadType;
+
+		public DataMessage(final short payloadType, final ByteBuf payload) {
+			super(HspCommandType.DataCommand, payload);
+			this.payloadType = payloadType;
+			this.handle = null;
+		}
+
+		private DataMessage(final Recycler.Handle<DataMessage> handle) {
+			super(HspCommandType.DataCommand, null);
+			this.handle = handle;
+		}
+
+		/**
+		 * @return a pooled instance which is returned to the pool by {@link #release()}
+		 */
+		public static DataMessage newInstance(final short payloadType, final ByteBuf payload) {
+			final DataMessage msg = RECYCLER.get();
+			msg.payloadType = payloadType;
+			msg.payload = payload;
+			return msg;
+		}
+
+		public short getPayloadType() {
+			return payloadType;
+		}
+
+		@Override
+		public void headerToBytes(final ByteBuf buf) {
 			buf.writeByte(commandType.byteValue());
 			buf.writeShort(payloadType);
 			buf.writeInt(payload.readableBytes());
-			// We cannot use method #writeBytes(ByteBuf payload) because this. will alter the reader index of source
-			buf.writeBytes(payload, 0, payload.readableBytes());
 		}
 
 		@Override
 		public void release() {
-			ReferenceCountUtil.release(payload);
+			super.release();
+			if (handle != null) {
+				payload = null;
+				handle.recycle(this);
+			}
 		}
 	}
 
-	public static class DataAckMessage extends HspMessage {
-		private final int messageId;
-		private final short payloadType;
-		private final ByteBuf payload;
+	public static class DataAckMessage extends PayloadMessage {
+		private static final Recycler<DataAckMessage> RECYCLER = new Recycler<DataAckMessage>() {
+			@Override
+			protected DataAckMessage newObject(final Handle<DataAckMessage> handle) {
+				return new DataAckMessage(handle);
+			}
+		};
+
+		private final Recycler.Handle<DataAckMessage> handle;
+		private int messageId;
+		private short payloadType;
 
 		public DataAckMessage(final int messageId, final short payloadType, final ByteBuf payload) {
-			super(HspCommandType.DataAckCommand);
+			super(HspCommandType.DataAckCommand, payload);
 			this.messageId = messageId;
 			this.payloadType = payloadType;
-			this.payload = payload;
+			this.handle = null;
+		}
+
+		private DataAckMessage(final Recycler.Handle<DataAckMessage> handle) {
+			super(HspCommandType.DataAckCommand, null);
+			this.handle = handle;
+		}
+
+		/**
+		 * @return a pooled instance which is returned to the pool by {@link #release()}
+		 */
+		public static DataAckMessage newInstance(final int messageId, final short payloadType, final ByteBuf payload) {
+			final DataAckMessage msg = RECYCLER.get();
+			msg.messageId = messageId;
+			msg.payloadType = payloadType;
+			msg.payload = payload;
+			return msg;
 		}
 
 		public int getMessageId() {
 			return messageId;
 		}
 
-		public short getPayloadType() {
-			return payloadType;
+		// used by HspAckCorrelator, which assigns the ids of outgoing messages
+		void setMessageId(final int messageId) {
+			this.messageId = messageId;
 		}
 
-		public ByteBuf getPayload() {
-			return payload;
+		public short getPayloadType() {
+			return payloadType;
 		}
 
 		@Override
-		public void toBytes(final ByteBuf buf) {
+		public void headerToBytes(final ByteBuf buf) {
 			buf.writeByte(commandType.byteValue());
 			buf.writeInt(messageId);
 			buf.writeShort(payloadType);
 			buf.writeInt(payload.readableBytes());
-			buf.writeBytes(payload, 0, payload.readableBytes());
 		}
 
 		@Override
 		public void release() {
-			ReferenceCountUtil.release(payload);
+			super.release();
+			if (handle != null) {
+				payload = null;
+				handle.recycle(this);
+			}
 		}
 	}
 
 	public static class AckMessage extends HspMessage {
-		private final int messageId;
+		private static final Recycler<AckMessage> RECYCLER = new Recycler<AckMessage>() {
+			@Override
+			protected AckMessage newObject(final Handle<AckMessage> handle) {
+				return new AckMessage(handle);
+			}
+		};
+
+		private final Recycler.Handle<AckMessage> handle;
+		private int messageId;
 
 		public AckMessage(final int messageId) {
 			super(HspCommandType.AckCommand);
 			this.messageId = messageId;
+			this.handle = null;
+		}
+
+		private AckMessage(final Recycler.Handle<AckMessage> handle) {
+			super(HspCommandType.AckCommand);
+			this.handle = handle;
+		}
+
+		/**
+		 * @return a pooled instance which is returned to the pool by {@link #release()}
+		 */
+		public static AckMessage newInstance(final int messageId) {
+			final AckMessage msg = RECYCLER.get();
+			msg.messageId = messageId;
+			return msg;
 		}
 
 		public int getMessageId() {
@@ -112,13 +227,29 @@ public class Messages {
 			buf.writeByte(commandType.byteValue());
 			buf.writeInt(messageId);
 		}
+
+		@Override
+		public void release() {
+			if (handle != null) {
+				handle.recycle(this);
+			}
+		}
 	}
 
 	public static class PingMessage extends HspMessage {
+		private static final PingMessage INSTANCE = new PingMessage();
+
 		public PingMessage() {
 			super(HspCommandType.PingCommand);
 		}
 
+		/**
+		 * @return a shared instance (a ping carries no state)
+		 */
+		public static PingMessage instance() {
+			return INSTANCE;
+		}
+
 		@Override
 		public void toBytes(final ByteBuf buf) {
 			buf.writeByte(commandType.byteValue());
@@ -126,26 +257,58 @@ public class Messages {
 	}
 
 	public static class PongMessage extends HspMessage {
+		private static final PongMessage INSTANCE = new PongMessage();
+
 		public PongMessage() {
 			super(HspCommandType.PongCommand);
 		}
 
+		/**
+		 * @return a shared instance (a pong carries no state)
+		 */
+		public static PongMessage instance() {
+			return INSTANCE;
+		}
+
 		@Override
 		public void toBytes(final ByteBuf buf) {
 			buf.writeByte(commandType.byteValue());
 		}
 	}
 
-	public static class ErrorMessage extends HspMessage {
-		private final int messageId;
-		private final short errorType;
-		private final ByteBuf payload;
+	public static class ErrorMessage extends PayloadMessage {
+		private static final Recycler<ErrorMessage> RECYCLER = new Recycler<ErrorMessage>() {
+			@Override
+			protected ErrorMessage newObject(final Handle<ErrorMessage> handle) {
+				return new ErrorMessage(handle);
+			}
+		};
+
+		private final Recycler.Handle<ErrorMessage> handle;
+		private int messageId;
+		private short errorType;
 
 		public ErrorMessage(final int messageId, final short errorType, final ByteBuf payload) {
-			super(HspCommandType.ErrorCommand);
+			super(HspCommandType.ErrorCommand, payload);
 			this.messageId = messageId;
 			this.errorType = errorType;
-			this.payload = payload;
+			this.handle = null;
+		}
+
+		private ErrorMessage(final Recycler.Handle<ErrorMessage> handle) {
+			super(HspCommandType.ErrorCommand, null);
+			this.handle = handle;
+		}
+
+		/**
+		 * @return a pooled instance which is returned to the pool by {@link #release()}
+		 */
+		public static ErrorMessage newInstance(final int messageId, final short errorType, final ByteBuf payload) {
+			final ErrorMessage msg = RECYCLER.get();
+			msg.messageId = messageId;
+			msg.errorType = errorType;
+			msg.payload = payload;
+			return msg;
 		}
 
 		public int getMessageId() {
@@ -156,31 +319,53 @@ public class Messages {
 			return errorType;
 		}
 
-		public ByteBuf getPayload() {
-			return payload;
-		}
-
 		@Override
-		public void toBytes(final ByteBuf buf) {
+		public void headerToBytes(final ByteBuf buf) {
 			buf.writeByte(commandType.byteValue());
 			buf.writeInt(messageId);
 			buf.writeShort(errorType);
 			buf.writeInt(payload.readableBytes());
-			buf.writeBytes(payload, 0, payload.readableBytes());
 		}
 
 		@Override
 		public void release() {
-			ReferenceCountUtil.release(payload);
+			super.release();
+			if (handle != null) {
+				payload = null;
+				handle.recycle(this);
+			}
 		}
 	}
 
 	public static class ErrorUndefMessage extends HspMessage {
-		private final int messageId;
+		private static final Recycler<ErrorUndefMessage> RECYCLER = new Recycler<ErrorUndefMessage>() {
+			@Override
+			protected ErrorUndefMessage newObject(final Handle<ErrorUndefMessage> handle) {
+				return new ErrorUndefMessage(handle);
+			}
+		};
+
+		private final Recycler.Handle<ErrorUndefMessage> handle;
+		private int messageId;
 
 		public ErrorUndefMessage(final int messageId) {
 			super(HspCommandType.ErrorUndefCommand);
 			this.messageId = messageId;
+			this.handle = null;
+		}
+
+		private ErrorUndefMessage(final Recycler.Handle<ErrorUndefMessage> handle) {
+			super(HspCommandType.ErrorUndefCommand);
+			this.handle = handle;
+		}
+
+		/**
+		 * @return a pooled instance which is returned to the pool by {@link #release()}
+		 */
+		public static ErrorUndefMessage newInstance(final int messageId) {
+			final ErrorUndefMessage msg = RECYCLER.get();
+			msg.messageId = messageId;
+			return msg;
 		}
 
 		public int getMessageId() {
@@ -192,5 +377,114 @@ public class Messages {
 			buf.writeByte(commandType.byteValue());
 			buf.writeInt(messageId);
 		}
+
+		@Override
+		public void release() {
+			if (handle != null) {
+				handle.recycle(this);
+			}
+		}
+	}
+
+	/**
+	 * Creates the messages emitted by the decoders.
+	 */
+	public interface MessageFactory {
+
+		/**
+		 * Creates a new instance per message.
+		 */
+		MessageFactory UNPOOLED = new MessageFactory() {
+			@Override
+			public DataMessage dataMessage(final short payloadType, final ByteBuf payload) {
+				return new DataMessage(payloadType, payload);
+			}
+
+			@Override
+			public DataAckMessage dataAckMessage(final int messageId, final short payloadType, final ByteBuf payload) {
+				return new DataAckMessage(messageId, payloadType, payload);
+			}
+
+			@Override
+			public AckMessage ackMessage(final int messageId) {
+				return new AckMessage(messageId);
+			}
+
+			@Override
+			public PingMessage pingMessage() {
+				return new PingMessage();
+			}
+
+			@Override
+			public PongMessage pongMessage() {
+				return new PongMessage();
+			}
+
+			@Override
+			public ErrorMessage errorMessage(final int messageId, final short errorType, final ByteBuf payload) {
+				return new ErrorMessage(messageId, errorType, payload);
+			}
+
+			@Override
+			public ErrorUndefMessage errorUndefMessage(final int messageId) {
+				return new ErrorUndefMessage(messageId);
+			}
+		};
+
+		/**
+		 * Takes messages from a {@link Recycler} and returns them when {@link HspMessage#release()} is called. Pings
+		 * and pongs are shared instances. Consumers must release every message exactly once and must not use it
+		 * afterwards.
+		 */
+		MessageFactory POOLED = new MessageFactory() {
+			@Override
+			public DataMessage dataMessage(final short payloadType, final ByteBuf payload) {
+				return DataMessage.newInstance(payloadType, payload);
+			}
+
+			@Override
+			public DataAckMessage dataAckMessage(final int messageId, final short payloadType, final ByteBuf payload) {
+				return DataAckMessage.newInstance(messageId, payloadType, payload);
+			}
+
+			@Override
+			public AckMessage ackMessage(final int messageId) {
+				return AckMessage.newInstance(messageId);
+			}
+
+			@Override
+			public PingMessage pingMessage() {
+				return PingMessage.instance();
+			}
+
+			@Override
+			public PongMessage pongMessage() {
+				return PongMessage.instance();
+			}
+
+			@Override
+			public ErrorMessage errorMessage(final int messageId, final short errorType, final ByteBuf payload) {
+				return ErrorMessage.newInstance(messageId, errorType, payload);
+			}
+
+			@Override
+			public ErrorUndefMessage errorUndefMessage(final int messageId) {
+				return ErrorUndefMessage.newInstance(messageId);
+			}
+		};
+
+		DataMessage dataMessage(short payloadType, ByteBuf payload);
+
+		DataAckMessage dataAckMessage(int messageId, short payloadType, ByteBuf payload);
+
+		AckMessage ackMessage(int messageId);
+
+		PingMessage pingMessage();
+
+		PongMessage pongMessage();
+
+		ErrorMessage errorMessage(int messageId, short errorType, ByteBuf payload);
+
+		ErrorUndefMessage errorUndefMessage(int messageId);
 	}
 }
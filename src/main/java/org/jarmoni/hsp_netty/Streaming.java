@@ -0,0 +1,203 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * Messages produced by {@link HspFrameDecoder} in streaming-mode. A frame carrying a payload (Data, DataAck, Error)
+ * is emitted as one {@link HspPayloadHeader} followed by one or more {@link HspPayloadChunk}s, the last of them
+ * marked by {@link HspPayloadChunk#isLast()}. Both can be written to {@link HspEncoder}, so a streamed frame can be
+ * forwarded as it arrives.
+ * <p>
+ * On the sending side an {@link HspPayloadStream} writes a frame whose payload is not held in a heap-buffer (e.g. a
+ * file).
+ */
+public class Streaming {
+
+	public static class HspPayloadHeader {
+		private final HspCommandType commandType;
+		private final int messageId;
+		private final short type;
+		private final int payloadLength;
+
+		/**
+		 * @param messageId ignored for {@link HspCommandType#DataCommand}
+		 * @param type payload-type or error-type (for {@link HspCommandType#ErrorCommand})
+		 */
+		public HspPayloadHeader(final HspCommandType commandType, final int messageId, final short type, final int payloadLength) {
+			if (commandType != HspCommandType.DataCommand && commandType != HspCommandType.DataAckCommand && commandType != HspCommandType.ErrorCommand) {
+				throw new IllegalArgumentException("Command does not carry a payload. command=" + commandType);
+			}
+			this.commandType = commandType;
+			this.messageId = messageId;
+			this.type = type;
+			this.payloadLength = payloadLength;
+		}
+
+		public HspCommandType getCommandType() {
+			return commandType;
+		}
+
+		/**
+		 * @return message-id, <code>-1</code> for {@link HspCommandType#DataCommand}
+		 */
+		public int getMessageId() {
+			return commandType == HspCommandType.DataCommand ? -1 : messageId;
+		}
+
+		/**
+		 * @return payload-type (Data, DataAck) or error-type (Error)
+		 */
+		public short getType() {
+			return type;
+		}
+
+		/**
+		 * @return number of bytes of all following chunks
+		 */
+		public int getPayloadLength() {
+			return payloadLength;
+		}
+
+		public int headerLength() {
+			return commandType.headerLength();
+		}
+
+		/**
+		 * Writes the header in the same format as {@link Messages.PayloadMessage#headerToBytes(ByteBuf)}.
+		 */
+		public void toBytes(final ByteBuf buf) {
+			buf.writeByte(commandType.byteValue());
+			if (commandType != HspCommandType.DataCommand) {
+				buf.writeInt(messageId);
+			}
+			buf.writeShort(type);
+			buf.writeInt(payloadLength);
+		}
+
+		@Override
+		public String toString() {
+			return "HspPayloadHeader[commandType=" + commandType + ", messageId=" + getMessageId() + ", type=" + type + ", payloadLength=" + payloadLength + "]";
+		}
+	}
+
+	/**
+	 * Part of a payload. The content is reference-counted and must be released by the receiver.
+	 */
+	public static class HspPayloadChunk extends DefaultByteBufHolder {
+		private final boolean last;
+
+		public HspPayloadChunk(final ByteBuf content, final boolean last) {
+			super(content);
+			this.last = last;
+		}
+
+		/**
+		 * @return <code>true</code> for the last chunk of a payload
+		 */
+		public boolean isLast() {
+			return last;
+		}
+
+		@Override
+		public HspPayloadChunk replace(final ByteBuf content) {
+			return new HspPayloadChunk(content, last);
+		}
+
+		@Override
+		public String toString() {
+			return "HspPayloadChunk[length=" + content().readableBytes() + ", last=" + last + "]";
+		}
+	}
+
+	/**
+	 * Frame whose payload is streamed from a {@link FileRegion}, a {@link ChunkedInput} or a {@link MappedByteBuffer}
+	 * by {@link HspEncoder}. The header is written first, the body is passed on as it is:
+	 * <ul>
+	 * <li>a {@link FileRegion} is transferred by the transport, which uses <code>sendfile</code> where possible (NIO
+	 * and epoll, but not with TLS)</li>
+	 * <li>a {@link ChunkedInput} requires a {@link ChunkedWriteHandler} between {@link HspEncoder} and the socket
+	 * (i.e. added to the pipeline before the encoder), which reads the chunks as the channel becomes writable</li>
+	 * <li>a {@link MappedByteBuffer} is wrapped and written directly from the mapped memory</li>
+	 * </ul>
+	 * The length of the body must be known in advance (and must not exceed {@link Integer#MAX_VALUE}). The encoder
+	 * takes over the ownership of the body, which is released (or closed) once it is written.
+	 */
+	public static class HspPayloadStream {
+		private static final Logger LOG = LoggerFactory.getLogger(HspPayloadStream.class);
+
+		private final HspPayloadHeader header;
+		private final Object body;
+
+		private HspPayloadStream(final HspCommandType commandType, final int messageId, final short type, final long length, final Object body) {
+			if (length < 0 || length > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Length of body must be between 0 and " + Integer.MAX_VALUE + ". Was: " + length);
+			}
+			this.header = new HspPayloadHeader(commandType, messageId, type, (int) length);
+			this.body = body;
+		}
+
+		/**
+		 * @param messageId ignored for {@link HspCommandType#DataCommand}
+		 * @param type payload-type or error-type (for {@link HspCommandType#ErrorCommand})
+		 */
+		public HspPayloadStream(final HspCommandType commandType, final int messageId, final short type, final FileRegion body) {
+			this(commandType, messageId, type, body.count(), body);
+		}
+
+		/**
+		 * @param body {@link ChunkedInput#length()} must be known
+		 */
+		public HspPayloadStream(final HspCommandType commandType, final int messageId, final short type, final ChunkedInput<ByteBuf> body) {
+			this(commandType, messageId, type, body.length(), body);
+		}
+
+		/**
+		 * @param body the remaining bytes are written, position and limit of the buffer stay untouched
+		 */
+		public HspPayloadStream(final HspCommandType commandType, final int messageId, final short type, final MappedByteBuffer body) {
+			this(commandType, messageId, type, body.remaining(), Unpooled.wrappedBuffer(body));
+		}
+
+		public HspPayloadHeader getHeader() {
+			return header;
+		}
+
+		/**
+		 * @return {@link FileRegion}, {@link ChunkedInput} or {@link ByteBuf} (wrapping a {@link MappedByteBuffer})
+		 */
+		public Object getBody() {
+			return body;
+		}
+
+		/**
+		 * Releases (or closes) the body, e.g. when the stream is not written.
+		 */
+		public void release() {
+			if (body instanceof ChunkedInput) {
+				try {
+					((ChunkedInput<?>) body).close();
+				} catch (final Exception e) {
+					LOG.warn("Failed to close body", e);
+				}
+			} else {
+				ReferenceCountUtil.release(body);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "HspPayloadStream[header=" + header + ", body=" + body + "]";
+		}
+	}
+}
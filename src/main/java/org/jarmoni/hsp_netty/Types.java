@@ -1,32 +1,64 @@
 package org.jarmoni.hsp_netty;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Optional;
 
 public class Types {
 	public enum HspCommandType {
-		DataCommand((byte) 0), DataAckCommand((byte) 1), AckCommand((byte) 2), PingCommand((byte) 3), PongCommand((byte) 4), ErrorCommand((byte) 5), ErrorUndefCommand((byte) 6);
+		// header-length: command(1) [+ messageId(4)] [+ payload-/error-type(2) + payload-length(4)]
+		DataCommand((byte) 0, 7),
+		DataAckCommand((byte) 1, 11),
+		AckCommand((byte) 2, 5),
+		PingCommand((byte) 3, 1),
+		PongCommand((byte) 4, 1),
+		ErrorCommand((byte) 5, 11),
+		ErrorUndefCommand((byte) 6, 5);
 
-		private static final Map<Byte, HspCommandType> ELEM_MAP = new HashMap<>();
+		// indexed by the unsigned byte-value, so that a lookup neither boxes nor allocates
+		private static final HspCommandType[] BY_BYTE_VALUE = new HspCommandType[256];
+		// Optionals are created once, so that byByteValue does not allocate either
+		@SuppressWarnings("unchecked")
+		private static final Optional<HspCommandType>[] OPTIONAL_BY_BYTE_VALUE = (Optional<HspCommandType>[]) new Optional<?>[256];
 		static {
+			Arrays.fill(OPTIONAL_BY_BYTE_VALUE, Optional.empty());
 			for (final HspCommandType current : values()) {
-				ELEM_MAP.put(current.byteValue(), current);
+				BY_BYTE_VALUE[current.byteValue() & 0xff] = current;
+				OPTIONAL_BY_BYTE_VALUE[current.byteValue() & 0xff] = Optional.of(current);
 			}
 		}
 
 		private final byte byteValue;
+		private final int headerLength;
 
-		private HspCommandType(final byte byteValue) {
+		private HspCommandType(final byte byteValue, final int headerLength) {
 			this.byteValue = byteValue;
+			this.headerLength = headerLength;
 		}
 
 		public byte byteValue() {
 			return byteValue;
 		}
 
+		/**
+		 * @return number of bytes of a frame of this type without the payload (including command and payload-length)
+		 */
+		public int headerLength() {
+			return headerLength;
+		}
+
+		/**
+		 * @return the command with the given value or <code>null</code> if there is none
+		 */
+		public static HspCommandType fromByteValue(final byte byteValue) {
+			return BY_BYTE_VALUE[byteValue & 0xff];
+		}
+
+		/**
+		 * @return the command with the given value or {@link Optional#empty()} if there is none (pre-built, so the
+		 *         lookup does not allocate)
+		 */
 		public static Optional<HspCommandType> byByteValue(final byte byteValue) {
-			return ELEM_MAP.get(byteValue) != null ? Optional.of(ELEM_MAP.get(byteValue)) : Optional.empty();
+			return OPTIONAL_BY_BYTE_VALUE[byteValue & 0xff];
 		}
 
 		@Override
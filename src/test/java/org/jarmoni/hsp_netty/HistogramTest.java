@@ -0,0 +1,81 @@
+package org.jarmoni.hsp_netty;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class HistogramTest {
+
+	@Test
+	public void testBuckets() throws Exception {
+		final long[] values = { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE };
+		for (final long value : values) {
+			final int index = Histogram.bucketIndex(value);
+			assertThat(Histogram.highestValue(index), is(greaterThanOrEqualTo(value)));
+			// relative error is bounded by 1/16
+			assertThat((double) (Histogram.highestValue(index) - value), is(lessThan(value / 16.0 + 1)));
+			if (index > 0) {
+				assertThat(Histogram.highestValue(index - 1), is(lessThan(value)));
+			}
+		}
+	}
+
+	@Test
+	public void testPercentiles() throws Exception {
+		final Histogram histogram = new Histogram();
+		assertThat(histogram.getValueAtPercentile(99), is(0L));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertThat(histogram.getCount(), is(1000L));
+		assertThat(histogram.getMax(), is(1000L));
+		assertThat(histogram.getMean(), is(500.5));
+		assertThat(histogram.getValueAtPercentile(50), is(greaterThanOrEqualTo(500L)));
+		assertThat((double) histogram.getValueAtPercentile(50), is(lessThan(500 * 17 / 16.0)));
+		assertThat(histogram.getValueAtPercentile(100), is(1000L));
+
+		histogram.reset();
+		assertThat(histogram.getCount(), is(0L));
+		assertThat(histogram.getMax(), is(0L));
+	}
+
+	@Test
+	public void testRecordWithExpectedInterval() throws Exception {
+		final Histogram histogram = new Histogram();
+		histogram.recordWithExpectedInterval(10, 100);
+		assertThat(histogram.getCount(), is(1L));
+		// 3 measurements were missed while waiting 400
+		histogram.recordWithExpectedInterval(400, 100);
+		assertThat(histogram.getCount(), is(5L));
+		assertThat(histogram.getMean(), is((10 + 400 + 300 + 200 + 100) / 5.0));
+		histogram.recordWithExpectedInterval(400, 0);
+		assertThat(histogram.getCount(), is(6L));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final Histogram histogram = Histogram.striped();
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final long offset = t * 1000;
+			threads[t] = new Thread(() -> {
+				for (int i = 1; i <= 1000; i++) {
+					histogram.record(offset + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(histogram.getCount(), is(4000L));
+		assertThat(histogram.getMax(), is(4000L));
+		assertThat(histogram.getMean(), is(2000.5));
+		assertThat(histogram.getValueAtPercentile(100), is(4000L));
+		assertThat(histogram.getValueAtPercentile(25), is(greaterThanOrEqualTo(1000L)));
+		assertThat((double) histogram.getValueAtPercentile(25), is(lessThan(1000 * 17 / 16.0)));
+	}
+}
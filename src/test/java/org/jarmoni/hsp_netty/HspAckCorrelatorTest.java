@@ -0,0 +1,161 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.HspAckCorrelator.AckListener;
+import org.jarmoni.hsp_netty.HspAckCorrelator.InFlightWindowExceededException;
+import org.jarmoni.hsp_netty.HspAckCorrelator.MessageIdsExhaustedException;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class HspAckCorrelatorTest {
+
+	private final short payloadType = (short) 0x99;
+	private final short errorType = (short) 0x98;
+	private final ByteBuf payload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+
+	private AckListener listener;
+	private HspAckCorrelator correlator;
+	private EmbeddedChannel ch;
+
+	@Before
+	public void setUp() throws Exception {
+		listener = mock(AckListener.class);
+		correlator = new HspAckCorrelator(2, listener);
+		ch = new EmbeddedChannel(correlator);
+	}
+
+	@Test
+	public void testAck() throws Exception {
+		final DataAckMessage first = new DataAckMessage(-1, payloadType, payload);
+		final DataAckMessage second = new DataAckMessage(-1, payloadType, payload);
+		ch.writeOutbound(first, second);
+		assertThat(first.getMessageId(), is(0));
+		assertThat(second.getMessageId(), is(1));
+		assertThat(correlator.inFlight(), is(2));
+		assertThat(ch.readOutbound(), is(sameInstance(first)));
+		assertThat(ch.readOutbound(), is(sameInstance(second)));
+
+		ch.writeInbound(new AckMessage(1));
+		verify(listener).acked(second);
+		assertThat(correlator.inFlight(), is(1));
+		assertThat(ch.readInbound(), is(nullValue()));
+		verifyNoMoreInteractions(listener);
+	}
+
+	@Test
+	public void testError() throws Exception {
+		final DataAckMessage first = new DataAckMessage(-1, payloadType, payload);
+		final DataAckMessage second = new DataAckMessage(-1, payloadType, payload);
+		ch.writeOutbound(first, second);
+		final ErrorMessage errorMessage = new ErrorMessage(0, errorType, Unpooled.buffer());
+		final ErrorUndefMessage errorUndefMessage = new ErrorUndefMessage(1);
+		ch.writeInbound(errorMessage, errorUndefMessage);
+		verify(listener).failed(first, errorMessage);
+		verify(listener).failed(second, errorUndefMessage);
+		assertThat(errorMessage.getPayload().refCnt(), is(0));
+		assertThat(correlator.inFlight(), is(0));
+	}
+
+	@Test
+	public void testUnknownAnswerIsPassedOn() throws Exception {
+		final AckMessage ackMessage = new AckMessage(42);
+		ch.writeInbound(ackMessage);
+		assertThat(ch.readInbound(), is(sameInstance(ackMessage)));
+		verifyNoMoreInteractions(listener);
+	}
+
+	@Test
+	public void testMessageIdsExhausted() throws Exception {
+		correlator = new HspAckCorrelator(2, listener, id -> id < HspAckCorrelator.MAX_MESSAGE_ID_PROBES);
+		ch = new EmbeddedChannel(correlator);
+		final ChannelFuture future = ch.write(new DataAckMessage(-1, payloadType, payload.retain()));
+		assertThat(future.cause(), is(instanceOf(MessageIdsExhaustedException.class)));
+		assertThat(payload.refCnt(), is(1));
+		assertThat(correlator.inFlight(), is(0));
+		// the search goes on from where it stopped
+		final DataAckMessage message = new DataAckMessage(-1, payloadType, payload.retain());
+		assertThat(ch.writeAndFlush(message).isSuccess(), is(true));
+		assertThat(message.getMessageId(), is(HspAckCorrelator.MAX_MESSAGE_ID_PROBES));
+	}
+
+	@Test
+	public void testWindowExceeded() throws Exception {
+		ch.write(new DataAckMessage(-1, payloadType, payload.retain()));
+		ch.write(new DataAckMessage(-1, payloadType, payload.retain()));
+		final ChannelFuture future = ch.write(new DataAckMessage(-1, payloadType, payload.retain()));
+		assertThat(future.cause(), is(instanceOf(InFlightWindowExceededException.class)));
+		assertThat(payload.refCnt(), is(3));
+
+		ch.writeInbound(new AckMessage(0));
+		assertThat(ch.writeAndFlush(new DataAckMessage(-1, payloadType, payload.retain())).isSuccess(), is(true));
+	}
+
+	@Test
+	public void testMessageIdWrapsAroundAndSkipsIdsInFlight() throws Exception {
+		correlator = new HspAckCorrelator(2, Integer.MAX_VALUE, listener);
+		ch = new EmbeddedChannel(correlator);
+		final DataAckMessage first = new DataAckMessage(-1, payloadType, payload);
+		final DataAckMessage second = new DataAckMessage(-1, payloadType, payload);
+		ch.writeOutbound(first, second);
+		assertThat(first.getMessageId(), is(Integer.MAX_VALUE));
+		assertThat(second.getMessageId(), is(Integer.MIN_VALUE));
+
+		correlator = new HspAckCorrelator(2, 7, listener);
+		ch = new EmbeddedChannel(correlator);
+		ch.writeOutbound(first);
+		assertThat(correlator.cancel(7), is(sameInstance(first)));
+		assertThat(correlator.cancel(7), is(nullValue()));
+	}
+
+	@Test
+	public void testCloseAbortsMessagesInFlight() throws Exception {
+		final DataAckMessage msg = new DataAckMessage(-1, payloadType, payload);
+		ch.writeOutbound(msg);
+		ch.close();
+		verify(listener).aborted(eq(msg), any(ClosedChannelException.class));
+	}
+
+	@Test
+	public void testFailedWriteIsRemovedAndAborted() throws Exception {
+		final IllegalStateException cause = new IllegalStateException("Expected");
+		correlator = new HspAckCorrelator(2, listener);
+		ch = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+			@Override
+			public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+				((HspMessage) msg).release();
+				promise.setFailure(cause);
+			}
+		}, correlator);
+		final DataAckMessage msg = new DataAckMessage(-1, payloadType, payload.retain());
+		assertThat(ch.writeAndFlush(msg).cause(), is(sameInstance((Throwable) cause)));
+		verify(listener).aborted(msg, cause);
+		assertThat(correlator.inFlight(), is(0));
+		// the id is not blocked
+		ch.write(new DataAckMessage(-1, payloadType, payload.retain()), ch.voidPromise());
+		verify(listener, times(2)).aborted(any(DataAckMessage.class), eq(cause));
+		assertThat(correlator.inFlight(), is(0));
+		assertThat(payload.refCnt(), is(1));
+	}
+}
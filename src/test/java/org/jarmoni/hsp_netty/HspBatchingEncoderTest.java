@@ -0,0 +1,129 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class HspBatchingEncoderTest {
+
+	private final short payloadType = (short) 0x99;
+	private final int msgId = 0xf001;
+	private final ByteBuf payload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+
+	@Test
+	public void testFramesAreBatchedUntilFlush() throws Exception {
+		final HspBatchingEncoder encoder = new HspBatchingEncoder();
+		final EmbeddedChannel ch = new EmbeddedChannel(encoder);
+		final ChannelFuture ackFuture = ch.write(new AckMessage(msgId));
+		ch.write(new PingMessage());
+		ch.write(new DataMessage(payloadType, payload));
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(ackFuture.isDone(), is(false));
+
+		ch.flush();
+		final ByteBuf batch = ch.readOutbound();
+		assertThat(ByteBufUtil.hashCode(batch), is(ByteBufUtil.hashCode(expected(new AckMessage(msgId), new PingMessage(), new DataMessage(payloadType, payload)))));
+		batch.release();
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(ackFuture.isSuccess(), is(true));
+		assertThat(encoder.getBatchCount(), is(1L));
+		assertThat(encoder.getFrameCount(), is(3L));
+		assertThat(encoder.getWrittenBytes(), is(16L));
+		assertThat(encoder.getFlushCount(), is(1L));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testFullBatchIsWritten() throws Exception {
+		final HspBatchingEncoder encoder = new HspBatchingEncoder(12, 0, TimeUnit.NANOSECONDS);
+		final EmbeddedChannel ch = new EmbeddedChannel(encoder);
+		// 5 + 5 bytes fit into the batch, the 3rd message does not
+		ch.write(new AckMessage(1));
+		ch.write(new AckMessage(2));
+		ch.write(new AckMessage(3));
+		// too big for a batch
+		ch.write(new DataAckMessage(msgId, payloadType, payload));
+		ch.flush();
+		assertOutbound(ch, new AckMessage(1), new AckMessage(2));
+		assertOutbound(ch, new AckMessage(3));
+		assertOutbound(ch, new DataAckMessage(msgId, payloadType, payload));
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(encoder.getBatchCount(), is(2L));
+		assertThat(encoder.getFrameCount(), is(3L));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testFlushesAreConsolidated() throws Exception {
+		final HspBatchingEncoder encoder = new HspBatchingEncoder(8192, 10, TimeUnit.MILLISECONDS);
+		final EmbeddedChannel ch = new EmbeddedChannel(encoder);
+		ch.writeAndFlush(new AckMessage(1));
+		ch.writeAndFlush(new AckMessage(2));
+		assertThat(ch.readOutbound(), is(nullValue()));
+
+		Thread.sleep(20);
+		ch.runScheduledPendingTasks();
+		assertOutbound(ch, new AckMessage(1), new AckMessage(2));
+		assertThat(encoder.getFlushRequestCount(), is(2L));
+		assertThat(encoder.getFlushCount(), is(1L));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testLargePayloadsAreNotCopied() throws Exception {
+		final HspBatchingEncoder encoder = new HspBatchingEncoder(8192, 0, TimeUnit.NANOSECONDS, 16, HspMetrics.NOOP);
+		final EmbeddedChannel ch = new EmbeddedChannel(encoder);
+		final ByteBuf largePayload = Unpooled.copiedBuffer(new byte[32]);
+		final DataAckMessage large = new DataAckMessage(msgId, payloadType, largePayload);
+		ch.write(new AckMessage(1));
+		final ChannelFuture largeFuture = ch.write(large);
+		ch.write(new DataMessage(payloadType, payload));
+		ch.flush();
+
+		// header behind the preceding frames, the payload itself, the following frames
+		final ByteBuf headerSlice = ch.readOutbound();
+		final ByteBuf payloadDuplicate = ch.readOutbound();
+		final ByteBuf rest = ch.readOutbound();
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(payloadDuplicate.unwrap(), is(sameInstance(largePayload)));
+		final ByteBuf written = Unpooled.wrappedBuffer(headerSlice, payloadDuplicate, rest);
+		assertThat(ByteBufUtil.equals(written, expected(new AckMessage(1), large, new DataMessage(payloadType, payload))), is(true));
+		final int writtenBytes = written.readableBytes();
+		written.release();
+
+		assertThat(largeFuture.isSuccess(), is(true));
+		assertThat(largePayload.refCnt(), is(1));
+		assertThat(largePayload.readerIndex(), is(0));
+		assertThat(encoder.getZeroCopyCount(), is(1L));
+		assertThat(encoder.getBatchCount(), is(2L));
+		assertThat(encoder.getFrameCount(), is(3L));
+		assertThat(encoder.getWrittenBytes(), is((long) writtenBytes));
+		assertThat(ch.finish(), is(false));
+	}
+
+	private static void assertOutbound(final EmbeddedChannel ch, final HspMessage... messages) {
+		final ByteBuf buf = ch.readOutbound();
+		assertThat(ByteBufUtil.hashCode(buf), is(ByteBufUtil.hashCode(expected(messages))));
+		buf.release();
+	}
+
+	private static ByteBuf expected(final HspMessage... messages) {
+		final ByteBuf buf = Unpooled.buffer();
+		for (final HspMessage msg : messages) {
+			msg.toBytes(buf);
+		}
+		return buf;
+	}
+}
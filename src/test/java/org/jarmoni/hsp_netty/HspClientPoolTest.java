@@ -0,0 +1,210 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.jarmoni.hsp_netty.HspClient.AckResult;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HspClientPoolTest {
+
+	private final AtomicInteger firstReceived = new AtomicInteger();
+	private final AtomicInteger secondReceived = new AtomicInteger();
+	private HspServer first;
+	private HspServer second;
+	private HspConnector connector;
+
+	@Before
+	public void setUp() throws Exception {
+		first = server(firstReceived);
+		second = server(secondReceived);
+		connector = HspConnector.builder().eventLoopThreads(2).build();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		connector.close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testSpreadOverEndpoints() throws Exception {
+		final HspClientPool pool = HspClientPool.builder(connector).endpoints(first.localAddress(), second.localAddress()).size(2).connect().get(5, TimeUnit.SECONDS);
+		assertThat(pool.size(), is(2));
+		final List<CompletableFuture<AckResult>> futures = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			futures.add(pool.send((short) 1, Unpooled.wrappedBuffer(new byte[] { (byte) i })));
+		}
+		for (final CompletableFuture<AckResult> future : futures) {
+			assertThat(future.get(5, TimeUnit.SECONDS).isAcked(), is(true));
+		}
+		assertThat(firstReceived.get() + secondReceived.get(), is(200));
+		assertThat(firstReceived.get(), is(greaterThan(0)));
+		assertThat(secondReceived.get(), is(greaterThan(0)));
+		pool.close();
+	}
+
+	@Test
+	public void testElasticSize() throws Exception {
+		final HspClientPool pool = HspClientPool.builder(connector).endpoints(first.localAddress()).size(1, 3, 1).connect().get(5, TimeUnit.SECONDS);
+		assertThat(pool.size(), is(1));
+		loadUntilSize(pool, 3);
+		pool.close();
+	}
+
+	@Test
+	public void testOneGrowAtATime() throws Exception {
+		final HspConnector singleThreaded = HspConnector.builder().eventLoopThreads(1).build();
+		final CountDownLatch latch = new CountDownLatch(1);
+		try {
+			final HspClientPool pool = HspClientPool.builder(singleThreaded).endpoints(first.localAddress()).size(1, 4, 1).connect().get(5, TimeUnit.SECONDS);
+			// the connects of the burst stay pending while the event-loop is blocked
+			singleThreaded.executor().execute(() -> {
+				try {
+					latch.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			final List<CompletableFuture<AckResult>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(pool.send((short) 1, Unpooled.wrappedBuffer(new byte[] { (byte) i })));
+			}
+			assertThat(pool.slots(), is(2));
+			latch.countDown();
+			for (final CompletableFuture<AckResult> future : futures) {
+				assertThat(future.get(5, TimeUnit.SECONDS).isAcked(), is(true));
+			}
+			pool.close();
+		} finally {
+			latch.countDown();
+			singleThreaded.close();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsAreClosed() throws Exception {
+		final HspClientPool pool = HspClientPool.builder(connector).endpoints(first.localAddress()).size(1, 3, 1).idleTimeout(100, TimeUnit.MILLISECONDS).connect()
+				.get(5, TimeUnit.SECONDS);
+		loadUntilSize(pool, 3);
+		// no more load
+		awaitSize(pool, 1);
+		awaitSlots(pool, 1);
+		assertThat(pool.send((short) 1, Unpooled.EMPTY_BUFFER).get(5, TimeUnit.SECONDS).isAcked(), is(true));
+		pool.close();
+	}
+
+	@Test
+	public void testFailedGrowIsNotRetried() throws Exception {
+		final InetSocketAddress unreachable;
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			unreachable = new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+		}
+		// the 1st connection goes to the server, the 2nd (grown) one to the closed port
+		final HspClientPool pool = HspClientPool.builder(connector).endpoints(first.localAddress(), unreachable).size(1, 2, 1)
+				.reconnectDelay(10, TimeUnit.MILLISECONDS).connect().get(5, TimeUnit.SECONDS);
+		final CompletableFuture<AckResult> future = pool.send((short) 1, Unpooled.EMPTY_BUFFER);
+		pool.send((short) 1, Unpooled.EMPTY_BUFFER).get(5, TimeUnit.SECONDS);
+		future.get(5, TimeUnit.SECONDS);
+		awaitSlots(pool, 1);
+		assertThat(pool.size(), is(1));
+		pool.close();
+	}
+
+	@Test
+	public void testRecycleOnDecoderError() throws Exception {
+		final HspClientPool pool = HspClientPool.builder(connector).endpoints(first.localAddress()).size(1).reconnectDelay(10, TimeUnit.MILLISECONDS).connect()
+				.get(5, TimeUnit.SECONDS);
+		// the server answers with an unknown command, so the connection is closed...
+		try {
+			pool.send(HspServerHandler.GARBAGE, Unpooled.EMPTY_BUFFER).get(5, TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (final ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(ClosedChannelException.class)));
+		}
+		// ...and replaced
+		awaitSize(pool, 1);
+		assertThat(pool.send((short) 1, Unpooled.EMPTY_BUFFER).get(5, TimeUnit.SECONDS).isAcked(), is(true));
+		pool.close();
+	}
+
+	/**
+	 * Sends bursts of requests until the pool has grown (one connection at a time) to the given size.
+	 */
+	private static void loadUntilSize(final HspClientPool pool, final int size) throws Exception {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.size() < size && System.nanoTime() < deadline) {
+			final List<CompletableFuture<AckResult>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				futures.add(pool.send((short) 1, Unpooled.wrappedBuffer(new byte[] { (byte) i })));
+			}
+			for (final CompletableFuture<AckResult> future : futures) {
+				future.get(5, TimeUnit.SECONDS);
+			}
+		}
+		assertThat(pool.size(), is(size));
+	}
+
+	private static void awaitSize(final HspClientPool pool, final int size) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.size() != size && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(pool.size(), is(size));
+	}
+
+	private static void awaitSlots(final HspClientPool pool, final int slots) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.slots() != slots && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(pool.slots(), is(slots));
+	}
+
+	private static HspServer server(final AtomicInteger received) throws InterruptedException {
+		return HspServer.builder().localAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).eventLoopThreads(1)
+				.pipelineInitializer(pipeline -> pipeline.addLast(new HspServerHandler(received))).start();
+	}
+
+	private static class HspServerHandler extends SimpleChannelInboundHandler<DataAckMessage> {
+		private static final short GARBAGE = (short) 0x7fff;
+		private final AtomicInteger received;
+
+		HspServerHandler(final AtomicInteger received) {
+			this.received = received;
+		}
+
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx, final DataAckMessage msg) {
+			received.incrementAndGet();
+			if (msg.getPayloadType() == GARBAGE) {
+				ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[] { 99 }));
+			} else {
+				ctx.writeAndFlush(new AckMessage(msg.getMessageId()));
+			}
+			msg.release();
+		}
+	}
+}
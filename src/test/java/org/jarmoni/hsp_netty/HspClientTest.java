@@ -0,0 +1,155 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.jarmoni.hsp_netty.HspClient.AckResult;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HspClientTest {
+
+	private final short payloadType = (short) 0x99;
+	private final short errorType = (short) 0x98;
+
+	private Timer timer;
+	private Timeout timeout;
+	private EmbeddedChannel ch;
+	private HspClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		timer = mock(Timer.class);
+		timeout = mock(Timeout.class);
+		when(timer.newTimeout(any(TimerTask.class), anyLong(), any(TimeUnit.class))).thenReturn(timeout);
+		ch = new EmbeddedChannel();
+		client = new HspClient(ch, 16, 1, TimeUnit.SECONDS, timer);
+	}
+
+	@Test
+	public void testPipelinedRequests() throws Exception {
+		final ByteBuf firstPayload = payload();
+		final ByteBuf secondPayload = payload();
+		final CompletableFuture<AckResult> first = client.send(payloadType, firstPayload);
+		final CompletableFuture<AckResult> second = client.send(payloadType, secondPayload);
+		final DataAckMessage firstRequest = ch.readOutbound();
+		final DataAckMessage secondRequest = ch.readOutbound();
+		assertThat(firstRequest.getPayloadType(), is(payloadType));
+		assertThat(client.inFlight(), is(2));
+
+		// answers may arrive in any order
+		ch.writeInbound(new AckMessage(secondRequest.getMessageId()));
+		assertThat(second.isDone(), is(true));
+		assertThat(first.isDone(), is(false));
+		assertThat(second.get().isAcked(), is(true));
+		assertThat(second.get().getMessageId(), is(secondRequest.getMessageId()));
+		assertThat(secondPayload.refCnt(), is(0));
+
+		ch.writeInbound(new ErrorMessage(firstRequest.getMessageId(), errorType, payload()));
+		final AckResult result = first.get();
+		assertThat(result.isAcked(), is(false));
+		assertThat(result.getCommandType(), is(HspCommandType.ErrorCommand));
+		assertThat(result.getErrorType(), is(errorType));
+		assertThat(ByteBufUtil.hashCode(result.getErrorPayload()), is(ByteBufUtil.hashCode(payload())));
+		assertThat(firstPayload.refCnt(), is(0));
+		assertThat(client.inFlight(), is(0));
+		verify(timeout, times(2)).cancel();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		final ByteBuf payload = payload();
+		final CompletableFuture<AckResult> future = client.send(payloadType, payload);
+		final ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(timer).newTimeout(task.capture(), eq(TimeUnit.SECONDS.toNanos(1)), eq(TimeUnit.NANOSECONDS));
+		final DataAckMessage request = ch.readOutbound();
+
+		task.getValue().run(timeout);
+		ch.runPendingTasks();
+		assertCause(future, TimeoutException.class);
+		assertThat(client.inFlight(), is(0));
+		assertThat(payload.refCnt(), is(0));
+
+		// a late answer is passed on
+		final AckMessage lateAck = new AckMessage(request.getMessageId());
+		ch.writeInbound(lateAck);
+		assertThat(ch.readInbound(), is(lateAck));
+	}
+
+	@Test
+	public void testTimeoutKeepsPayloadOfPendingWrite() throws Exception {
+		final AtomicReference<ChannelPromise> pendingWrite = new AtomicReference<>();
+		ch = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+			@Override
+			public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+				// e.g. queued by a flow-control handler
+				pendingWrite.set(promise);
+			}
+		});
+		client = new HspClient(ch, 16, 1, TimeUnit.SECONDS, timer);
+		final ByteBuf payload = payload();
+		final CompletableFuture<AckResult> future = client.send(payloadType, payload);
+		final ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(timer).newTimeout(task.capture(), anyLong(), eq(TimeUnit.NANOSECONDS));
+
+		task.getValue().run(timeout);
+		ch.runPendingTasks();
+		assertCause(future, TimeoutException.class);
+		assertThat(client.inFlight(), is(0));
+		assertThat(payload.refCnt(), is(1));
+
+		pendingWrite.get().setSuccess();
+		assertThat(payload.refCnt(), is(0));
+	}
+
+	@Test
+	public void testCloseFailsOutstandingRequests() throws Exception {
+		final CompletableFuture<AckResult> future = client.send(payloadType, payload());
+		ch.close();
+		assertCause(future, ClosedChannelException.class);
+		assertCause(client.send(payloadType, payload()), ClosedChannelException.class);
+	}
+
+	private static void assertCause(final CompletableFuture<AckResult> future, final Class<? extends Throwable> causeType) throws Exception {
+		try {
+			future.get();
+			fail("Exception expected");
+		} catch (final ExecutionException e) {
+			assertThat(e.getCause(), is(instanceOf(causeType)));
+		}
+	}
+
+	private static ByteBuf payload() {
+		return Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,121 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.EncoderException;
+import org.jarmoni.hsp_netty.Compression.Algorithm;
+import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class HspCompressorTest {
+
+	private final short payloadType = (short) 0x99;
+	private final int msgId = 0xf001;
+
+	@Test
+	public void testSnappy() throws Exception {
+		roundTrip(Algorithm.SNAPPY);
+	}
+
+	@Test
+	public void testDeflate() throws Exception {
+		roundTrip(Algorithm.DEFLATE);
+	}
+
+	@Test
+	public void testPooledMessages() throws Exception {
+		// the compressed message is recycled when it is released, before the uncompressed one is created
+		roundTrip(Algorithm.SNAPPY, true);
+	}
+
+	@Test
+	public void testSmallPayloadIsNotCompressed() throws Exception {
+		final ByteBuf payload = json(100);
+		final ByteBuf frame = encode(new HspCompressor(Algorithm.SNAPPY, 4096), new DataMessage(payloadType, payload));
+		assertThat(frame.readableBytes(), is(7 + payload.readableBytes()));
+	}
+
+	@Test
+	public void testIncompressiblePayloadIsNotCompressed() throws Exception {
+		final byte[] bytes = new byte[2048];
+		new Random(42).nextBytes(bytes);
+		final ByteBuf frame = encode(new HspCompressor(Algorithm.DEFLATE, 1), new DataMessage(payloadType, Unpooled.wrappedBuffer(bytes)));
+		assertThat(frame.readableBytes(), is(7 + bytes.length));
+		assertThat(frame.getShort(1), is(payloadType));
+	}
+
+	@Test(expected = EncoderException.class)
+	public void testPayloadTypeCollidesWithFlag() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance(), new HspCompressor(Algorithm.SNAPPY, 1));
+		ch.writeOutbound(new DataMessage((short) 0x8001, json(1000)));
+	}
+
+	@Test(expected = EncoderException.class)
+	public void testSmallPayloadTypeCollidesWithFlag() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance(), new HspCompressor(Algorithm.SNAPPY, 4096));
+		ch.writeOutbound(new DataMessage((short) 0x8001, json(100)));
+	}
+
+	@Test(expected = HspDecoderException.class)
+	public void testUncompressedPayloadTooLarge() throws Exception {
+		final ByteBuf frame = encode(new HspCompressor(Algorithm.SNAPPY, 1), new DataMessage(payloadType, json(10_000)));
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(), new HspDecompressor(8192));
+		ch.writeInbound(frame);
+	}
+
+	private void roundTrip(final Algorithm algorithm) {
+		roundTrip(algorithm, false);
+	}
+
+	private void roundTrip(final Algorithm algorithm, final boolean pooled) {
+		final ByteBuf payload = json(8192);
+		final HspCompressor compressor = new HspCompressor(algorithm, 512);
+		final EmbeddedChannel out = new EmbeddedChannel(HspEncoder.instance(), compressor);
+		final EmbeddedChannel in = new EmbeddedChannel(new HspFrameDecoder(8192, pooled), new HspDecompressor(8192));
+
+		out.writeOutbound(new DataMessage(payloadType, payload), new DataAckMessage(msgId, payloadType, payload));
+		// the message written keeps its payload
+		assertThat(payload.refCnt(), is(1));
+		assertThat(compressor.getCompressedBytes(), is(lessThan(compressor.getUncompressedBytes() / 4)));
+		ByteBuf frame;
+		while ((frame = out.readOutbound()) != null) {
+			assertThat(frame.readableBytes(), is(lessThan(payload.readableBytes() / 4)));
+			in.writeInbound(frame);
+		}
+
+		final DataMessage dataMessage = in.readInbound();
+		assertThat(dataMessage.getPayloadType(), is(payloadType));
+		assertThat(dataMessage.getPayload(), is(payload));
+		dataMessage.release();
+		final DataAckMessage dataAckMessage = in.readInbound();
+		assertThat(dataAckMessage.getMessageId(), is(msgId));
+		assertThat(dataAckMessage.getPayloadType(), is(payloadType));
+		assertThat(dataAckMessage.getPayload(), is(payload));
+		dataAckMessage.release();
+		assertThat(out.finish(), is(false));
+		assertThat(in.finish(), is(false));
+	}
+
+	private static ByteBuf encode(final HspCompressor compressor, final HspMessage msg) {
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance(), compressor);
+		ch.writeOutbound(msg);
+		return ch.readOutbound();
+	}
+
+	private static ByteBuf json(final int length) {
+		final ByteBuf buf = Unpooled.buffer(length);
+		for (int i = 0; buf.readableBytes() < length; i++) {
+			buf.writeCharSequence("{\"id\":" + i + ",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},", StandardCharsets.UTF_8);
+		}
+		return buf.writerIndex(length);
+	}
+}
@@ -1,22 +1,30 @@
 package org.jarmoni.hsp_netty;
 
+import ch.qos.logback.classic.Level;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
 import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
 import org.jarmoni.hsp_netty.Messages.*;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.function.Supplier;
 
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -149,4 +157,115 @@ public class HspDecoderTest {
 		assertThat(msg.getCommandType(), is(errorUndefMessage.getCommandType()));
 		assertThat(msg.getMessageId(), is(msgId));
 	}
+
+	@Test
+	public void testAckCommandDoesNotAllocateDecoderState() throws Exception {
+		final ByteBuf frame = Unpooled.buffer();
+		new AckMessage(msgId).toBytes(frame);
+		// The AckMessage itself is the only allocation which is allowed per frame
+		assertAllocatesOnlyMessage(frame, () -> new AckMessage(msgId));
+	}
+
+	@Test
+	public void testPingCommandDoesNotAllocateDecoderState() throws Exception {
+		final ByteBuf frame = Unpooled.buffer();
+		new PingMessage().toBytes(frame);
+		// The PingMessage itself is the only allocation which is allowed per frame
+		assertAllocatesOnlyMessage(frame, PingMessage::new);
+	}
+
+	private void assertAllocatesOnlyMessage(final ByteBuf frame, final Supplier<HspMessage> messageFactory) throws Exception {
+		final ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(HspDecoder.class);
+		final Level level = logger.getLevel();
+		// debug-logging on every call would dominate the measurement
+		logger.setLevel(Level.INFO);
+		try {
+			final java.util.List<Object> reusedOut = new ArrayList<>(1);
+			final long bytesPerMessage = allocatedBytesPerIteration(() -> {
+				reusedOut.add(messageFactory.get());
+				reusedOut.clear();
+			});
+			final long bytesPerFrame = allocatedBytesPerIteration(() -> {
+				frame.readerIndex(0);
+				try {
+					decoder.decode(ctx, frame, reusedOut);
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+				reusedOut.clear();
+			});
+			assertThat(bytesPerFrame, is(lessThanOrEqualTo(bytesPerMessage)));
+		} finally {
+			logger.setLevel(level);
+		}
+	}
+
+	private static long allocatedBytesPerIteration(final Runnable iteration) {
+		final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+		final int iterations = 10_000;
+		// warm up, so that we do not measure the interpreter
+		for (int i = 0; i < iterations * 20; i++) {
+			iteration.run();
+		}
+		final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			iteration.run();
+		}
+		return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / iterations;
+	}
+
+	@Test
+	public void testRecoverySkipsOversizedFrame() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspDecoder(8, false, HspMetrics.NOOP, 2), new HspEncoder());
+		final ByteBuf buf = Unpooled.buffer();
+		new DataAckMessage(msgId, payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+		// the oversized payload arrives in fragments
+		ch.writeInbound(buf.readRetainedSlice(15));
+		ch.writeInbound(buf);
+		final AckMessage ack = ch.readInbound();
+		assertThat(ack.getMessageId(), is(msgId));
+		assertThat(ch.readInbound(), is(nullValue()));
+
+		// only the DataAckMessage is answered
+		final ByteBuf expected = Unpooled.buffer();
+		new ErrorUndefMessage(msgId).toBytes(expected);
+		final ByteBuf written = ch.readOutbound();
+		assertThat(ByteBufUtil.equals(written, expected), is(true));
+		written.release();
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(ch.isOpen(), is(true));
+	}
+
+	@Test
+	public void testRecoveryGivesUpAfterMaxConsecutiveErrors() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspDecoder(8, false, HspMetrics.NOOP, 2));
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new PingMessage().toBytes(buf);
+		// EmbeddedChannel rethrows the exception wrapped by ByteToMessageDecoder
+		ee.expect(DecoderException.class);
+		ee.expectMessage("Payload-length=16 exceeds max-payload-bytes=8");
+		ch.writeInbound(buf);
+	}
+
+	@Test
+	public void testRecoveryResetsConsecutiveErrors() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspDecoder(8, false, HspMetrics.NOOP, 2));
+		final ByteBuf buf = Unpooled.buffer();
+		for (int i = 0; i < 3; i++) {
+			new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+			new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+			new PingMessage().toBytes(buf);
+		}
+		ch.writeInbound(buf);
+		for (int i = 0; i < 3; i++) {
+			assertThat(ch.readInbound(), is(instanceOf(PingMessage.class)));
+		}
+		assertThat(ch.readInbound(), is(nullValue()));
+	}
 }
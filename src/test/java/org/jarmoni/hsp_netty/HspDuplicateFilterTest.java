@@ -0,0 +1,89 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HspDuplicateFilterTest {
+
+	private final short payloadType = (short) 0x99;
+
+	@Test
+	public void testDuplicateIsDroppedAndAcked() throws Exception {
+		final HspDuplicateFilter filter = new HspDuplicateFilter();
+		final EmbeddedChannel ch = new EmbeddedChannel(filter);
+		ch.writeInbound(new DataAckMessage(1, payloadType, Unpooled.EMPTY_BUFFER));
+		assertThat(ch.readInbound(), is(instanceOf(DataAckMessage.class)));
+		assertThat(ch.readOutbound(), is(nullValue()));
+
+		final ByteBuf payload = Unpooled.buffer().writeInt(1);
+		ch.writeInbound(new DataAckMessage(1, payloadType, payload));
+		assertThat(ch.readInbound(), is(nullValue()));
+		final AckMessage ack = ch.readOutbound();
+		assertThat(ack.getMessageId(), is(1));
+		assertThat(payload.refCnt(), is(0));
+		assertThat(filter.getDuplicateCount(), is(1L));
+
+		// other messages are not filtered
+		ch.writeInbound(new AckMessage(1));
+		assertThat(ch.readInbound(), is(instanceOf(AckMessage.class)));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testOutOfOrderIdsWithinWindow() throws Exception {
+		final HspDuplicateFilter filter = new HspDuplicateFilter(64);
+		assertThat(filter.isDuplicate(10), is(false));
+		assertThat(filter.isDuplicate(12), is(false));
+		assertThat(filter.isDuplicate(11), is(false));
+		assertThat(filter.isDuplicate(11), is(true));
+		assertThat(filter.isDuplicate(10), is(true));
+		assertThat(filter.isDuplicate(12), is(true));
+	}
+
+	@Test
+	public void testWindowSlides() throws Exception {
+		final HspDuplicateFilter filter = new HspDuplicateFilter(64);
+		assertThat(filter.isDuplicate(0), is(false));
+		assertThat(filter.isDuplicate(63), is(false));
+		// 0 is still in the window (63 - 63), its bit is not reused yet
+		assertThat(filter.isDuplicate(0), is(true));
+		// 64 shares the bit of 0, which leaves the window
+		assertThat(filter.isDuplicate(64), is(false));
+		assertThat(filter.isDuplicate(64), is(true));
+		assertThat(filter.isDuplicate(0), is(false));
+		assertThat(filter.getOutOfWindowCount(), is(1L));
+		// a jump beyond the window clears it
+		assertThat(filter.isDuplicate(1000), is(false));
+		assertThat(filter.isDuplicate(999), is(false));
+		assertThat(filter.isDuplicate(999), is(true));
+	}
+
+	@Test
+	public void testWrapAround() throws Exception {
+		final HspDuplicateFilter filter = new HspDuplicateFilter(64);
+		assertThat(filter.isDuplicate(Integer.MAX_VALUE - 1), is(false));
+		assertThat(filter.isDuplicate(Integer.MAX_VALUE), is(false));
+		assertThat(filter.isDuplicate(Integer.MIN_VALUE), is(false));
+		assertThat(filter.isDuplicate(Integer.MIN_VALUE + 1), is(false));
+		assertThat(filter.isDuplicate(Integer.MAX_VALUE), is(true));
+		assertThat(filter.isDuplicate(Integer.MIN_VALUE), is(true));
+		assertThat(filter.getOutOfWindowCount(), is(0L));
+
+		assertThat(filter.isDuplicate(-1), is(false));
+		assertThat(filter.isDuplicate(0), is(false));
+		assertThat(filter.isDuplicate(-1), is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWindowSizeMustBePowerOfTwo() throws Exception {
+		new HspDuplicateFilter(100);
+	}
+}
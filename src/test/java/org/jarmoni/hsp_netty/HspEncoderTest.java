@@ -0,0 +1,151 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadStream;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class HspEncoderTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final short payloadType = (short) 0x99;
+	private final short errorType = (short) 0x98;
+	private final int msgId = 0xffeeddcc;
+	private final ByteBuf payload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+
+	@Test
+	public void testCopyingEncode() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance());
+		final DataMessage msg = new DataMessage(payloadType, payload);
+		ch.writeOutbound(msg);
+		final ByteBuf encoded = ch.readOutbound();
+		assertThat(encoded, is(not(instanceOf(CompositeByteBuf.class))));
+		assertThat(ByteBufUtil.hashCode(encoded), is(ByteBufUtil.hashCode(expected(msg))));
+		encoded.release();
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testZeroCopyEncode() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspEncoder(0));
+		final HspMessage[] messages = { new DataMessage(payloadType, payload), new DataAckMessage(msgId, payloadType, payload),
+				new ErrorMessage(msgId, errorType, payload) };
+		for (final HspMessage msg : messages) {
+			ch.writeOutbound(msg);
+			final ByteBuf encoded = ch.readOutbound();
+			assertThat(encoded, is(instanceOf(CompositeByteBuf.class)));
+			assertThat(ByteBufUtil.hashCode(encoded), is(ByteBufUtil.hashCode(expected(msg))));
+			// payload is shared with the written frame but reader-index is not modified...
+			assertThat(payload.refCnt(), is(2));
+			assertThat(payload.readerIndex(), is(0));
+			encoded.release();
+			// ...and the reference held by the message is left untouched
+			assertThat(payload.refCnt(), is(1));
+		}
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testZeroCopyThreshold() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspEncoder(4));
+		ch.writeOutbound(new DataMessage(payloadType, payload), new AckMessage(msgId));
+		final ByteBuf data = ch.readOutbound();
+		assertThat(data, is(not(instanceOf(CompositeByteBuf.class))));
+		data.release();
+		final ByteBuf ack = ch.readOutbound();
+		assertThat(ByteBufUtil.hashCode(ack), is(ByteBufUtil.hashCode(expected(new AckMessage(msgId)))));
+		ack.release();
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testFileRegion() throws Exception {
+		final File file = tmp.newFile();
+		Files.write(file.toPath(), "xyz".getBytes(StandardCharsets.UTF_8));
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance());
+		final FileRegion region = new DefaultFileRegion(file, 0, file.length());
+		ch.writeOutbound(new HspPayloadStream(HspCommandType.DataAckCommand, msgId, payloadType, region));
+		final ByteBuf header = ch.readOutbound();
+		assertThat(ByteBufUtil.hashCode(header), is(ByteBufUtil.hashCode(expected(new DataAckMessage(msgId, payloadType, payload)).slice(0, 11))));
+		header.release();
+		// the region is passed to the transport, which transfers it by sendfile
+		final Object body = ch.readOutbound();
+		assertThat(body, is(sameInstance(region)));
+		region.release();
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testChunkedInput() throws Exception {
+		final byte[] bytes = new byte[10_000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		final EmbeddedChannel ch = new EmbeddedChannel(new ChunkedWriteHandler(), HspEncoder.instance());
+		final ChunkedStream input = new ChunkedStream(new ByteArrayInputStream(bytes), 1024) {
+			@Override
+			public long length() {
+				return bytes.length;
+			}
+		};
+		ch.writeOutbound(new HspPayloadStream(HspCommandType.DataCommand, -1, payloadType, input));
+		assertThat(read(ch), is(expected(new DataMessage(payloadType, Unpooled.wrappedBuffer(bytes)))));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testMappedByteBuffer() throws Exception {
+		final File file = tmp.newFile();
+		Files.write(file.toPath(), "xyz".getBytes(StandardCharsets.UTF_8));
+		final EmbeddedChannel ch = new EmbeddedChannel(HspEncoder.instance());
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			ch.writeOutbound(new HspPayloadStream(HspCommandType.ErrorCommand, msgId, errorType, mapped));
+		}
+		assertThat(read(ch), is(expected(new ErrorMessage(msgId, errorType, payload))));
+		assertThat(ch.finish(), is(false));
+	}
+
+	private static ByteBuf read(final EmbeddedChannel ch) {
+		final ByteBuf buf = Unpooled.buffer();
+		ByteBuf out;
+		while ((out = ch.readOutbound()) != null) {
+			buf.writeBytes(out);
+			out.release();
+		}
+		return buf;
+	}
+
+	private static ByteBuf expected(final HspMessage msg) {
+		final ByteBuf buf = Unpooled.buffer();
+		msg.toBytes(buf);
+		return buf;
+	}
+}
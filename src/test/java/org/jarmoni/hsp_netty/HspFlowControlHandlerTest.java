@@ -0,0 +1,138 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.jarmoni.hsp_netty.HspFlowControlHandler.FlowControlException;
+import org.jarmoni.hsp_netty.HspFlowControlHandler.FlowControlListener;
+import org.jarmoni.hsp_netty.HspFlowControlHandler.OverflowPolicy;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class HspFlowControlHandlerTest {
+
+	private final short payloadType = (short) 0x99;
+
+	@Test
+	public void testQueueWhileUnwritable() throws Exception {
+		final FlowControlListener listener = mock(FlowControlListener.class);
+		final HspFlowControlHandler handler = new HspFlowControlHandler(100, OverflowPolicy.FAIL, 0, TimeUnit.MILLISECONDS, listener);
+		final EmbeddedChannel ch = new EmbeddedChannel(handler);
+
+		final DataMessage first = new DataMessage(payloadType, payload(10));
+		ch.writeOutbound(first);
+		assertThat(ch.readOutbound(), is(sameInstance(first)));
+		verifyZeroInteractions(listener);
+
+		setWritable(ch, false);
+		verify(listener).paused(ch);
+		final DataMessage second = new DataMessage(payloadType, payload(10));
+		final PingMessage third = new PingMessage();
+		ch.writeOutbound(second, third);
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(handler.isPaused(), is(true));
+		assertThat(handler.getQueuedBytes(), is(18L));
+
+		setWritable(ch, true);
+		verify(listener).resumed(ch);
+		assertThat(ch.readOutbound(), is(sameInstance(second)));
+		assertThat(ch.readOutbound(), is(sameInstance(third)));
+		assertThat(handler.isPaused(), is(false));
+		assertThat(handler.getQueuedBytes(), is(0L));
+		verifyNoMoreInteractions(listener);
+	}
+
+	@Test
+	public void testFail() throws Exception {
+		final HspFlowControlHandler handler = new HspFlowControlHandler(20, OverflowPolicy.FAIL, 0, TimeUnit.MILLISECONDS, null);
+		final EmbeddedChannel ch = new EmbeddedChannel(handler);
+		setWritable(ch, false);
+		final ByteBuf payload = payload(10);
+		final ChannelFuture queued = ch.writeAndFlush(new DataMessage(payloadType, payload(10)));
+		final ChannelFuture failed = ch.writeAndFlush(new DataMessage(payloadType, payload));
+		assertThat(queued.isDone(), is(false));
+		assertThat(failed.cause(), is(instanceOf(FlowControlException.class)));
+		assertThat(payload.refCnt(), is(0));
+		assertThat(handler.getFailedCount(), is(1L));
+
+		ch.close();
+		assertThat(queued.isSuccess(), is(false));
+		assertThat(handler.getQueuedBytes(), is(0L));
+	}
+
+	@Test
+	public void testDrop() throws Exception {
+		final HspFlowControlHandler handler = new HspFlowControlHandler(20, OverflowPolicy.DROP, 0, TimeUnit.MILLISECONDS, null);
+		final EmbeddedChannel ch = new EmbeddedChannel(handler);
+		setWritable(ch, false);
+		ch.writeAndFlush(new DataMessage(payloadType, payload(10)));
+		final ChannelFuture dropped = ch.writeAndFlush(new DataMessage(payloadType, payload(10)));
+		assertThat(dropped.isCancelled(), is(true));
+		assertThat(handler.getDroppedCount(), is(1L));
+		ch.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final EventLoopGroup group = new DefaultEventLoopGroup(1);
+		try {
+			final LocalAddress address = new LocalAddress("hsp-flow-control-test");
+			new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(new ChannelInboundHandlerAdapter()).bind(address).sync();
+			final HspFlowControlHandler handler = new HspFlowControlHandler(20, OverflowPolicy.BLOCK, 100, TimeUnit.MILLISECONDS, null);
+			final Channel ch = new Bootstrap().group(group).channel(LocalChannel.class).handler(handler).connect(address).sync().channel();
+			ch.eventLoop().submit(() -> ch.unsafe().outboundBuffer().setUserDefinedWritability(1, false)).sync();
+
+			handler.write(new DataMessage(payloadType, payload(10)));
+			// wait until the write is queued on the event-loop
+			ch.eventLoop().submit(() -> {}).sync();
+			assertThat(handler.getQueuedBytes(), is(17L));
+			// queue is full
+			final long start = System.nanoTime();
+			try {
+				handler.write(new DataMessage(payloadType, payload(10)));
+				fail("Expected FlowControlException");
+			} catch (final FlowControlException e) {
+				assertThat(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90), is(true));
+			}
+
+			// the producer is released as soon as there is room
+			ch.eventLoop().schedule(() -> ch.unsafe().outboundBuffer().setUserDefinedWritability(1, true), 20, TimeUnit.MILLISECONDS);
+			handler.write(new DataMessage(payloadType, payload(10))).sync();
+			ch.close().sync();
+		} finally {
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		}
+	}
+
+	private static void setWritable(final EmbeddedChannel ch, final boolean writable) {
+		ch.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+		ch.runPendingTasks();
+	}
+
+	private static ByteBuf payload(final int length) {
+		return Unpooled.buffer(length).writeZero(length);
+	}
+}
@@ -0,0 +1,407 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.jarmoni.hsp_netty.HspDecoder.HspDecoderException;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadChunk;
+import org.jarmoni.hsp_netty.Streaming.HspPayloadHeader;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HspFrameDecoderTest {
+
+	@Rule
+	public ExpectedException ee = ExpectedException.none();
+
+	private final short payloadType = (short) 0x99;
+	private final short errorType = (short) 0x98;
+	private final int msgId = 0xf001;
+	private final ByteBuf payload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+
+	private final Channel channel = mock(Channel.class);
+	private final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+	private HspFrameDecoder decoder;
+	private java.util.List<Object> out;
+
+	@Before
+	public void setUp() throws Exception {
+		decoder = new HspFrameDecoder();
+		out = new ArrayList<>();
+		when(ctx.channel()).thenReturn(channel);
+	}
+
+	@Test
+	public void testDataCommandToDataMessage() throws Exception {
+		final DataMessage dataMessage = new DataMessage(payloadType, payload);
+		final ByteBuf buf = Unpooled.buffer();
+		dataMessage.toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(1));
+		assertThat(out.get(0), is(instanceOf(DataMessage.class)));
+		final DataMessage msg = (DataMessage) out.get(0);
+		assertThat(msg.getCommandType(), is(dataMessage.getCommandType()));
+		assertThat(msg.getPayloadType(), is(dataMessage.getPayloadType()));
+		assertThat(ByteBufUtil.hashCode(msg.getPayload()), is(ByteBufUtil.hashCode(payload)));
+
+		assertThat(msg.getPayload().readerIndex(), is(0));
+	}
+
+	@Test
+	public void testDataCommandToDataMessageMessageTooBig() throws Exception {
+		final DataMessage dataMessage = new DataMessage(payloadType, payload);
+		final ByteBuf buf = Unpooled.buffer();
+		dataMessage.toBytes(buf);
+		decoder = new HspFrameDecoder(1);
+		ee.expect(HspDecoderException.class);
+		ee.expectMessage("Payload-length=3 exceeds max-payload-bytes=1");
+		decoder.decode(ctx, buf, out);
+	}
+
+	@Test
+	public void testNotExistingCommand() throws Exception {
+		ee.expect(HspDecoderException.class);
+		ee.expectMessage("Not existing command=99");
+		decoder.decode(ctx, Unpooled.wrappedBuffer(new byte[] { 99 }), out);
+	}
+
+	@Test
+	public void testDataAckCommandToDataAckMessage() throws Exception {
+		final DataAckMessage dataAckMessage = new DataAckMessage(msgId, payloadType, payload);
+		final ByteBuf buf = Unpooled.buffer();
+		dataAckMessage.toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(1));
+		assertThat(out.get(0), is(instanceOf(DataAckMessage.class)));
+		final DataAckMessage msg = (DataAckMessage) out.get(0);
+		assertThat(msg.getCommandType(), is(dataAckMessage.getCommandType()));
+		assertThat(msg.getMessageId(), is(msgId));
+		assertThat(msg.getPayloadType(), is(dataAckMessage.getPayloadType()));
+		assertThat(ByteBufUtil.hashCode(msg.getPayload()), is(ByteBufUtil.hashCode(payload)));
+	}
+
+	@Test
+	public void testAckCommandToAckMessage() throws Exception {
+		final AckMessage ackMessage = new AckMessage(msgId);
+		final ByteBuf buf = Unpooled.buffer();
+		ackMessage.toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(1));
+		assertThat(out.get(0), is(instanceOf(AckMessage.class)));
+		final AckMessage msg = (AckMessage) out.get(0);
+		assertThat(msg.getMessageId(), is(msgId));
+	}
+
+	@Test
+	public void testPingAndPongCommandToPingAndPongMessage() throws Exception {
+		final ByteBuf buf = Unpooled.buffer();
+		new PingMessage().toBytes(buf);
+		new PongMessage().toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(2));
+		assertThat(out.get(0), is(instanceOf(PingMessage.class)));
+		assertThat(out.get(1), is(instanceOf(PongMessage.class)));
+	}
+
+	@Test
+	public void testErrorCommandToErrorMessage() throws Exception {
+		final ErrorMessage errorMessage = new ErrorMessage(msgId, errorType, payload);
+		final ByteBuf buf = Unpooled.buffer();
+		errorMessage.toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(1));
+		assertThat(out.get(0), is(instanceOf(ErrorMessage.class)));
+		final ErrorMessage msg = (ErrorMessage) out.get(0);
+		assertThat(msg.getMessageId(), is(msgId));
+		assertThat(msg.getErrorType(), is(errorMessage.getErrorType()));
+		assertThat(ByteBufUtil.hashCode(msg.getPayload()), is(ByteBufUtil.hashCode(payload)));
+	}
+
+	@Test
+	public void testErrorUndefCommandToErrorUndefMessage() throws Exception {
+		final ErrorUndefMessage errorUndefMessage = new ErrorUndefMessage(msgId);
+		final ByteBuf buf = Unpooled.buffer();
+		errorUndefMessage.toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.size(), is(1));
+		assertThat(out.get(0), is(instanceOf(ErrorUndefMessage.class)));
+		final ErrorUndefMessage msg = (ErrorUndefMessage) out.get(0);
+		assertThat(msg.getMessageId(), is(msgId));
+	}
+
+	@Test
+	public void testIncompleteFrameIsNotConsumed() throws Exception {
+		final ByteBuf buf = Unpooled.buffer();
+		new DataAckMessage(msgId, payloadType, payload).toBytes(buf);
+		final ByteBuf partial = buf.slice(0, buf.readableBytes() - 1);
+		decoder.decode(ctx, partial, out);
+		assertThat(out.size(), is(0));
+		assertThat(partial.readerIndex(), is(0));
+	}
+
+	@Test
+	public void testFragmentedFrames() throws Exception {
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, payload).toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+		new DataAckMessage(msgId, payloadType, payload).toBytes(buf);
+		new PingMessage().toBytes(buf);
+
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder());
+		while (buf.isReadable()) {
+			ch.writeInbound(buf.readRetainedSlice(1));
+		}
+		buf.release();
+
+		final DataMessage dataMessage = ch.readInbound();
+		assertThat(dataMessage.getPayloadType(), is(payloadType));
+		assertThat(ByteBufUtil.hashCode(dataMessage.getPayload()), is(ByteBufUtil.hashCode(payload)));
+		dataMessage.release();
+		final AckMessage ackMessage = ch.readInbound();
+		assertThat(ackMessage.getMessageId(), is(msgId));
+		final DataAckMessage dataAckMessage = ch.readInbound();
+		assertThat(dataAckMessage.getMessageId(), is(msgId));
+		assertThat(ByteBufUtil.hashCode(dataAckMessage.getPayload()), is(ByteBufUtil.hashCode(payload)));
+		dataAckMessage.release();
+		assertThat(ch.readInbound(), is(instanceOf(PingMessage.class)));
+		assertThat(ch.readInbound(), is(nullValue()));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testPooledMessages() throws Exception {
+		decoder = new HspFrameDecoder(8192, true);
+		final ByteBuf buf = Unpooled.buffer();
+		new PingMessage().toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+		decoder.decode(ctx, buf, out);
+		decoder.decode(ctx, buf, out);
+		assertThat(out.get(0), is(sameInstance(PingMessage.instance())));
+		final AckMessage msg = (AckMessage) out.get(1);
+		assertThat(msg.getMessageId(), is(msgId));
+		msg.release();
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		final byte[] bytes = new byte[10_000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) i;
+		}
+		final ByteBuf buf = Unpooled.buffer();
+		new DataAckMessage(msgId, payloadType, Unpooled.wrappedBuffer(bytes)).toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+
+		// payloads may be larger than max-payload-bytes, which limits the size of a chunk
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(4096, false, true));
+		while (buf.isReadable()) {
+			ch.writeInbound(buf.readRetainedSlice(Math.min(3000, buf.readableBytes())));
+		}
+		buf.release();
+
+		final HspPayloadHeader header = ch.readInbound();
+		assertThat(header.getCommandType(), is(HspCommandType.DataAckCommand));
+		assertThat(header.getMessageId(), is(msgId));
+		assertThat(header.getType(), is(payloadType));
+		assertThat(header.getPayloadLength(), is(bytes.length));
+
+		final ByteBuf received = Unpooled.buffer();
+		Object msg;
+		boolean last = false;
+		while ((msg = ch.readInbound()) instanceof HspPayloadChunk) {
+			final HspPayloadChunk chunk = (HspPayloadChunk) msg;
+			assertThat(last, is(false));
+			assertThat(chunk.content().readableBytes() <= 4096, is(true));
+			received.writeBytes(chunk.content());
+			last = chunk.isLast();
+			chunk.release();
+		}
+		assertThat(last, is(true));
+		assertThat(ByteBufUtil.getBytes(received), is(bytes));
+		assertThat(msg, is(instanceOf(AckMessage.class)));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testStreamingEmptyPayload() throws Exception {
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, Unpooled.EMPTY_BUFFER).toBytes(buf);
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(1, false, true));
+		ch.writeInbound(buf);
+
+		final HspPayloadHeader header = ch.readInbound();
+		assertThat(header.getCommandType(), is(HspCommandType.DataCommand));
+		assertThat(header.getMessageId(), is(-1));
+		assertThat(header.getPayloadLength(), is(0));
+		final HspPayloadChunk chunk = ch.readInbound();
+		assertThat(chunk.isLast(), is(true));
+		assertThat(chunk.content().readableBytes(), is(0));
+		assertThat(ch.finish(), is(false));
+	}
+
+	@Test
+	public void testStreamingForward() throws Exception {
+		final ByteBuf buf = Unpooled.buffer();
+		final ErrorMessage errorMessage = new ErrorMessage(msgId, errorType, payload);
+		errorMessage.toBytes(buf);
+		final ByteBuf expected = buf.copy();
+
+		final EmbeddedChannel in = new EmbeddedChannel(new HspFrameDecoder(2, false, true));
+		final EmbeddedChannel forward = new EmbeddedChannel(HspEncoder.instance());
+		in.writeInbound(buf);
+		Object msg;
+		while ((msg = in.readInbound()) != null) {
+			forward.writeOutbound(msg);
+		}
+		final ByteBuf forwarded = Unpooled.buffer();
+		ByteBuf out;
+		while ((out = forward.readOutbound()) != null) {
+			forwarded.writeBytes(out);
+			out.release();
+		}
+		assertThat(forwarded, is(expected));
+	}
+
+	@Test
+	public void testRecoverySkipsOversizedFrame() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(8, false, false, HspMetrics.NOOP, 2), new HspEncoder());
+		final ByteBuf buf = Unpooled.buffer();
+		new DataAckMessage(msgId, payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+		// the oversized payload arrives in fragments
+		ch.writeInbound(buf.readRetainedSlice(15));
+		ch.writeInbound(buf);
+		final AckMessage ack = ch.readInbound();
+		assertThat(ack.getMessageId(), is(msgId));
+		assertThat(ch.readInbound(), is(nullValue()));
+
+		// only the DataAckMessage is answered
+		final ByteBuf expected = Unpooled.buffer();
+		new ErrorUndefMessage(msgId).toBytes(expected);
+		final ByteBuf written = ch.readOutbound();
+		assertThat(ByteBufUtil.equals(written, expected), is(true));
+		written.release();
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(ch.isOpen(), is(true));
+	}
+
+	@Test
+	public void testRecoveryGivesUpAfterMaxConsecutiveErrors() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(8, false, false, HspMetrics.NOOP, 2));
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+		new PingMessage().toBytes(buf);
+		// EmbeddedChannel rethrows the exception wrapped by ByteToMessageDecoder
+		ee.expect(DecoderException.class);
+		ee.expectMessage("Payload-length=16 exceeds max-payload-bytes=8");
+		ch.writeInbound(buf);
+	}
+
+	@Test
+	public void testRecoveryResetsConsecutiveErrors() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(8, false, false, HspMetrics.NOOP, 2));
+		final ByteBuf buf = Unpooled.buffer();
+		for (int i = 0; i < 3; i++) {
+			new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+			new DataMessage(payloadType, Unpooled.wrappedBuffer(new byte[16])).toBytes(buf);
+			new PingMessage().toBytes(buf);
+		}
+		ch.writeInbound(buf);
+		for (int i = 0; i < 3; i++) {
+			assertThat(ch.readInbound(), is(instanceOf(PingMessage.class)));
+		}
+		assertThat(ch.readInbound(), is(nullValue()));
+	}
+
+	@Test
+	public void testCallbackModeCallsListenerInsteadOfPassingOnMessages() throws Exception {
+		final java.util.List<String> calls = new ArrayList<>();
+		final java.util.List<ByteBuf> retained = new ArrayList<>();
+		final HspFrameListener listener = new HspFrameListener() {
+			@Override
+			public void onData(final ChannelHandlerContext ctx, final short payloadType, final ByteBuf payload) {
+				calls.add("data " + payloadType + " " + payload.toString(StandardCharsets.UTF_8));
+				retained.add(payload.retainedSlice());
+			}
+
+			@Override
+			public void onDataAck(final ChannelHandlerContext ctx, final int messageId, final short payloadType, final ByteBuf payload) {
+				calls.add("dataAck " + messageId + " " + payloadType + " " + payload.toString(StandardCharsets.UTF_8));
+			}
+
+			@Override
+			public void onAck(final ChannelHandlerContext ctx, final int messageId) {
+				calls.add("ack " + messageId);
+			}
+
+			@Override
+			public void onError(final ChannelHandlerContext ctx, final int messageId, final short errorType, final ByteBuf payload) {
+				calls.add("error " + messageId + " " + errorType + " " + payload.readableBytes());
+			}
+
+			@Override
+			public void onErrorUndef(final ChannelHandlerContext ctx, final int messageId) {
+				calls.add("errorUndef " + messageId);
+			}
+
+			@Override
+			public void onPing(final ChannelHandlerContext ctx) {
+				calls.add("ping");
+			}
+
+			@Override
+			public void onPong(final ChannelHandlerContext ctx) {
+				calls.add("pong");
+			}
+		};
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspFrameDecoder(8192, listener));
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, payload.duplicate()).toBytes(buf);
+		new DataAckMessage(msgId, payloadType, payload.duplicate()).toBytes(buf);
+		new AckMessage(msgId).toBytes(buf);
+		new ErrorMessage(msgId, errorType, Unpooled.EMPTY_BUFFER).toBytes(buf);
+		new ErrorUndefMessage(msgId).toBytes(buf);
+		new PingMessage().toBytes(buf);
+		new PongMessage().toBytes(buf);
+		// fragmented in the middle of the 2nd frame
+		ch.writeInbound(buf.readRetainedSlice(12));
+		ch.writeInbound(buf);
+
+		assertThat(calls.size(), is(7));
+		assertThat(calls.get(0), is("data " + payloadType + " xyz"));
+		assertThat(calls.get(1), is("dataAck " + msgId + " " + payloadType + " xyz"));
+		assertThat(calls.get(2), is("ack " + msgId));
+		assertThat(calls.get(3), is("error " + msgId + " " + errorType + " 0"));
+		assertThat(calls.get(4), is("errorUndef " + msgId));
+		assertThat(calls.get(5), is("ping"));
+		assertThat(calls.get(6), is("pong"));
+		assertThat(ch.readInbound(), is(nullValue()));
+		// a retained payload stays valid after the callback
+		assertThat(retained.get(0).toString(StandardCharsets.UTF_8), is("xyz"));
+		retained.get(0).release();
+		assertThat(ch.finish(), is(false));
+	}
+}
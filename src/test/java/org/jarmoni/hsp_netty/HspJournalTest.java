@@ -0,0 +1,261 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.HspAckCorrelator.AckListener;
+import org.jarmoni.hsp_netty.HspJournal.HspJournalException;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class HspJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ExpectedException ee = ExpectedException.none();
+
+	private final short payloadType = (short) 0x99;
+
+	private Path directory;
+	private HspJournal journal;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = folder.getRoot().toPath();
+		// 4 entries of 5 + 15 bytes per segment
+		journal = new HspJournal(directory, 80);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		journal.close();
+	}
+
+	@Test
+	public void testAppendAndAck() throws Exception {
+		journal.append(message(1));
+		journal.append(message(2));
+		assertThat(journal.size(), is(2));
+		assertThat(journal.ack(1), is(true));
+		assertThat(journal.ack(1), is(false));
+		assertThat(journal.ack(3), is(false));
+		assertThat(journal.size(), is(1));
+	}
+
+	@Test
+	public void testManyEntriesAckedInRandomOrder() throws Exception {
+		journal.close();
+		journal = new HspJournal(directory, 1 << 16);
+		final List<Integer> ids = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			ids.add(i * 7 - 500);
+			journal.append(message(i * 7 - 500));
+		}
+		Collections.shuffle(ids, new Random(42));
+		for (final int id : ids.subList(0, 500)) {
+			assertThat(journal.ack(id), is(true));
+		}
+		assertThat(journal.size(), is(500));
+		for (int i = 0; i < ids.size(); i++) {
+			assertThat(journal.contains(ids.get(i)), is(i >= 500));
+		}
+		for (final int id : ids.subList(500, 1000)) {
+			assertThat(journal.ack(id), is(true));
+		}
+		assertThat(journal.size(), is(0));
+	}
+
+	@Test
+	public void testReplayWritesUnackedFrames() throws Exception {
+		journal.append(message(1));
+		journal.append(message(2));
+		journal.append(message(3));
+		journal.ack(2);
+		final EmbeddedChannel ch = new EmbeddedChannel();
+		assertThat(journal.replay(ch), is(2));
+		ch.flush();
+		assertOutbound(ch, message(1));
+		assertOutbound(ch, message(3));
+		assertThat(ch.readOutbound(), is(nullValue()));
+		// replaying does not ack
+		assertThat(journal.size(), is(2));
+	}
+
+	@Test
+	public void testSegmentsRollAndAckedSegmentsAreDeleted() throws Exception {
+		for (int i = 0; i < 9; i++) {
+			journal.append(message(i));
+		}
+		assertThat(journal.segmentCount(), is(3));
+		assertThat(segmentFiles(), is(3L));
+		for (int i = 0; i < 4; i++) {
+			journal.ack(i);
+		}
+		assertThat(journal.segmentCount(), is(2));
+		assertThat(segmentFiles(), is(2L));
+	}
+
+	@Test
+	public void testMostlyAckedSegmentsAreCompacted() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			journal.append(message(i));
+		}
+		journal.ack(0);
+		journal.ack(1);
+		journal.ack(2);
+		// starts the 2nd segment, the unacked entry of the 1st one is moved
+		journal.append(message(4));
+		assertThat(journal.segmentCount(), is(1));
+		assertThat(journal.size(), is(2));
+
+		final EmbeddedChannel ch = new EmbeddedChannel();
+		journal.replay(ch);
+		ch.flush();
+		assertOutbound(ch, message(3));
+		assertOutbound(ch, message(4));
+		assertThat(journal.ack(3), is(true));
+	}
+
+	@Test
+	public void testUnackedEntriesAreRecovered() throws Exception {
+		journal.append(message(1));
+		journal.append(message(2));
+		journal.append(message(3));
+		journal.ack(2);
+		journal.close();
+
+		journal = new HspJournal(directory, 80);
+		assertThat(journal.size(), is(2));
+		final EmbeddedChannel ch = new EmbeddedChannel();
+		assertThat(journal.replay(ch), is(2));
+		ch.flush();
+		assertOutbound(ch, message(1));
+		assertOutbound(ch, message(3));
+		// appending continues behind the recovered entries
+		journal.append(message(4));
+		assertThat(journal.ack(3), is(true));
+		assertThat(journal.size(), is(2));
+	}
+
+	@Test
+	public void testLargeFrameGetsSegmentOfItsOwn() throws Exception {
+		final DataAckMessage large = new DataAckMessage(1, payloadType, Unpooled.wrappedBuffer(new byte[200]));
+		journal.append(large);
+		final EmbeddedChannel ch = new EmbeddedChannel();
+		journal.replay(ch);
+		ch.flush();
+		assertOutbound(ch, large);
+	}
+
+	@Test
+	public void testDuplicateMessageIdIsRejected() throws Exception {
+		journal.append(message(1));
+		ee.expect(HspJournalException.class);
+		ee.expectMessage("messageId=1 is not acked yet");
+		journal.append(message(1));
+	}
+
+	@Test
+	public void testHandlerJournalsAndReplays() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspJournalHandler(journal));
+		ch.writeOutbound(message(1), message(2));
+		assertThat(journal.size(), is(2));
+		assertThat(ch.readOutbound(), is(instanceOf(DataAckMessage.class)));
+		assertThat(ch.readOutbound(), is(instanceOf(DataAckMessage.class)));
+		ch.writeInbound(new AckMessage(1));
+		assertThat(ch.readInbound(), is(instanceOf(AckMessage.class)));
+		assertThat(journal.size(), is(1));
+		ch.close();
+
+		// the unacked message is replayed on the next connection
+		final EmbeddedChannel reconnected = new EmbeddedChannel(new HspJournalHandler(journal));
+		assertOutbound(reconnected, message(2));
+		assertThat(reconnected.readOutbound(), is(nullValue()));
+
+		final ChannelFuture duplicate = reconnected.write(message(2));
+		assertThat(duplicate.cause(), is(instanceOf(HspJournalException.class)));
+		reconnected.writeInbound(new ErrorUndefMessage(2));
+		assertThat(journal.size(), is(0));
+	}
+
+	@Test
+	public void testCorrelatorSkipsIdsOfReplayedEntries() throws Exception {
+		final AckListener listener = mock(AckListener.class);
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspJournalHandler(journal), new HspAckCorrelator(16, listener, journal::contains));
+		ch.writeOutbound(message(-1), message(-1));
+		releaseOutbound(ch, 2);
+		ch.writeInbound(new AckMessage(0));
+		ch.close();
+		assertThat(journal.size(), is(1));
+
+		// the new correlator starts at 0 again, id 1 is replayed and still unacked
+		final EmbeddedChannel reconnected = new EmbeddedChannel(new HspJournalHandler(journal), new HspAckCorrelator(16, listener, journal::contains));
+		// the payload of message(-1) was written with id 1
+		assertOutbound(reconnected, new DataAckMessage(1, payloadType, Unpooled.copyInt(-1)));
+		final DataAckMessage first = message(-1);
+		final DataAckMessage second = message(-1);
+		assertThat(reconnected.writeAndFlush(first).isSuccess(), is(true));
+		assertThat(reconnected.writeAndFlush(second).isSuccess(), is(true));
+		assertThat(first.getMessageId(), is(0));
+		assertThat(second.getMessageId(), is(2));
+		releaseOutbound(reconnected, 2);
+		assertThat(journal.size(), is(3));
+
+		// the answer to the replayed message is unknown to the correlator and passed on
+		reconnected.writeInbound(new AckMessage(1));
+		assertThat(reconnected.readInbound(), is(instanceOf(AckMessage.class)));
+		reconnected.writeInbound(new AckMessage(0), new AckMessage(2));
+		verify(listener).acked(first);
+		verify(listener).acked(second);
+		assertThat(journal.size(), is(0));
+	}
+
+	private static void releaseOutbound(final EmbeddedChannel ch, final int count) {
+		for (int i = 0; i < count; i++) {
+			((HspMessage) ch.readOutbound()).release();
+		}
+	}
+
+	private DataAckMessage message(final int messageId) {
+		// 11 bytes header + 4 bytes payload
+		return new DataAckMessage(messageId, payloadType, Unpooled.copyInt(messageId));
+	}
+
+	private long segmentFiles() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	private static void assertOutbound(final EmbeddedChannel ch, final HspMessage expected) {
+		final ByteBuf buf = ch.readOutbound();
+		final ByteBuf expectedBytes = Unpooled.buffer();
+		expected.toBytes(expectedBytes);
+		assertThat(ByteBufUtil.equals(buf, expectedBytes), is(true));
+		buf.release();
+	}
+}
@@ -0,0 +1,166 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HspKeepAliveHandlerTest {
+
+	private static final long INTERVAL_MILLIS = 20;
+
+	private HspKeepAliveHandler handler;
+	private EmbeddedChannel ch;
+
+	@Before
+	public void setUp() throws Exception {
+		handler = new HspKeepAliveHandler(INTERVAL_MILLIS, TimeUnit.MILLISECONDS, 2);
+		ch = new EmbeddedChannel(handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ch.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testPingIsAnswered() throws Exception {
+		ch.writeInbound(PingMessage.instance());
+		assertThat(ch.readInbound(), is(nullValue()));
+		assertThat(ch.readOutbound(), is(instanceOf(PongMessage.class)));
+	}
+
+	@Test
+	public void testOtherMessagesArePassed() throws Exception {
+		final AckMessage ackMessage = new AckMessage(1);
+		ch.writeInbound(ackMessage);
+		assertThat(ch.readInbound(), is(ackMessage));
+		assertThat(ch.readOutbound(), is(nullValue()));
+	}
+
+	@Test
+	public void testPingOnIdleAndRtt() throws Exception {
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		assertThat(handler.getLastRttNanos(), is(-1L));
+
+		ch.writeInbound(PongMessage.instance());
+		assertThat(ch.readInbound(), is(nullValue()));
+		assertThat(handler.getLastRttNanos(), is(greaterThan(0L)));
+		assertThat(handler.getRttHistogram().getCount(), is(1L));
+	}
+
+	@Test
+	public void testNoPingWhileDataIsFlowing() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(INTERVAL_MILLIS / 2);
+			ch.writeInbound(new DataMessage((short) 1, Unpooled.EMPTY_BUFFER));
+			ch.runScheduledPendingTasks();
+			assertThat(ch.readOutbound(), is(nullValue()));
+			assertThat(ch.readInbound(), is(instanceOf(DataMessage.class)));
+		}
+	}
+
+	@Test
+	public void testWritesDelayPingByOneInterval() throws Exception {
+		final long start = System.nanoTime();
+		Object ping = null;
+		while (ping == null) {
+			Thread.sleep(INTERVAL_MILLIS / 4);
+			ch.writeOutbound(new DataMessage((short) 1, Unpooled.EMPTY_BUFFER));
+			ch.runScheduledPendingTasks();
+			assertThat(ch.readOutbound(), is(instanceOf(DataMessage.class)));
+			ping = ch.readOutbound();
+		}
+		assertThat(ping, is(instanceOf(PingMessage.class)));
+		assertThat(System.nanoTime() - start, is(greaterThan(TimeUnit.MILLISECONDS.toNanos(2 * INTERVAL_MILLIS))));
+	}
+
+	@Test
+	public void testWriteOnlyDeadPeerIsClosed() throws Exception {
+		int pings = 0;
+		while (ch.isOpen()) {
+			Thread.sleep(INTERVAL_MILLIS / 4);
+			ch.runScheduledPendingTasks();
+			// a write may run the check which closes the channel, so its failure is not recorded
+			ch.writeAndFlush(new DataMessage((short) 1, Unpooled.EMPTY_BUFFER));
+			for (Object msg = ch.readOutbound(); msg != null; msg = ch.readOutbound()) {
+				if (msg instanceof PingMessage) {
+					pings++;
+				}
+			}
+		}
+		assertThat(pings, is(2));
+	}
+
+	@Test
+	public void testPongAfterDataIsNotMeasured() throws Exception {
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		ch.writeInbound(new DataMessage((short) 1, Unpooled.EMPTY_BUFFER));
+		assertThat(ch.readInbound(), is(instanceOf(DataMessage.class)));
+		ch.writeInbound(PongMessage.instance());
+		assertThat(handler.getRttHistogram().getCount(), is(0L));
+		// the next ping is measured again
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		ch.writeInbound(PongMessage.instance());
+		assertThat(handler.getRttHistogram().getCount(), is(1L));
+	}
+
+	@Test
+	public void testLatePongIsMeasuredFromFirstPing() throws Exception {
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		// answers the first ping
+		ch.writeInbound(PongMessage.instance());
+		assertThat(handler.getLastRttNanos(), is(greaterThan(TimeUnit.MILLISECONDS.toNanos(INTERVAL_MILLIS + INTERVAL_MILLIS / 2))));
+		assertThat(handler.getRttHistogram().getCount(), is(1L));
+		// the pong of the second ping is not counted
+		ch.writeInbound(PongMessage.instance());
+		assertThat(handler.getRttHistogram().getCount(), is(1L));
+	}
+
+	@Test
+	public void testDeadPeerIsClosed() throws Exception {
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		assertThat(ch.isOpen(), is(true));
+		// first missed pong -> next ping
+		idle();
+		assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+		assertThat(ch.isOpen(), is(true));
+		// second missed pong -> close
+		idle();
+		assertThat(ch.readOutbound(), is(nullValue()));
+		assertThat(ch.isOpen(), is(false));
+	}
+
+	@Test
+	public void testPongResetsMissedPongs() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			idle();
+			assertThat(ch.readOutbound(), is(instanceOf(PingMessage.class)));
+			ch.writeInbound(PongMessage.instance());
+		}
+		assertThat(ch.isOpen(), is(true));
+		assertThat(handler.getRttHistogram().getCount(), is(4L));
+	}
+
+	private void idle() throws InterruptedException {
+		Thread.sleep(INTERVAL_MILLIS + INTERVAL_MILLIS / 2);
+		ch.runScheduledPendingTasks();
+	}
+}
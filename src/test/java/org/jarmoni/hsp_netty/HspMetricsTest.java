@@ -0,0 +1,101 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.jarmoni.hsp_netty.HspMetrics.DecoderError;
+import org.jarmoni.hsp_netty.HspMetrics.LongAdderMetrics;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HspMetricsTest {
+
+	private final short payloadType = (short) 0x99;
+	private final ByteBuf payload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+
+	private final LongAdderMetrics metrics = new LongAdderMetrics();
+
+	@Test
+	public void testDecoderMetrics() throws Exception {
+		decode(new EmbeddedChannel(new HspDecoder(8192, false, metrics)));
+	}
+
+	@Test
+	public void testFrameDecoderMetrics() throws Exception {
+		decode(new EmbeddedChannel(new HspFrameDecoder(8192, false, false, metrics)));
+	}
+
+	@Test
+	public void testEncoderMetrics() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspEncoder(Integer.MAX_VALUE, metrics));
+		ch.writeOutbound(new DataMessage(payloadType, payload), new PingMessage(), new PingMessage());
+		ch.finishAndReleaseAll();
+		assertThat(metrics.getEncodedFrames(HspCommandType.DataCommand), is(1L));
+		assertThat(metrics.getEncodedBytes(HspCommandType.DataCommand), is(10L));
+		assertThat(metrics.getEncodedFrames(HspCommandType.PingCommand), is(2L));
+		assertThat(metrics.getEncodedBytes(HspCommandType.PingCommand), is(2L));
+		assertThat(metrics.getDecodedFrames(HspCommandType.DataCommand), is(0L));
+	}
+
+	@Test
+	public void testBatchingEncoderMetrics() throws Exception {
+		final EmbeddedChannel ch = new EmbeddedChannel(new HspBatchingEncoder(8192, 0, TimeUnit.NANOSECONDS, metrics));
+		ch.writeOutbound(new DataMessage(payloadType, payload), new AckMessage(1));
+		ch.finishAndReleaseAll();
+		assertThat(metrics.getEncodedBytes(HspCommandType.DataCommand), is(10L));
+		assertThat(metrics.getEncodedBytes(HspCommandType.AckCommand), is(5L));
+	}
+
+	@Test
+	public void testDecoderErrors() throws Exception {
+		decodeError(new EmbeddedChannel(new HspDecoder(8192, false, metrics)), Unpooled.wrappedBuffer(new byte[] { 99 }));
+		decodeError(new EmbeddedChannel(new HspFrameDecoder(8192, false, false, metrics)), Unpooled.wrappedBuffer(new byte[] { 99 }));
+		assertThat(metrics.getDecoderErrors(DecoderError.UNKNOWN_COMMAND), is(2L));
+
+		final ByteBuf tooLarge = Unpooled.buffer();
+		new DataMessage(payloadType, payload).toBytes(tooLarge);
+		decodeError(new EmbeddedChannel(new HspFrameDecoder(1, false, false, metrics)), tooLarge);
+		assertThat(metrics.getDecoderErrors(DecoderError.PAYLOAD_TOO_LARGE), is(1L));
+		assertThat(metrics.getDecoderErrors(DecoderError.MISSING_FIELDS), is(0L));
+	}
+
+	private void decode(final EmbeddedChannel ch) {
+		final ByteBuf buf = Unpooled.buffer();
+		new DataMessage(payloadType, payload).toBytes(buf);
+		new DataAckMessage(1, payloadType, payload).toBytes(buf);
+		new AckMessage(1).toBytes(buf);
+		new PongMessage().toBytes(buf);
+		ch.writeInbound(buf);
+		ch.finishAndReleaseAll();
+
+		assertThat(metrics.getDecodedFrames(HspCommandType.DataCommand), is(1L));
+		assertThat(metrics.getDecodedBytes(HspCommandType.DataCommand), is(10L));
+		assertThat(metrics.getDecodedFrames(HspCommandType.DataAckCommand), is(1L));
+		assertThat(metrics.getDecodedBytes(HspCommandType.DataAckCommand), is(14L));
+		assertThat(metrics.getDecodedFrames(HspCommandType.AckCommand), is(1L));
+		assertThat(metrics.getDecodedBytes(HspCommandType.AckCommand), is(5L));
+		assertThat(metrics.getDecodedFrames(HspCommandType.PongCommand), is(1L));
+		assertThat(metrics.getPayloadBytes().getCount(), is(4L));
+		assertThat(metrics.getPayloadBytes().getMax(), is(3L));
+		assertThat(metrics.getDecodeNanos().getCount(), is(4L));
+	}
+
+	private static void decodeError(final EmbeddedChannel ch, final ByteBuf buf) {
+		try {
+			ch.writeInbound(buf);
+			fail("Expected DecoderException");
+		} catch (final DecoderException e) {
+			// expected
+		}
+		ch.finishAndReleaseAll();
+	}
+}
@@ -0,0 +1,167 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.jarmoni.hsp_netty.HspOffloadHandler.OffloadHandler;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class HspOffloadHandlerTest {
+
+	private final EventLoopGroup group = new DefaultEventLoopGroup(2);
+	private final HspOffloadExecutor executor = new HspOffloadExecutor(4);
+	// messages received by the client
+	private final BlockingQueue<Object> answers = new LinkedBlockingQueue<>();
+	private final AtomicReference<Channel> serverChannel = new AtomicReference<>();
+	private LocalAddress address;
+
+	@Before
+	public void setUp() throws Exception {
+		address = new LocalAddress("hsp-offload-test-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		assertThat(executor.shutdown(5, TimeUnit.SECONDS), is(true));
+		group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+	}
+
+	@Test
+	public void testMessagesWithSameKeyAreHandledInOrder() throws Exception {
+		final List<List<Integer>> received = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			received.add(Collections.synchronizedList(new ArrayList<>()));
+		}
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		final Channel ch = connect(() -> new HspOffloadHandler(executor, (ctx, msg) -> {
+			threads.add(Thread.currentThread());
+			received.get(((DataAckMessage) msg).getPayloadType()).add(msg.getPayload().readInt());
+		}));
+		final int messages = 1000;
+		for (int i = 0; i < messages; i++) {
+			ch.write(new DataAckMessage(i, (short) (i % 4), Unpooled.buffer().writeInt(i)));
+		}
+		ch.flush();
+		for (int i = 0; i < messages; i++) {
+			assertThat(answers.poll(5, TimeUnit.SECONDS), is(instanceOf(AckMessage.class)));
+		}
+		for (int type = 0; type < 4; type++) {
+			final List<Integer> values = received.get(type);
+			assertThat(values.size(), is(messages / 4));
+			for (int i = 0; i < values.size(); i++) {
+				assertThat(values.get(i), is(i * 4 + type));
+			}
+		}
+		assertThat(threads.get(0).getName().startsWith("hsp-offload"), is(true));
+	}
+
+	@Test
+	public void testFailedMessageIsAnsweredWithError() throws Exception {
+		final ByteBuf payload = Unpooled.buffer().writeInt(1);
+		final Channel ch = connect(() -> new HspOffloadHandler(executor, (ctx, msg) -> {
+			throw new IllegalStateException("Expected");
+		}));
+		ch.writeAndFlush(new DataAckMessage(7, (short) 1, payload));
+		final ErrorUndefMessage error = (ErrorUndefMessage) answers.poll(5, TimeUnit.SECONDS);
+		assertThat(error.getMessageId(), is(7));
+		assertThat(payload.refCnt(), is(0));
+	}
+
+	@Test
+	public void testOtherMessagesArePassedOnEventLoop() throws Exception {
+		final BlockingQueue<Object> passedOn = new LinkedBlockingQueue<>();
+		final OffloadHandler handler = (ctx, msg) -> {};
+		final Channel ch = connect(() -> new HspOffloadHandler(executor, handler), passedOn);
+		final ByteBuf payload = Unpooled.buffer().writeInt(1);
+		ch.writeAndFlush(new PingMessage());
+		ch.writeAndFlush(new DataMessage((short) 1, payload));
+		assertThat(passedOn.poll(5, TimeUnit.SECONDS), is(instanceOf(PingMessage.class)));
+		// a DataMessage is not answered, but released
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (payload.refCnt() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertThat(payload.refCnt(), is(0));
+		assertThat(passedOn.isEmpty(), is(true));
+	}
+
+	@Test
+	public void testReadingIsSuspendedWhileWorkersAreBusy() throws Exception {
+		final CountDownLatch busy = new CountDownLatch(1);
+		final Channel ch = connect(() -> new HspOffloadHandler(executor, msg -> 0, (ctx, msg) -> busy.await(), 4));
+		for (int i = 0; i < 10; i++) {
+			ch.write(new DataAckMessage(i, (short) 1, Unpooled.EMPTY_BUFFER));
+		}
+		ch.flush();
+		awaitAutoRead(false);
+		assertThat(answers.isEmpty(), is(true));
+
+		busy.countDown();
+		for (int i = 0; i < 10; i++) {
+			assertThat(answers.poll(5, TimeUnit.SECONDS), is(not((Object) null)));
+		}
+		awaitAutoRead(true);
+	}
+
+	private Channel connect(final Supplier<HspOffloadHandler> handler) throws Exception {
+		return connect(handler, new LinkedBlockingQueue<>());
+	}
+
+	private Channel connect(final Supplier<HspOffloadHandler> handler, final BlockingQueue<Object> passedOn) throws Exception {
+		new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(new ChannelInboundHandlerAdapter() {
+			@Override
+			public void handlerAdded(final ChannelHandlerContext ctx) {
+				serverChannel.set(ctx.channel());
+				ctx.pipeline().addLast(handler.get(), new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+						passedOn.add(msg);
+					}
+				});
+				ctx.pipeline().remove(this);
+			}
+		}).bind(address).sync();
+		return new Bootstrap().group(group).channel(LocalChannel.class).handler(new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+				answers.add(msg);
+			}
+		}).connect(address).sync().channel();
+	}
+
+	private void awaitAutoRead(final boolean autoRead) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (serverChannel.get() == null || serverChannel.get().config().isAutoRead() != autoRead) {
+			assertTrue("autoRead did not become " + autoRead, System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.jarmoni.hsp_netty.HspPayloadDispatcher.PayloadHandler;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+public class HspPayloadDispatcherTest {
+
+	@Test
+	public void testDispatch() throws Exception {
+		final PayloadHandler first = mock(PayloadHandler.class);
+		final PayloadHandler second = mock(PayloadHandler.class);
+		final EmbeddedChannel ch = new EmbeddedChannel(HspPayloadDispatcher.builder().handler((short) 1, first).handler((short) 0xffff, second).build());
+
+		final DataMessage dataMessage = new DataMessage((short) 1, Unpooled.EMPTY_BUFFER);
+		final DataAckMessage dataAckMessage = new DataAckMessage(7, (short) 0xffff, Unpooled.EMPTY_BUFFER);
+		final DataMessage unknown = new DataMessage((short) 2, Unpooled.EMPTY_BUFFER);
+		final AckMessage ackMessage = new AckMessage(7);
+		ch.writeInbound(dataMessage, dataAckMessage, unknown, ackMessage);
+
+		verify(first).handle(any(), same(dataMessage));
+		verify(second).handle(any(), same(dataAckMessage));
+		assertThat(ch.readInbound(), is(sameInstance(unknown)));
+		assertThat(ch.readInbound(), is(sameInstance(ackMessage)));
+		assertThat(ch.readInbound(), is(nullValue()));
+	}
+
+	@Test
+	public void testDefaultHandler() throws Exception {
+		final PayloadHandler handler = mock(PayloadHandler.class);
+		final PayloadHandler defaultHandler = mock(PayloadHandler.class);
+		final EmbeddedChannel ch = new EmbeddedChannel(HspPayloadDispatcher.builder().handler((short) 1, handler).defaultHandler(defaultHandler, null).build());
+		final DataMessage unknown = new DataMessage((short) 2, Unpooled.EMPTY_BUFFER);
+		ch.writeInbound(unknown);
+		verify(defaultHandler).handle(any(), same(unknown));
+		verifyZeroInteractions(handler);
+		assertThat(ch.readInbound(), is(nullValue()));
+	}
+
+	@Test
+	public void testExecutor() throws Exception {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Thread[] handlingThread = new Thread[1];
+			final PayloadHandler handler = mock(PayloadHandler.class);
+			final PayloadHandler slow = (ctx, msg) -> {
+				handlingThread[0] = Thread.currentThread();
+				handler.handle(ctx, msg);
+			};
+			final EmbeddedChannel ch = new EmbeddedChannel(HspPayloadDispatcher.builder().handler((short) 1, slow, executor).build());
+			final DataMessage dataMessage = new DataMessage((short) 1, Unpooled.EMPTY_BUFFER);
+			ch.writeInbound(dataMessage);
+			verify(handler, timeout(1000)).handle(any(), same(dataMessage));
+			assertThat(handlingThread[0] == Thread.currentThread(), is(false));
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDuplicateHandler() throws Exception {
+		final PayloadHandler handler = mock(PayloadHandler.class);
+		HspPayloadDispatcher.builder().handler((short) 1, handler).handler((short) 1, handler);
+	}
+}
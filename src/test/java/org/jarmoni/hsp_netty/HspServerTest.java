@@ -0,0 +1,65 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.jarmoni.hsp_netty.HspClient.AckResult;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HspServerTest {
+
+	@Test
+	public void testLoopbackNio() throws Exception {
+		loopback(false);
+	}
+
+	@Test
+	public void testLoopbackNative() throws Exception {
+		loopback(true);
+	}
+
+	private void loopback(final boolean preferNative) throws Exception {
+		final HspServer server = HspServer.builder().localAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).eventLoopThreads(2).preferNative(preferNative)
+				.receiveBufferSize(64 * 1024).sendBufferSize(64 * 1024).writeBufferWaterMark(32 * 1024, 64 * 1024)
+				.pipelineInitializer(pipeline -> pipeline.addLast(new AckingHandler())).start();
+		final HspConnector connector = HspConnector.builder().eventLoopThreads(1).preferNative(preferNative).build();
+		try {
+			assertThat(server.isNative(), is(preferNative && HspTransport.isEpollAvailable()));
+			assertThat(connector.isNative(), is(preferNative && HspTransport.isEpollAvailable()));
+
+			final HspClient client = connector.connectClient(server.localAddress()).get(5, TimeUnit.SECONDS);
+			final List<CompletableFuture<AckResult>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				futures.add(client.send((short) 1, Unpooled.copiedBuffer("payload-" + i, StandardCharsets.UTF_8)));
+			}
+			for (final CompletableFuture<AckResult> future : futures) {
+				assertThat(future.get(5, TimeUnit.SECONDS).isAcked(), is(true));
+			}
+			client.close().sync();
+		} finally {
+			connector.close();
+			server.close();
+		}
+	}
+
+	private static class AckingHandler extends SimpleChannelInboundHandler<DataAckMessage> {
+
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx, final DataAckMessage msg) {
+			ctx.writeAndFlush(new AckMessage(msg.getMessageId()));
+			msg.release();
+		}
+	}
+}
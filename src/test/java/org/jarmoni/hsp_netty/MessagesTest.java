@@ -10,6 +10,8 @@ import org.junit.Test;
 import java.nio.charset.StandardCharsets;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class MessagesTest {
@@ -102,4 +104,31 @@ public class MessagesTest {
 		assertThat(serialized.readInt(), is(msgId));
 	}
 
+	@Test
+	public void testPooledMessageIsRecycled() throws Exception {
+		final ByteBuf pooledPayload = Unpooled.copiedBuffer("xyz".getBytes(StandardCharsets.UTF_8));
+		DataAckMessage msg = DataAckMessage.newInstance(msgId, payloadType, pooledPayload);
+		assertThat(msg.getMessageId(), is(msgId));
+		assertThat(msg.getPayload(), is(sameInstance(pooledPayload)));
+		msg.release();
+		assertThat(pooledPayload.refCnt(), is(0));
+		assertThat(msg.getPayload(), is(nullValue()));
+
+		// Recycler drops some of the recycled instances, so a few rounds are required until one is reused
+		boolean reused = false;
+		for (int i = 0; i < 64 && !reused; i++) {
+			final DataAckMessage next = DataAckMessage.newInstance(i, payloadType, Unpooled.EMPTY_BUFFER);
+			reused = next == msg;
+			assertThat(next.getMessageId(), is(i));
+			next.release();
+			msg = next;
+		}
+		assertThat(reused, is(true));
+	}
+
+	@Test
+	public void testPingAndPongInstancesAreShared() throws Exception {
+		assertThat(PingMessage.instance(), is(sameInstance(PingMessage.instance())));
+		assertThat(PongMessage.instance(), is(sameInstance(PongMessage.instance())));
+	}
 }
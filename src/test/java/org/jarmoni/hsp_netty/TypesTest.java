@@ -0,0 +1,40 @@
+package org.jarmoni.hsp_netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jarmoni.hsp_netty.Messages.*;
+import org.jarmoni.hsp_netty.Types.HspCommandType;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class TypesTest {
+
+	@Test
+	public void testFromByteValue() throws Exception {
+		for (final HspCommandType cmdType : HspCommandType.values()) {
+			assertThat(HspCommandType.fromByteValue(cmdType.byteValue()), is(cmdType));
+			assertThat(HspCommandType.byByteValue(cmdType.byteValue()).get(), is(cmdType));
+		}
+		for (int i = Byte.MIN_VALUE; i <= Byte.MAX_VALUE; i++) {
+			if (i < 0 || i >= HspCommandType.values().length) {
+				assertThat(HspCommandType.fromByteValue((byte) i), is(nullValue()));
+				assertThat(HspCommandType.byByteValue((byte) i).isPresent(), is(false));
+			}
+		}
+	}
+
+	@Test
+	public void testHeaderLength() throws Exception {
+		final ByteBuf payload = Unpooled.EMPTY_BUFFER;
+		final HspMessage[] messages = { new DataMessage((short) 1, payload), new DataAckMessage(1, (short) 1, payload), new AckMessage(1), new PingMessage(),
+				new PongMessage(), new ErrorMessage(1, (short) 1, payload), new ErrorUndefMessage(1) };
+		for (final HspMessage msg : messages) {
+			final ByteBuf buf = Unpooled.buffer();
+			msg.toBytes(buf);
+			assertThat(msg.getCommandType().toString(), msg.getCommandType().headerLength(), is(buf.readableBytes()));
+		}
+	}
+}